@@ -5,38 +5,208 @@ import org.apache.kafka.common.serialization.StringDeserializer;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.kafka.KafkaException;
 import org.springframework.kafka.config.ConcurrentKafkaListenerContainerFactory;
 import org.springframework.kafka.core.ConsumerFactory;
 import org.springframework.kafka.core.DefaultKafkaConsumerFactory;
+import org.springframework.kafka.listener.ContainerProperties;
+import org.springframework.kafka.listener.DefaultErrorHandler;
 import uk.gov.companieshouse.chdorderconsumer.kafka.ChdItemOrderedDeserializer;
+import uk.gov.companieshouse.chdorderconsumer.kafka.ErrorReplayEngine;
+import uk.gov.companieshouse.chdorderconsumer.kafka.FileSchemaStore;
+import uk.gov.companieshouse.chdorderconsumer.kafka.ListenerConcurrencyController;
+import uk.gov.companieshouse.chdorderconsumer.kafka.PoisonPillDeserializer;
+import uk.gov.companieshouse.chdorderconsumer.kafka.PoisonPillRecoverer;
+import uk.gov.companieshouse.chdorderconsumer.kafka.PrefilteredRecordFilter;
+import uk.gov.companieshouse.chdorderconsumer.kafka.RecordPrefilter;
+import uk.gov.companieshouse.chdorderconsumer.kafka.TransactionalRepublisher;
 import uk.gov.companieshouse.orders.items.ChdItemOrdered;
 
+import java.time.Duration;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Properties;
 
 @Configuration
 public class KafkaConfig {
+
+    private final FileSchemaStore schemaStore;
+    private final RecordPrefilter prefilter;
+
     @Value("${spring.kafka.bootstrap-servers}")
     private String bootstrapServers;
 
+    @Value("${uk.gov.companieshouse.chdorderconsumer.batch.max-poll-records:100}")
+    private int batchMaxPollRecords;
+
+    @Value("${uk.gov.companieshouse.chdorderconsumer.replay.idle-interval:PT1M}")
+    private Duration replayIdleInterval;
+
+    @Value("${uk.gov.companieshouse.chdorderconsumer.transactional.enabled:false}")
+    private boolean transactional;
+
+    @Value("${uk.gov.companieshouse.chdorderconsumer.parallel.enabled:false}")
+    private boolean parallel;
+
+    public KafkaConfig(FileSchemaStore schemaStore, RecordPrefilter prefilter) {
+        this.schemaStore = schemaStore;
+        this.prefilter = prefilter;
+    }
+
     @Bean
     public ConsumerFactory<String, ChdItemOrdered> consumerFactoryMessage() {
         return new DefaultKafkaConsumerFactory<>(consumerConfigs(), new StringDeserializer(),
-                new ChdItemOrderedDeserializer<>());
+                new PoisonPillDeserializer<>(new ChdItemOrderedDeserializer<>(schemaStore, prefilter)));
+    }
+
+    /**
+     * Container factory for the record listeners. When processed in parallel
+     * (`uk.gov.companieshouse.chdorderconsumer.parallel.enabled=true`), messages are acknowledged out of order
+     * as they complete, and the container only commits offsets below which every message is acknowledged;
+     * otherwise offsets are committed as by default. A message backed off for a delayed retry is handed back
+     * with a `KafkaBackoffException`, for the error handler to seek back to it while its partition is paused;
+     * as this is routine, it is only logged at debug level. The number of consumers is sized by the
+     * {@link ListenerConcurrencyController}. Idle events end any replay of a partition with nothing left to
+     * reprocess. Records are converted to messages by {@link ChdItemOrderedDeserializer#messageConverter()}.
+     */
+    @Bean
+    public ConcurrentKafkaListenerContainerFactory<String, ChdItemOrdered> kafkaListenerContainerFactory(
+            PoisonPillRecoverer poisonPillRecoverer, PrefilteredRecordFilter prefilteredRecordFilter) {
+        ConcurrentKafkaListenerContainerFactory<String, ChdItemOrdered> factory = new ConcurrentKafkaListenerContainerFactory<>();
+        factory.setConsumerFactory(consumerFactoryMessage());
+        factory.setRecordMessageConverter(ChdItemOrderedDeserializer.messageConverter());
+        configureErrorHandling(factory, poisonPillRecoverer).setLogLevel(KafkaException.Level.DEBUG);
+        configurePrefiltering(factory, prefilteredRecordFilter);
+        factory.getContainerProperties().setIdleEventInterval(replayIdleInterval.toMillis());
+        if (parallel) {
+            factory.getContainerProperties().setAckMode(ContainerProperties.AckMode.MANUAL);
+            factory.getContainerProperties().setAsyncAcks(true);
+        }
+        return factory;
+    }
+
+    /**
+     * Container factory for the batch listeners, used when the application runs with
+     * `uk.gov.companieshouse.chdorderconsumer.batch-listener=true`. Each poll is handed to the listener as a
+     * single batch and the offsets are committed once the whole batch has been processed. In transactional
+     * mode (`uk.gov.companieshouse.chdorderconsumer.transactional.enabled=true`) the container commits nothing,
+     * as the offsets are committed in the transaction republishing the batch by the
+     * {@link TransactionalRepublisher}. The number of consumers is sized by the
+     * {@link ListenerConcurrencyController}. Idle events end any replay of a partition with nothing left to
+     * reprocess.
+     */
+    @Bean
+    public ConcurrentKafkaListenerContainerFactory<String, ChdItemOrdered> batchKafkaListenerContainerFactory(
+            PoisonPillRecoverer poisonPillRecoverer, PrefilteredRecordFilter prefilteredRecordFilter) {
+        ConcurrentKafkaListenerContainerFactory<String, ChdItemOrdered> factory = new ConcurrentKafkaListenerContainerFactory<>();
+        factory.setConsumerFactory(consumerFactoryMessage());
+        configureErrorHandling(factory, poisonPillRecoverer);
+        configurePrefiltering(factory, prefilteredRecordFilter);
+        factory.getContainerProperties().setIdleEventInterval(replayIdleInterval.toMillis());
+        factory.setBatchListener(true);
+        factory.getContainerProperties().setAckMode(
+                transactional ? ContainerProperties.AckMode.MANUAL : ContainerProperties.AckMode.BATCH);
+        Properties batchConsumerProperties = new Properties();
+        batchConsumerProperties.put(ConsumerConfig.MAX_POLL_RECORDS_CONFIG, String.valueOf(batchMaxPollRecords));
+        factory.getContainerProperties().setKafkaConsumerProperties(batchConsumerProperties);
+        return factory;
+    }
+
+    /**
+     * Container factory for the error topic record listener. Messages are processed on the listener thread and
+     * acknowledged manually in order, so that the offsets committed stop at the first message the
+     * {@link ErrorReplayEngine} does not accept for replay. Idle events end any replay of a partition with
+     * nothing left to reprocess. Records are converted to messages by
+     * {@link ChdItemOrderedDeserializer#messageConverter()}.
+     */
+    @Bean
+    public ConcurrentKafkaListenerContainerFactory<String, ChdItemOrdered> errorKafkaListenerContainerFactory(
+            PoisonPillRecoverer poisonPillRecoverer, PrefilteredRecordFilter prefilteredRecordFilter) {
+        ConcurrentKafkaListenerContainerFactory<String, ChdItemOrdered> factory = new ConcurrentKafkaListenerContainerFactory<>();
+        factory.setConsumerFactory(consumerFactoryMessage());
+        factory.setRecordMessageConverter(ChdItemOrderedDeserializer.messageConverter());
+        configureErrorHandling(factory, poisonPillRecoverer);
+        configurePrefiltering(factory, prefilteredRecordFilter);
+        factory.getContainerProperties().setIdleEventInterval(replayIdleInterval.toMillis());
+        factory.getContainerProperties().setAckMode(ContainerProperties.AckMode.MANUAL);
+        return factory;
+    }
+
+    /**
+     * Container factory for the error topic batch listener. The container commits nothing: the listener
+     * commits the offsets of the records the {@link ErrorReplayEngine} accepted for replay itself, or in the
+     * transaction republishing them in transactional mode, so that records past the end of the replay fetched
+     * in the same poll are left for the next replay. Idle events end any replay of a partition with nothing
+     * left to reprocess.
+     */
+    @Bean
+    public ConcurrentKafkaListenerContainerFactory<String, ChdItemOrdered> errorBatchKafkaListenerContainerFactory(
+            PoisonPillRecoverer poisonPillRecoverer, PrefilteredRecordFilter prefilteredRecordFilter) {
+        ConcurrentKafkaListenerContainerFactory<String, ChdItemOrdered> factory = new ConcurrentKafkaListenerContainerFactory<>();
+        factory.setConsumerFactory(consumerFactoryMessage());
+        configureErrorHandling(factory, poisonPillRecoverer);
+        configurePrefiltering(factory, prefilteredRecordFilter);
+        factory.getContainerProperties().setIdleEventInterval(replayIdleInterval.toMillis());
+        factory.setBatchListener(true);
+        factory.getContainerProperties().setAckMode(ContainerProperties.AckMode.MANUAL);
+        Properties batchConsumerProperties = new Properties();
+        batchConsumerProperties.put(ConsumerConfig.MAX_POLL_RECORDS_CONFIG, String.valueOf(batchMaxPollRecords));
+        factory.getContainerProperties().setKafkaConsumerProperties(batchConsumerProperties);
+        return factory;
     }
 
+    /**
+     * Container factory for the delay-tier retry listener. Records are acknowledged individually once
+     * processed. A record not yet due is handed back with a `KafkaBackoffException`, for the error handler
+     * to seek back to it while its partition is paused; as this is routine, it is only logged at debug level.
+     */
     @Bean
-    public ConcurrentKafkaListenerContainerFactory<String, ChdItemOrdered> kafkaListenerContainerFactory() {
+    public ConcurrentKafkaListenerContainerFactory<String, ChdItemOrdered> retryTierKafkaListenerContainerFactory(
+            PoisonPillRecoverer poisonPillRecoverer, PrefilteredRecordFilter prefilteredRecordFilter) {
         ConcurrentKafkaListenerContainerFactory<String, ChdItemOrdered> factory = new ConcurrentKafkaListenerContainerFactory<>();
         factory.setConsumerFactory(consumerFactoryMessage());
+        configureErrorHandling(factory, poisonPillRecoverer).setLogLevel(KafkaException.Level.DEBUG);
+        configurePrefiltering(factory, prefilteredRecordFilter);
+        factory.getContainerProperties().setAckMode(ContainerProperties.AckMode.MANUAL);
         return factory;
     }
 
+    /**
+     * Records whose value could not be deserialized reach the container with a null value, as marked by the
+     * {@link PoisonPillDeserializer}, rather than failing the poll. Record listeners are never invoked with
+     * them; they are handed straight to the {@link PoisonPillRecoverer}, which also logs any other record
+     * the container gives up on. Batch listeners receive them, and hand them to the recoverer themselves.
+     */
+    private static DefaultErrorHandler configureErrorHandling(
+            ConcurrentKafkaListenerContainerFactory<String, ChdItemOrdered> factory,
+            PoisonPillRecoverer poisonPillRecoverer) {
+        final DefaultErrorHandler errorHandler = new DefaultErrorHandler(poisonPillRecoverer);
+        factory.getContainerProperties().setCheckDeserExWhenValueNull(true);
+        factory.setCommonErrorHandler(errorHandler);
+        return errorHandler;
+    }
+
+    /**
+     * Records the {@link RecordPrefilter} dropped before they were decoded in full are discarded by the
+     * container, and acknowledged as they are, so that acknowledging out of order or manually never waits
+     * on them.
+     */
+    private static void configurePrefiltering(
+            ConcurrentKafkaListenerContainerFactory<String, ChdItemOrdered> factory,
+            PrefilteredRecordFilter prefilteredRecordFilter) {
+        factory.setRecordFilterStrategy(prefilteredRecordFilter);
+        factory.setAckDiscarded(true);
+    }
+
     private Map<String, Object> consumerConfigs() {
         Map<String, Object> props = new HashMap<>();
         props.put(ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers);
         props.put(ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG, StringDeserializer.class);
         props.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, ChdItemOrderedDeserializer.class);
+        if (transactional) {
+            // only consume retry and error messages once the transaction republishing them has committed
+            props.put(ConsumerConfig.ISOLATION_LEVEL_CONFIG, "read_committed");
+        }
 
         return props;
     }
@@ -2,6 +2,7 @@ package uk.gov.companieshouse.chdorderconsumer.config;
 import com.mongodb.client.MongoClient;
 import com.mongodb.client.MongoClients;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
@@ -15,4 +16,16 @@ public class MongoConfig {
     public MongoClient mongoClient() {
         return MongoClients.create(connectionString);
     }
-}
\ No newline at end of file
+
+    /**
+     * Client of the reactive streams driver, through which the filing histories of orders are prefetched
+     * without blocking a consumer thread for the round trip. Only created when asynchronous prefetching is
+     * enabled, so that the connection pool it holds is not opened otherwise.
+     */
+    @Bean
+    @ConditionalOnProperty(name = "uk.gov.companieshouse.chdorderconsumer.filing-history-cache.async-prefetch",
+            havingValue = "true")
+    public com.mongodb.reactivestreams.client.MongoClient reactiveMongoClient() {
+        return com.mongodb.reactivestreams.client.MongoClients.create(connectionString);
+    }
+}
@@ -0,0 +1,11 @@
+package uk.gov.companieshouse.chdorderconsumer.exception;
+
+/**
+ * Thrown to indicate that the transaction republishing the messages of a poll and committing its offsets could not
+ * be committed, so that neither the messages nor the offsets have been.
+ */
+public class TransactionFailedException extends RuntimeException {
+    public TransactionFailedException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -1,31 +1,264 @@
 package uk.gov.companieshouse.chdorderconsumer.kafka;
 
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericRecord;
 import org.apache.avro.generic.IndexedRecord;
+import org.apache.avro.io.BinaryDecoder;
 import org.apache.avro.io.DatumReader;
-import org.apache.avro.io.Decoder;
 import org.apache.avro.io.DecoderFactory;
-import org.apache.avro.reflect.ReflectDatumReader;
+import org.apache.avro.message.BinaryMessageDecoder;
+import org.apache.avro.message.SchemaStore;
+import org.apache.avro.specific.SpecificData;
+import org.apache.avro.specific.SpecificDatumReader;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
 import org.apache.kafka.common.errors.SerializationException;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.header.internals.RecordHeader;
 import org.apache.kafka.common.serialization.Deserializer;
+import org.springframework.kafka.support.DefaultKafkaHeaderMapper;
+import org.springframework.kafka.support.KafkaHeaders;
+import org.springframework.kafka.support.converter.MessagingMessageConverter;
 import org.springframework.stereotype.Component;
 import uk.gov.companieshouse.orders.items.ChdItemOrdered;
 
-import java.util.Arrays;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.ByteOrder;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.HexFormat;
 import java.util.Map;
 
+/**
+ * Decodes `ChdItemOrdered` record values. One instance is shared by every consumer of a container factory,
+ * so each consumer thread decodes with its own reader, created once, and reuses its decoder from record to
+ * record. Decoded orders are not reused, as they outlive the poll they were received in. Values fetched are
+ * decoded straight from the buffer they were fetched into, without copying them first.
+ * <p>
+ * Values in Avro single-object encoding are decoded with the schema they were written with, found by its
+ * fingerprint in the {@link SchemaStore}, and resolved against the `ChdItemOrdered` schema. The reader
+ * resolving each writer schema is created once, on the first value written with it. Values in plain binary
+ * encoding are taken to have been written with the `ChdItemOrdered` schema.
+ * <p>
+ * When the {@link RecordPrefilter} is enabled, only the {@link ChdItemOrderedProjection} of each value is
+ * decoded first, skipping every other field. Values the prefilter drops are not decoded in full: they are
+ * deserialized as null and marked with the {@link #PREFILTERED_HEADER} header, for the container to
+ * discard. Values whose projection cannot be decoded are decoded in full, to fail as they would have.
+ */
 @Component
 public class ChdItemOrderedDeserializer<T extends IndexedRecord> implements Deserializer<T> {
-    @SuppressWarnings("unchecked")
+
+    /**
+     * Header of the record consumed that refers to its value, undecoded, so that it can be republished as is.
+     * It is not mapped to the headers of the message handed to the listeners, see {@link #messageConverter()}.
+     */
+    public static final String RAW_VALUE_HEADER = "chd_raw_value";
+
+    /** Header marking a record whose value was dropped by the {@link RecordPrefilter} rather than decoded. */
+    public static final String PREFILTERED_HEADER = "chd_prefiltered";
+
+    /** The number of bytes of a value that cannot be deserialized included in the exception thrown. */
+    static final int PREVIEW_BYTES = 64;
+
+    private static final byte[] RAW_VALUE_HEADER_KEY = RAW_VALUE_HEADER.getBytes(StandardCharsets.UTF_8);
+    private static final byte[] SINGLE_OBJECT_MARKER = {(byte) 0xC3, (byte) 0x01};
+    private static final int SINGLE_OBJECT_HEADER_LENGTH = SINGLE_OBJECT_MARKER.length + Long.BYTES;
+    private static final ThreadLocal<Decoding> DECODING = ThreadLocal.withInitial(Decoding::new);
+
+    private static final byte[] PREFILTERED_HEADER_VALUE = {1};
+    private static final long PLAIN_ENCODING_FINGERPRINT = 0L;
+
+    private final SchemaStore schemaStore;
+    private final RecordPrefilter prefilter;
+    private final BinaryMessageDecoder<ChdItemOrdered> singleObjectDecoder;
+
+    public ChdItemOrderedDeserializer() {
+        this(new FileSchemaStore(null, Duration.ZERO));
+    }
+
+    public ChdItemOrderedDeserializer(SchemaStore schemaStore) {
+        this(schemaStore, null);
+    }
+
+    public ChdItemOrderedDeserializer(SchemaStore schemaStore, RecordPrefilter prefilter) {
+        this.schemaStore = schemaStore;
+        this.prefilter = prefilter;
+        this.singleObjectDecoder =
+                new BinaryMessageDecoder<>(SpecificData.get(), ChdItemOrdered.getClassSchema(), schemaStore);
+    }
+
+    @Override
+    public T deserialize(String topic, Headers headers, byte[] data) {
+        if (data == null || isPrefiltered(headers, ByteBuffer.wrap(data))) {
+            return null;
+        }
+        final T value = deserialize(topic, data);
+        headers.remove(RAW_VALUE_HEADER);
+        headers.add(RAW_VALUE_HEADER, data);
+        return value;
+    }
+
+    /**
+     * Decodes a value from the buffer it was fetched into. The raw value header refers to the buffer; as it is
+     * left out of the message headers, its value is only copied out of the buffer when the message is
+     * republished, or handed off the consumer thread, see {@link #detachRawValue(org.springframework.messaging.Message)}.
+     */
+    @Override
+    public T deserialize(String topic, Headers headers, ByteBuffer data) {
+        if (data == null || isPrefiltered(headers, data.duplicate())) {
+            return null;
+        }
+        final T value = decode(topic, data.duplicate());
+        headers.remove(RAW_VALUE_HEADER);
+        headers.add(new RecordHeader(ByteBuffer.wrap(RAW_VALUE_HEADER_KEY), data.duplicate()));
+        return value;
+    }
+
+    /**
+     * Creates the converter of the records decoded to the messages handed to the listeners. The
+     * {@link #RAW_VALUE_HEADER} header is left out of the message headers, as mapping it would copy every value
+     * out of the buffer it was fetched into; the record itself is kept in the {@link KafkaHeaders#RAW_DATA}
+     * header instead, for the raw value to be read from it only on the republish path.
+     *
+     * @return the converter
+     */
+    public static MessagingMessageConverter messageConverter() {
+        final MessagingMessageConverter converter = new MessagingMessageConverter();
+        converter.setHeaderMapper(DefaultKafkaHeaderMapper.forInboundOnlyWithMatchers("!" + RAW_VALUE_HEADER, "*"));
+        converter.setRawRecordHeader(true);
+        return converter;
+    }
+
+    /**
+     * Copies the raw value of the record a message was converted from out of the buffer it was fetched into,
+     * for a message handed off the consumer thread, so that a message waiting its turn does not keep the whole
+     * fetch response it was received in from being collected.
+     *
+     * @param message a message converted by the {@link #messageConverter()}
+     */
+    public static void detachRawValue(final org.springframework.messaging.Message<?> message) {
+        if (!(message.getHeaders().get(KafkaHeaders.RAW_DATA) instanceof ConsumerRecord<?, ?> consumerRecord)) {
+            return;
+        }
+        final Header rawValue = consumerRecord.headers().lastHeader(RAW_VALUE_HEADER);
+        if (rawValue != null) {
+            final byte[] value = rawValue.value();
+            consumerRecord.headers().remove(RAW_VALUE_HEADER);
+            consumerRecord.headers().add(RAW_VALUE_HEADER, value);
+        }
+    }
+
     @Override
     public T deserialize(String topic, byte[] data) {
+        if (data == null) {
+            return null;
+        }
+        return decode(topic, ByteBuffer.wrap(data));
+    }
+
+    @SuppressWarnings("unchecked")
+    private T decode(String topic, ByteBuffer data) {
         try {
-            Decoder decoder = DecoderFactory.get().binaryDecoder(data, null);
-            DatumReader<ChdItemOrdered> reader = new ReflectDatumReader<>(ChdItemOrdered.class);
-            return (T)reader.read(null, decoder);
+            if (isSingleObject(data)) {
+                return (T) singleObjectDecoder.decode(data.duplicate());
+            }
+            final Decoding decoding = DECODING.get();
+            decoding.decoder = decoderOf(data, decoding.decoder);
+            return (T) decoding.reader.read(null, decoding.decoder);
         } catch (Exception e) {
-            throw new SerializationException(
-                    "Message data [" + Arrays.toString(data) + "] from topic [" + topic + "] cannot be deserialized", e);
+            throw new SerializationException("Message data " + preview(data) + " from topic [" + topic
+                    + "] cannot be deserialized", e);
+        }
+    }
+
+    /**
+     * Decodes the projection of a value, and marks the record if the prefilter drops it.
+     *
+     * @return whether the value was dropped
+     */
+    private boolean isPrefiltered(Headers headers, ByteBuffer data) {
+        if (prefilter == null || !prefilter.isEnabled()) {
+            return false;
+        }
+        final ChdItemOrderedProjection projection;
+        try {
+            projection = project(data);
+        } catch (Exception e) {
+            return false;
+        }
+        if (prefilter.accept(projection)) {
+            return false;
         }
+        headers.add(PREFILTERED_HEADER, PREFILTERED_HEADER_VALUE);
+        return true;
+    }
+
+    /**
+     * Decodes only the reference, item id and item kind of a value, with a projection of the schema it was
+     * written with. The reader of each writer schema is created once per consumer thread.
+     *
+     * @param data the value
+     * @return the projection of the value
+     * @throws IOException if the value cannot be decoded
+     */
+    ChdItemOrderedProjection project(ByteBuffer data) throws IOException {
+        final Decoding decoding = DECODING.get();
+        final long fingerprint;
+        final ByteBuffer body;
+        if (isSingleObject(data)) {
+            fingerprint = data.duplicate().order(ByteOrder.LITTLE_ENDIAN)
+                    .getLong(data.position() + SINGLE_OBJECT_MARKER.length);
+            body = data.duplicate().position(data.position() + SINGLE_OBJECT_HEADER_LENGTH);
+        } else {
+            fingerprint = PLAIN_ENCODING_FINGERPRINT;
+            body = data;
+        }
+        DatumReader<GenericRecord> reader = decoding.projectionReaders.get(fingerprint);
+        if (reader == null) {
+            final Schema writerSchema = fingerprint == PLAIN_ENCODING_FINGERPRINT
+                    ? ChdItemOrdered.getClassSchema() : schemaStore.findByFingerprint(fingerprint);
+            if (writerSchema == null) {
+                throw new IOException("Cannot find schema for fingerprint " + fingerprint);
+            }
+            reader = new GenericDatumReader<>(writerSchema, ChdItemOrderedProjection.schemaOf(writerSchema));
+            decoding.projectionReaders.put(fingerprint, reader);
+        }
+        decoding.decoder = decoderOf(body, decoding.decoder);
+        return ChdItemOrderedProjection.from(reader.read(null, decoding.decoder));
+    }
+
+    private static BinaryDecoder decoderOf(ByteBuffer data, BinaryDecoder reuse) {
+        if (data.hasArray()) {
+            return DecoderFactory.get().binaryDecoder(data.array(), data.arrayOffset() + data.position(),
+                    data.remaining(), reuse);
+        }
+        final byte[] bytes = new byte[data.remaining()];
+        data.duplicate().get(bytes);
+        return DecoderFactory.get().binaryDecoder(bytes, reuse);
+    }
+
+    private static boolean isSingleObject(ByteBuffer data) {
+        return data.remaining() > SINGLE_OBJECT_HEADER_LENGTH
+                && data.get(data.position()) == SINGLE_OBJECT_MARKER[0]
+                && data.get(data.position() + 1) == SINGLE_OBJECT_MARKER[1];
+    }
+
+    /**
+     * Describes a value by its length and, in hex, up to its first {@link #PREVIEW_BYTES} bytes, so that the
+     * description stays small however large the value.
+     *
+     * @param data the value
+     * @return the description
+     */
+    static String preview(ByteBuffer data) {
+        final int length = data.remaining();
+        final byte[] bytes = new byte[Math.min(length, PREVIEW_BYTES)];
+        data.duplicate().get(bytes);
+        return "[" + length + " bytes: " + HexFormat.of().formatHex(bytes) + (length > bytes.length ? "..." : "")
+                + "]";
     }
 
     @Override
@@ -37,4 +270,13 @@ public class ChdItemOrderedDeserializer<T extends IndexedRecord> implements Dese
     public void configure(Map<String, ?> arg0, boolean arg1) {
         // No-op
     }
+
+    /**
+     * The readers and decoder of a consumer thread, the projection readers keyed by writer schema fingerprint.
+     */
+    private static final class Decoding {
+        private final DatumReader<ChdItemOrdered> reader = new SpecificDatumReader<>(ChdItemOrdered.class);
+        private final Map<Long, DatumReader<GenericRecord>> projectionReaders = new HashMap<>();
+        private BinaryDecoder decoder;
+    }
 }
@@ -0,0 +1,80 @@
+package uk.gov.companieshouse.chdorderconsumer.kafka;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericRecord;
+
+/**
+ * The few fields of a `ChdItemOrdered` value needed to decide whether it is worth decoding in full: the order
+ * reference, and the id and kind of the item ordered. Decoded with a projection of the schema the value was
+ * written with, so that every other field, `ordered_by` and the item options included, is skipped rather
+ * than materialised.
+ *
+ * @param reference the order reference
+ * @param itemId    the id of the item ordered, if any
+ * @param itemKind  the kind of the item ordered, if any
+ */
+public record ChdItemOrderedProjection(String reference, String itemId, String itemKind) {
+
+    private static final String REFERENCE = "reference";
+    private static final String ITEM = "item";
+    private static final String ITEM_ID = "id";
+    private static final String ITEM_KIND = "kind";
+
+    /**
+     * Projects a `ChdItemOrdered` schema onto the fields of the projection, keeping the names, types and
+     * defaults of the fields kept so that values written with the schema resolve against the projection.
+     *
+     * @param schema the schema a value was written with
+     * @return the projection of the schema
+     */
+    static Schema schemaOf(final Schema schema) {
+        final List<Schema.Field> fields = new ArrayList<>();
+        for (Schema.Field field : schema.getFields()) {
+            if (REFERENCE.equals(field.name())) {
+                fields.add(new Schema.Field(field, field.schema()));
+            } else if (ITEM.equals(field.name())) {
+                fields.add(new Schema.Field(field, itemSchemaOf(field.schema())));
+            }
+        }
+        return Schema.createRecord(schema.getName(), schema.getDoc(), schema.getNamespace(), false, fields);
+    }
+
+    /**
+     * @param value a value decoded with a schema projected by {@link #schemaOf(Schema)}
+     * @return the projection
+     */
+    static ChdItemOrderedProjection from(final GenericRecord value) {
+        final Object item = get(value, ITEM);
+        return new ChdItemOrderedProjection(
+                stringValue(get(value, REFERENCE)),
+                item instanceof GenericRecord itemRecord ? stringValue(get(itemRecord, ITEM_ID)) : null,
+                item instanceof GenericRecord itemRecord ? stringValue(get(itemRecord, ITEM_KIND)) : null);
+    }
+
+    private static Schema itemSchemaOf(final Schema schema) {
+        if (schema.getType() == Schema.Type.UNION) {
+            return Schema.createUnion(schema.getTypes().stream().map(ChdItemOrderedProjection::itemSchemaOf).toList());
+        }
+        if (schema.getType() != Schema.Type.RECORD) {
+            return schema;
+        }
+        final List<Schema.Field> fields = new ArrayList<>();
+        for (Schema.Field field : schema.getFields()) {
+            if (ITEM_ID.equals(field.name()) || ITEM_KIND.equals(field.name())) {
+                fields.add(new Schema.Field(field, field.schema()));
+            }
+        }
+        return Schema.createRecord(schema.getName(), schema.getDoc(), schema.getNamespace(), false, fields);
+    }
+
+    private static Object get(final GenericRecord value, final String field) {
+        return value.hasField(field) ? value.get(field) : null;
+    }
+
+    private static String stringValue(final Object value) {
+        return value == null ? null : value.toString();
+    }
+}
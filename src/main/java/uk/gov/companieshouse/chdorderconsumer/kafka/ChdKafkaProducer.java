@@ -1,13 +1,28 @@
 package uk.gov.companieshouse.chdorderconsumer.kafka;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.kafka.KafkaClientMetrics;
+import org.apache.kafka.clients.consumer.ConsumerGroupMetadata;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
 import org.apache.kafka.clients.producer.KafkaProducer;
 import org.apache.kafka.clients.producer.ProducerRecord;
 import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.clients.producer.RoundRobinPartitioner;
+import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.AuthorizationException;
+import org.apache.kafka.common.errors.OutOfOrderSequenceException;
+import org.apache.kafka.common.errors.ProducerFencedException;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.header.internals.RecordHeader;
 import uk.gov.companieshouse.kafka.message.Message;
 import uk.gov.companieshouse.kafka.producer.ProducerConfig;
 import uk.gov.companieshouse.kafka.producer.factory.KafkaProducerFactory;
 
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 
@@ -43,11 +58,32 @@ public class ChdKafkaProducer {
         props.put("request.timeout.ms", config.getRequestTimeoutMilliseconds());
         props.put("enable.idempotence", false);
 
+        if (config instanceof ChdProducerConfig chdConfig) {
+            props.put("enable.idempotence", chdConfig.isIdempotent());
+            if (chdConfig.getLingerMilliseconds() != null) {
+                props.put("linger.ms", chdConfig.getLingerMilliseconds());
+            }
+            if (chdConfig.getBatchSizeBytes() != null) {
+                props.put("batch.size", chdConfig.getBatchSizeBytes());
+            }
+            if (chdConfig.getCompressionType() != null) {
+                props.put("compression.type", chdConfig.getCompressionType());
+            }
+            if (chdConfig.getTransactionalId() != null) {
+                props.put("transactional.id", chdConfig.getTransactionalId());
+                props.put("enable.idempotence", true);
+            }
+        }
+
         if (config.isRoundRobinPartitioner()) {
-            props.put("partition.assignment.strategy", "roundrobin");
+            props.put("partitioner.class", RoundRobinPartitioner.class.getName());
         }
 
         kafkaProducer = producerFactory.getProducer(props);
+
+        if (props.containsKey("transactional.id")) {
+            kafkaProducer.initTransactions();
+        }
     }
 
     /**
@@ -80,6 +116,61 @@ public class ChdKafkaProducer {
         return kafkaProducer.send(record);
     }
 
+    /**
+     * Send a message to a topic in Kafka without waiting for it to be acknowledged.
+     *
+     * The future returned is completed from the producer's I/O thread once the broker has acknowledged the
+     * message, or exceptionally once the producer has given up sending it, so callers must not block in
+     * anything they chain onto it.
+     *
+     */
+    public CompletableFuture<RecordMetadata> sendAsync(Message msg) {
+
+        ProducerRecord<String, byte[]> record = getProducerRecordFromMessage(msg);
+
+        final CompletableFuture<RecordMetadata> result = new CompletableFuture<>();
+        try {
+            kafkaProducer.send(record, (metadata, exception) -> {
+                if (exception != null) {
+                    result.completeExceptionally(exception);
+                } else {
+                    result.complete(metadata);
+                }
+            });
+        } catch (RuntimeException ex) {
+            result.completeExceptionally(ex);
+        }
+        return result;
+    }
+
+    /**
+     * Send messages to Kafka and commit consumer offsets in a single transaction, so that either the messages
+     * are published and the offsets committed, or neither. The messages are not waited for one by one; the
+     * commit fails if any of them could not be sent. Requires a producer configured with a transactional id.
+     *
+     * A transaction that fails is aborted and the exception rethrown. If the exception is a
+     * {@link ProducerFencedException}, {@link OutOfOrderSequenceException} or {@link AuthorizationException}
+     * the producer cannot be used again and must be closed.
+     *
+     */
+    public void sendInTransaction(List<Message> msgs, Map<TopicPartition, OffsetAndMetadata> offsets,
+                                  ConsumerGroupMetadata groupMetadata) {
+
+        kafkaProducer.beginTransaction();
+        try {
+            for (Message msg : msgs) {
+                kafkaProducer.send(getProducerRecordFromMessage(msg));
+            }
+            kafkaProducer.sendOffsetsToTransaction(offsets, groupMetadata);
+            kafkaProducer.commitTransaction();
+        } catch (ProducerFencedException | OutOfOrderSequenceException | AuthorizationException e) {
+            throw e;
+        } catch (KafkaException e) {
+            kafkaProducer.abortTransaction();
+            throw e;
+        }
+    }
+
     private ProducerRecord<String, byte[]> getProducerRecordFromMessage(Message msg) {
 
         return new ProducerRecord<>(
@@ -87,10 +178,33 @@ public class ChdKafkaProducer {
                 msg.getPartition(),
                 msg.getTimestamp(),
                 msg.getKey(),
-                msg.getValue()
+                msg.getValue(),
+                getHeadersFromMessage(msg)
         );
     }
 
+    private List<Header> getHeadersFromMessage(Message msg) {
+        if (!(msg instanceof RepublishMessage republishMessage)) {
+            return List.of();
+        }
+        return republishMessage.getHeaders().entrySet().stream()
+                .map(header -> (Header) new RecordHeader(header.getKey(), header.getValue()))
+                .toList();
+    }
+
+    /**
+     * Publishes the producer's metrics, such as its batch size, compression rate and request latency, to
+     * the registry given.
+     *
+     * @param meterRegistry the registry to publish the metrics to
+     * @return the metrics binder, to be closed when the producer is
+     */
+    public KafkaClientMetrics bindMetrics(MeterRegistry meterRegistry) {
+        final KafkaClientMetrics metrics = new KafkaClientMetrics(kafkaProducer);
+        metrics.bindTo(meterRegistry);
+        return metrics;
+    }
+
     public void close() {
         kafkaProducer.close();
     }
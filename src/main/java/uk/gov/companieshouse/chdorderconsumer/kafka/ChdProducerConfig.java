@@ -0,0 +1,56 @@
+package uk.gov.companieshouse.chdorderconsumer.kafka;
+
+import uk.gov.companieshouse.kafka.producer.ProducerConfig;
+
+/**
+ * Extends the CH {@link ProducerConfig} with the idempotence, batching, compression and transaction settings
+ * applied by {@link ChdKafkaProducer}. Settings left null keep the Kafka client defaults.
+ */
+public class ChdProducerConfig extends ProducerConfig {
+
+    private boolean idempotent;
+    private Integer lingerMilliseconds;
+    private Integer batchSizeBytes;
+    private String compressionType;
+    private String transactionalId;
+
+    public boolean isIdempotent() {
+        return idempotent;
+    }
+
+    public void setIdempotent(boolean idempotent) {
+        this.idempotent = idempotent;
+    }
+
+    public Integer getLingerMilliseconds() {
+        return lingerMilliseconds;
+    }
+
+    public void setLingerMilliseconds(Integer lingerMilliseconds) {
+        this.lingerMilliseconds = lingerMilliseconds;
+    }
+
+    public Integer getBatchSizeBytes() {
+        return batchSizeBytes;
+    }
+
+    public void setBatchSizeBytes(Integer batchSizeBytes) {
+        this.batchSizeBytes = batchSizeBytes;
+    }
+
+    public String getCompressionType() {
+        return compressionType;
+    }
+
+    public void setCompressionType(String compressionType) {
+        this.compressionType = compressionType;
+    }
+
+    public String getTransactionalId() {
+        return transactionalId;
+    }
+
+    public void setTransactionalId(String transactionalId) {
+        this.transactionalId = transactionalId;
+    }
+}
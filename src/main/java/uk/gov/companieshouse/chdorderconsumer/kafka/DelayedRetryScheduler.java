@@ -0,0 +1,196 @@
+package uk.gov.companieshouse.chdorderconsumer.kafka;
+
+import java.time.Duration;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.common.TopicPartition;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.kafka.config.KafkaListenerEndpointRegistry;
+import org.springframework.kafka.listener.ContainerPartitionPausingBackOffManager;
+import org.springframework.kafka.listener.ContainerPausingBackOffHandler;
+import org.springframework.kafka.listener.KafkaBackoffException;
+import org.springframework.kafka.listener.KafkaConsumerBackoffManager;
+import org.springframework.kafka.listener.ListenerContainerPauseService;
+import org.springframework.kafka.support.KafkaHeaders;
+import org.springframework.messaging.Message;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+import org.springframework.stereotype.Component;
+
+import uk.gov.companieshouse.orders.items.ChdItemOrdered;
+
+/**
+ * Retries messages that failed with a retryable error after an exponential backoff with jitter, without
+ * holding them in memory or blocking the consumer for the backoff. The record of a message backed off is
+ * handed back to its container by the {@link KafkaConsumerBackoffManager}, as the delay-tier retry records
+ * are: only its partition is paused for the backoff and a {@link KafkaBackoffException} is thrown, for the
+ * container's error handler to seek back to it. The other partitions of the consumer carry on meanwhile, and
+ * the offset of the record is not committed before it has been retried. The retry state of a record backed
+ * off is kept in a bounded {@link RetryLedger} until the record is received again. A message that cannot be
+ * backed off because the ledger is full, or because the application is stopping, is republished for failover
+ * processing instead.
+ */
+@Component
+public class DelayedRetryScheduler implements SmartLifecycle, DisposableBean {
+
+    /** Stop after the listener containers so that no more records are backed off once stopping. */
+    private static final int PHASE = Integer.MAX_VALUE - 200;
+    private static final String THREAD_NAME_PREFIX = "chd-retry-";
+    private static final int MAX_BACKOFF_EXPONENT = 30;
+
+    private final long initialBackoffMillis;
+    private final long maxBackoffMillis;
+    private final double jitter;
+    private final RetryLedger<RecordPosition, BackedOffRetry> ledger;
+    private final Duration ledgerSweepInterval;
+    private final ThreadPoolTaskScheduler scheduler;
+    private final KafkaConsumerBackoffManager backOffManager;
+
+    private volatile ScheduledFuture<?> ledgerSweep;
+    private volatile boolean running;
+
+    public DelayedRetryScheduler(KafkaListenerEndpointRegistry registry,
+            @Value("${uk.gov.companieshouse.chdorderconsumer.retry.initial-backoff:PT1S}") Duration initialBackoff,
+            @Value("${uk.gov.companieshouse.chdorderconsumer.retry.max-backoff:PT30S}") Duration maxBackoff,
+            @Value("${uk.gov.companieshouse.chdorderconsumer.retry.jitter:0.2}") double jitter,
+            @Value("${uk.gov.companieshouse.chdorderconsumer.retry.threads:2}") int threads,
+            MeterRegistry meterRegistry,
+            @Value("${uk.gov.companieshouse.chdorderconsumer.retry.ledger.capacity:10000}") int ledgerCapacity,
+            @Value("${uk.gov.companieshouse.chdorderconsumer.retry.ledger.ttl:PT15M}") Duration ledgerTtl) {
+        this.initialBackoffMillis = initialBackoff.toMillis();
+        this.maxBackoffMillis = maxBackoff.toMillis();
+        this.jitter = jitter;
+        this.ledger = new RetryLedger<>(meterRegistry, ledgerCapacity, ledgerTtl);
+        this.ledgerSweepInterval = Duration.ofMillis(Math.max(1L, ledgerTtl.toMillis() / 2));
+        this.scheduler = new ThreadPoolTaskScheduler();
+        this.scheduler.setPoolSize(threads);
+        this.scheduler.setThreadNamePrefix(THREAD_NAME_PREFIX);
+        this.scheduler.initialize();
+        this.backOffManager = new ContainerPartitionPausingBackOffManager(registry,
+                new ContainerPausingBackOffHandler(new ListenerContainerPauseService(registry, scheduler)));
+    }
+
+    /**
+     * Backs the record of a message off: records its retry state, pauses its partition for the backoff and
+     * throws a {@link KafkaBackoffException} for the container to seek back to it. Only a message received by
+     * a record listener, carrying the consumer it was received by, can be backed off.
+     *
+     * @param message      the message that failed processing
+     * @param listenerId   the id of the listener the message was received by
+     * @param retryHeaders the retry state of the message, including the failure
+     * @param topicAttempt the number of attempts that have failed on its topic so far, starting at 1
+     * @return false if the message could not be backed off, and should be republished instead; the method
+     *         does not return otherwise
+     * @throws KafkaBackoffException once the message has been backed off
+     */
+    public boolean backOff(final Message<ChdItemOrdered> message, final String listenerId,
+                           final RetryHeaders retryHeaders, final int topicAttempt) {
+        final RecordPosition position = RecordPosition.of(message);
+        final Consumer<?, ?> consumer = message.getHeaders().get(KafkaHeaders.CONSUMER, Consumer.class);
+        if (!running || position == null || consumer == null
+                || !ledger.add(position, new BackedOffRetry(retryHeaders, topicAttempt))) {
+            return false;
+        }
+        backOffManager.backOffIfNecessary(backOffManager.createContext(
+                System.currentTimeMillis() + backoffMillis(topicAttempt), listenerId, position.partition(),
+                consumer));
+        // not backed off after all, its backoff having already elapsed
+        ledger.remove(position);
+        return false;
+    }
+
+    /**
+     * Restores the retry state of a message whose record was backed off, once it is received again.
+     *
+     * @param message the message received
+     * @return a copy of the message carrying its retry state, or the message itself if it was not backed off
+     */
+    public Message<ChdItemOrdered> resume(final Message<ChdItemOrdered> message) {
+        final RecordPosition position = RecordPosition.of(message);
+        final BackedOffRetry backedOffRetry = position == null ? null : ledger.claim(position);
+        if (backedOffRetry == null) {
+            return message;
+        }
+        return backedOffRetry.retryHeaders().applyTo(message, backedOffRetry.topicAttempt());
+    }
+
+    /**
+     * Calculates the delay before the next attempt: the initial backoff doubled for every attempt that has
+     * failed after the first, capped at the maximum backoff, then spread by up to ± `jitter` of itself.
+     *
+     * @param attempt the number of attempts that have failed so far, starting at 1
+     * @return the delay in milliseconds
+     */
+    long backoffMillis(int attempt) {
+        final int exponent = Math.min(Math.max(attempt - 1, 0), MAX_BACKOFF_EXPONENT);
+        final long backoff = Math.min(maxBackoffMillis, initialBackoffMillis << exponent);
+        final double spread = jitter * (2 * ThreadLocalRandom.current().nextDouble() - 1);
+        return Math.max(0L, Math.round(backoff * (1 + spread)));
+    }
+
+    /**
+     * @return the number of messages backed off and not yet received again
+     */
+    public int getBackedOffCount() {
+        return ledger.size();
+    }
+
+    @Override
+    public void start() {
+        ledgerSweep = scheduler.scheduleWithFixedDelay(ledger::evictExpired, ledgerSweepInterval);
+        running = true;
+    }
+
+    /**
+     * Forgets the retry state of the records backed off, which are consumed again from their committed offsets
+     * on the next start. The scheduler itself is kept until destroyed, so that the partitions paused for a
+     * backoff are still resumed.
+     */
+    @Override
+    public void stop() {
+        running = false;
+        if (ledgerSweep != null) {
+            ledgerSweep.cancel(false);
+        }
+        ledger.drain();
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public int getPhase() {
+        return PHASE;
+    }
+
+    @Override
+    public void destroy() {
+        scheduler.shutdown();
+    }
+
+    /**
+     * The position of a record, which a record backed off is received again at.
+     */
+    private record RecordPosition(TopicPartition partition, long offset) {
+
+        static RecordPosition of(Message<ChdItemOrdered> message) {
+            final Object topic = message.getHeaders().get(KafkaHeaders.RECEIVED_TOPIC);
+            final Object partition = message.getHeaders().get(KafkaHeaders.RECEIVED_PARTITION);
+            final Object offset = message.getHeaders().get(KafkaHeaders.OFFSET);
+            if (topic == null || partition == null || offset == null) {
+                return null;
+            }
+            return new RecordPosition(new TopicPartition(topic.toString(), Integer.parseInt(partition.toString())),
+                    Long.parseLong(offset.toString()));
+        }
+    }
+
+    private record BackedOffRetry(RetryHeaders retryHeaders, int topicAttempt) {
+    }
+}
@@ -0,0 +1,273 @@
+package uk.gov.companieshouse.chdorderconsumer.kafka;
+
+import static uk.gov.companieshouse.chdorderconsumer.logging.LoggingUtils.APPLICATION_NAME_SPACE;
+
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.kafka.config.KafkaListenerEndpointRegistry;
+import org.springframework.kafka.core.ConsumerFactory;
+import org.springframework.kafka.listener.MessageListenerContainer;
+import org.springframework.kafka.support.KafkaHeaders;
+import org.springframework.messaging.Message;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import uk.gov.companieshouse.chdorderconsumer.logging.LoggingUtils;
+import uk.gov.companieshouse.logging.Logger;
+import uk.gov.companieshouse.orders.items.ChdItemOrdered;
+
+/**
+ * Replays the `chd-item-ordered-error` topic when the application runs in error mode. The end offset of each
+ * partition is snapshotted when error mode starts, and every partition is replayed up to its own snapshot,
+ * in parallel across the error listener's consumers and at most at `error-replay.rate` messages a second.
+ * A partition is paused once it reaches its snapshot, and the error listener once every partition has, so
+ * messages published to the error topic during the replay are left for the next one. Records past the
+ * snapshot that were fetched in the same poll as the last ones replayed are not accepted, and the error
+ * listeners leave them out of the offsets they commit, so the next replay starts from the snapshot. Progress
+ * is logged every `error-replay.progress-interval` and published as the `chd.error.replay.remaining` metric.
+ */
+@Component
+public class ErrorReplayEngine implements SmartLifecycle {
+
+    private static final Logger LOGGER = LoggingUtils.getLogger();
+
+    private static final String CHD_ITEM_ORDERED_TOPIC_ERROR = "chd-item-ordered-error";
+    private static final String CHD_ITEM_ORDERED_GROUP_ERROR =
+            APPLICATION_NAME_SPACE + "-" + CHD_ITEM_ORDERED_TOPIC_ERROR;
+    private static final String REMAINING_METRIC = "chd.error.replay.remaining";
+    private static final String THREAD_NAME_PREFIX = "chd-error-replay-";
+
+    /** Start before the listener endpoint registry so that offsets are snapshotted before replay begins. */
+    private static final int PHASE = Integer.MAX_VALUE - 200;
+    private static final Duration METADATA_TIMEOUT = Duration.ofSeconds(10);
+
+    private final KafkaListenerEndpointRegistry registry;
+    private final RepublishBackpressure backpressure;
+    private final ConsumerFactory<String, ChdItemOrdered> consumerFactory;
+    private final boolean errorMode;
+    private final Throttle throttle;
+    private final long progressIntervalMillis;
+
+    private final Map<TopicPartition, Long> endOffsets = new ConcurrentHashMap<>();
+    private final Map<TopicPartition, AtomicLong> positions = new ConcurrentHashMap<>();
+    private final Set<TopicPartition> completedPartitions = ConcurrentHashMap.newKeySet();
+    private final AtomicLong replayed = new AtomicLong();
+    private ScheduledExecutorService progressReporter;
+    private volatile boolean running;
+    private volatile boolean complete;
+
+    public ErrorReplayEngine(KafkaListenerEndpointRegistry registry,
+            RepublishBackpressure backpressure,
+            ConsumerFactory<String, ChdItemOrdered> consumerFactory,
+            MeterRegistry meterRegistry,
+            @Value("${uk.gov.companieshouse.chdorderconsumer.error-consumer:false}") boolean errorMode,
+            @Value("${uk.gov.companieshouse.chdorderconsumer.error-replay.rate:0}") double rate,
+            @Value("${uk.gov.companieshouse.chdorderconsumer.error-replay.progress-interval:PT30S}")
+            Duration progressInterval) {
+        this.registry = registry;
+        this.backpressure = backpressure;
+        this.consumerFactory = consumerFactory;
+        this.errorMode = errorMode;
+        this.throttle = new Throttle(rate);
+        this.progressIntervalMillis = progressInterval.toMillis();
+        Gauge.builder(REMAINING_METRIC, this, ErrorReplayEngine::getRemaining)
+                .description("Messages of the error topic still to be replayed")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Decides whether a message received from the error topic is part of the replay, waiting for the
+     * configured rate if it is. Marks its partition complete once its snapshot offset is reached.
+     *
+     * @param message the message received from the error topic
+     * @return whether to process the message
+     */
+    public boolean accept(final Message<ChdItemOrdered> message) {
+        final TopicPartition partition = new TopicPartition(
+                String.valueOf(message.getHeaders().get(KafkaHeaders.RECEIVED_TOPIC)),
+                Integer.parseInt(String.valueOf(message.getHeaders().get(KafkaHeaders.RECEIVED_PARTITION))));
+        final long offset = Long.parseLong(String.valueOf(message.getHeaders().get(KafkaHeaders.OFFSET)));
+        if (!isReplayed(partition, offset)) {
+            return false;
+        }
+        throttle.acquire();
+        advance(partition, offset);
+        replayed.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Accounts for a record of the error topic that is not processed, having been filtered out before it
+     * reached the error listener or being a poison pill, so that its partition is still marked complete once
+     * its snapshot offset is reached. Skipped records are not throttled.
+     *
+     * @param consumerRecord the record skipped
+     * @return whether the record is part of the replay, and so can be committed
+     */
+    public boolean skip(final ConsumerRecord<?, ?> consumerRecord) {
+        final TopicPartition partition = new TopicPartition(consumerRecord.topic(), consumerRecord.partition());
+        if (!isReplayed(partition, consumerRecord.offset())) {
+            return false;
+        }
+        advance(partition, consumerRecord.offset());
+        return true;
+    }
+
+    private boolean isReplayed(final TopicPartition partition, final long offset) {
+        final Long endOffset = endOffsets.get(partition);
+        if (endOffset == null || offset >= endOffset) {
+            completePartition(partition);
+            return false;
+        }
+        return true;
+    }
+
+    private void advance(final TopicPartition partition, final long offset) {
+        positions.computeIfAbsent(partition, tp -> new AtomicLong()).set(offset + 1);
+        if (offset + 1 >= endOffsets.get(partition)) {
+            completePartition(partition);
+        }
+    }
+
+    /**
+     * @return the number of messages still to be replayed across all partitions
+     */
+    public long getRemaining() {
+        long remaining = 0;
+        for (Map.Entry<TopicPartition, Long> endOffset : endOffsets.entrySet()) {
+            final AtomicLong position = positions.get(endOffset.getKey());
+            remaining += Math.max(0, endOffset.getValue() - (position == null ? 0 : position.get()));
+        }
+        return remaining;
+    }
+
+    public boolean isComplete() {
+        return complete;
+    }
+
+    @Override
+    public void start() {
+        running = true;
+        if (!errorMode) {
+            return;
+        }
+        snapshotOffsets();
+        progressReporter = Executors.newSingleThreadScheduledExecutor(new CustomizableThreadFactory(THREAD_NAME_PREFIX));
+        progressReporter.scheduleWithFixedDelay(this::logProgress, progressIntervalMillis, progressIntervalMillis,
+                TimeUnit.MILLISECONDS);
+        endOffsets.forEach((partition, endOffset) -> {
+            if (positions.get(partition).get() >= endOffset) {
+                completePartition(partition);
+            }
+        });
+        checkComplete();
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        if (progressReporter != null) {
+            progressReporter.shutdownNow();
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public int getPhase() {
+        return PHASE;
+    }
+
+    /**
+     * Records the end offset of each partition of the error topic, and the committed offset of the error
+     * consumer group it will be replayed from. A partition without a committed offset is treated as having
+     * nothing to replay, as the consumer starts such a partition from its end.
+     */
+    private void snapshotOffsets() {
+        try (Consumer<String, ChdItemOrdered> consumer =
+                     consumerFactory.createConsumer(CHD_ITEM_ORDERED_GROUP_ERROR, "-replay-snapshot")) {
+            final List<PartitionInfo> partitionInfos =
+                    consumer.partitionsFor(CHD_ITEM_ORDERED_TOPIC_ERROR, METADATA_TIMEOUT);
+            final Set<TopicPartition> partitions = new HashSet<>();
+            if (partitionInfos != null) {
+                partitionInfos.forEach(info -> partitions.add(new TopicPartition(info.topic(), info.partition())));
+            }
+            final Map<TopicPartition, Long> ends = consumer.endOffsets(partitions, METADATA_TIMEOUT);
+            final Map<TopicPartition, OffsetAndMetadata> committed = consumer.committed(partitions, METADATA_TIMEOUT);
+            for (TopicPartition partition : partitions) {
+                final long endOffset = ends.getOrDefault(partition, 0L);
+                final OffsetAndMetadata committedOffset = committed.get(partition);
+                endOffsets.put(partition, endOffset);
+                positions.put(partition, new AtomicLong(committedOffset == null ? endOffset : committedOffset.offset()));
+            }
+        }
+
+        Map<String, Object> logMap = LoggingUtils.createLogMap();
+        logMap.put(LoggingUtils.TOPIC, CHD_ITEM_ORDERED_TOPIC_ERROR);
+        logMap.put(LoggingUtils.PARTITION_COUNT, endOffsets.size());
+        logMap.put(LoggingUtils.REMAINING, getRemaining());
+        LOGGER.info("Error topic replay starting", logMap);
+    }
+
+    private void completePartition(TopicPartition partition) {
+        if (!completedPartitions.add(partition)) {
+            return;
+        }
+        for (MessageListenerContainer container : registry.getListenerContainers()) {
+            if (container.getAssignedPartitions() != null && container.getAssignedPartitions().contains(partition)) {
+                container.pausePartition(partition);
+            }
+        }
+        checkComplete();
+    }
+
+    private synchronized void checkComplete() {
+        if (!complete && completedPartitions.containsAll(endOffsets.keySet())) {
+            complete = true;
+            pauseErrorListeners();
+            logProgress();
+            LOGGER.info("Error topic replay complete, pausing error consumer", LoggingUtils.createLogMap());
+        }
+    }
+
+    private void pauseErrorListeners() {
+        for (MessageListenerContainer container : registry.getListenerContainers()) {
+            final String[] topics = container.getContainerProperties().getTopics();
+            if (topics != null && List.of(topics).contains(CHD_ITEM_ORDERED_TOPIC_ERROR)) {
+                // held through the backpressure, so that it is not resumed once republishing catches up
+                backpressure.holdPaused(container);
+            }
+        }
+    }
+
+    private void logProgress() {
+        Map<String, Object> logMap = LoggingUtils.createLogMap();
+        logMap.put(LoggingUtils.TOPIC, CHD_ITEM_ORDERED_TOPIC_ERROR);
+        logMap.put(LoggingUtils.REPLAYED, replayed.get());
+        logMap.put(LoggingUtils.REMAINING, getRemaining());
+        logMap.put(LoggingUtils.PARTITIONS_COMPLETE, completedPartitions.size());
+        logMap.put(LoggingUtils.PARTITION_COUNT, endOffsets.size());
+        LOGGER.info("Error topic replay progress", logMap);
+    }
+}
@@ -0,0 +1,96 @@
+package uk.gov.companieshouse.chdorderconsumer.kafka;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaNormalization;
+import org.apache.avro.message.SchemaStore;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import uk.gov.companieshouse.chdorderconsumer.logging.LoggingUtils;
+import uk.gov.companieshouse.logging.Logger;
+import uk.gov.companieshouse.orders.items.ChdItemOrdered;
+
+/**
+ * Finds the schemas `chd-item-ordered` values written in Avro single-object encoding were written with, by
+ * the fingerprint the encoding starts with. Schemas are read from the `*.avsc` files of a local directory,
+ * alongside the schema of the `ChdItemOrdered` class itself. When a fingerprint is not found the directory
+ * is read again, at most once every `schema-store.reload-interval`, so that schemas added during a rollout
+ * are picked up without a restart.
+ */
+@Component
+public class FileSchemaStore implements SchemaStore {
+
+    private static final Logger LOGGER = LoggingUtils.getLogger();
+    private static final String SCHEMA_FILES = "*.avsc";
+
+    private final Path directory;
+    private final long reloadIntervalMillis;
+    private final Map<Long, Schema> schemas = new ConcurrentHashMap<>();
+    private volatile long lastLoadedMillis;
+
+    public FileSchemaStore(
+            @Value("${uk.gov.companieshouse.chdorderconsumer.schema-store.path:#{null}}") Path directory,
+            @Value("${uk.gov.companieshouse.chdorderconsumer.schema-store.reload-interval:PT30S}")
+            Duration reloadInterval) {
+        this.directory = directory;
+        this.reloadIntervalMillis = reloadInterval.toMillis();
+        add(ChdItemOrdered.getClassSchema());
+        load();
+    }
+
+    @Override
+    public Schema findByFingerprint(long fingerprint) {
+        final Schema schema = schemas.get(fingerprint);
+        if (schema != null || System.currentTimeMillis() - lastLoadedMillis < reloadIntervalMillis) {
+            return schema;
+        }
+        load();
+        return schemas.get(fingerprint);
+    }
+
+    /**
+     * @param schema a schema
+     * @return the fingerprint single-object encoding identifies the schema by
+     */
+    static long fingerprint(Schema schema) {
+        return SchemaNormalization.parsingFingerprint64(schema);
+    }
+
+    private void add(Schema schema) {
+        schemas.putIfAbsent(fingerprint(schema), schema);
+    }
+
+    private synchronized void load() {
+        lastLoadedMillis = System.currentTimeMillis();
+        if (directory == null || !Files.isDirectory(directory)) {
+            return;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SCHEMA_FILES)) {
+            for (Path file : files) {
+                loadSchema(file);
+            }
+        } catch (IOException ex) {
+            Map<String, Object> logMap = LoggingUtils.createLogMap();
+            logMap.put(LoggingUtils.SCHEMA_FILE, directory.toString());
+            LOGGER.error("Error reading schema store", ex, logMap);
+        }
+    }
+
+    private void loadSchema(Path file) {
+        try {
+            add(new Schema.Parser().parse(file.toFile()));
+        } catch (IOException | RuntimeException ex) {
+            Map<String, Object> logMap = LoggingUtils.createLogMap();
+            logMap.put(LoggingUtils.SCHEMA_FILE, file.toString());
+            LOGGER.error("Error reading schema file", ex, logMap);
+        }
+    }
+}
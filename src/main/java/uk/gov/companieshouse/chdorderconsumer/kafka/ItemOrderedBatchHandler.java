@@ -0,0 +1,145 @@
+package uk.gov.companieshouse.chdorderconsumer.kafka;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.springframework.kafka.support.converter.MessagingMessageConverter;
+import org.springframework.messaging.Message;
+import org.springframework.stereotype.Component;
+
+import uk.gov.companieshouse.chdorderconsumer.service.ItemOrderedProcessorService;
+import uk.gov.companieshouse.orders.items.ChdItemOrdered;
+
+/**
+ * Handles the polls received by the batch listeners. The records of a poll are converted to messages, records
+ * whose value could not be deserialized being handed to the {@link PoisonPillRecoverer} instead, and the
+ * messages processed in parallel by the {@link ItemOrderedBatchProcessor}, each through the per-message handler
+ * of the listener. In transactional mode the messages republished while processing a poll are published
+ * together with its offsets in one transaction by the {@link TransactionalRepublisher}.
+ */
+@Component
+public class ItemOrderedBatchHandler {
+
+    private static final MessagingMessageConverter MESSAGE_CONVERTER = ChdItemOrderedDeserializer.messageConverter();
+
+    private final ItemOrderedProcessorService processor;
+    private final ItemOrderedBatchProcessor batchProcessor;
+    private final ListenerReplayService replayService;
+    private final ErrorReplayEngine errorReplayEngine;
+    private final TransactionalRepublisher transactionalRepublisher;
+    private final PoisonPillRecoverer poisonPillRecoverer;
+
+    public ItemOrderedBatchHandler(ItemOrderedProcessorService processor,
+                                   ItemOrderedBatchProcessor batchProcessor,
+                                   ListenerReplayService replayService,
+                                   ErrorReplayEngine errorReplayEngine,
+                                   TransactionalRepublisher transactionalRepublisher,
+                                   PoisonPillRecoverer poisonPillRecoverer) {
+        this.processor = processor;
+        this.batchProcessor = batchProcessor;
+        this.replayService = replayService;
+        this.errorReplayEngine = errorReplayEngine;
+        this.transactionalRepublisher = transactionalRepublisher;
+        this.poisonPillRecoverer = poisonPillRecoverer;
+    }
+
+    /**
+     * Handles a poll of the main or retry topic.
+     *
+     * @param consumerRecords the records of the poll
+     * @param consumer        the consumer the poll was received by
+     * @param handler         the per-message handler
+     */
+    public void handle(final List<ConsumerRecord<String, ChdItemOrdered>> consumerRecords,
+                       final Consumer<?, ?> consumer,
+                       final java.util.function.Consumer<Message<ChdItemOrdered>> handler) {
+        handleBatch(consumerRecords, toMessages(consumerRecords), consumer, handler);
+    }
+
+    /**
+     * Handles a poll of the error topic. Only the messages replayed, as decided by the
+     * {@link ErrorReplayEngine}, are processed, and only the offsets of the records replayed are committed, in
+     * the transaction republishing them in transactional mode, so that records past the end of the replay
+     * fetched in the same poll are left for the next replay.
+     *
+     * @param consumerRecords the records of the poll
+     * @param consumer        the consumer the poll was received by
+     * @param handler         the per-message handler
+     */
+    public void handleErrorReplay(final List<ConsumerRecord<String, ChdItemOrdered>> consumerRecords,
+                                  final Consumer<?, ?> consumer,
+                                  final java.util.function.Consumer<Message<ChdItemOrdered>> handler) {
+        final List<ConsumerRecord<String, ChdItemOrdered>> replayedRecords = new ArrayList<>(consumerRecords.size());
+        final List<Message<ChdItemOrdered>> messages = new ArrayList<>(consumerRecords.size());
+        for (ConsumerRecord<String, ChdItemOrdered> consumerRecord : consumerRecords) {
+            if (PoisonPillRecoverer.isPoisonPill(consumerRecord)) {
+                if (errorReplayEngine.skip(consumerRecord)) {
+                    poisonPillRecoverer.recover(consumerRecord);
+                    replayedRecords.add(consumerRecord);
+                }
+                continue;
+            }
+            final Message<ChdItemOrdered> message = toMessage(consumerRecord);
+            if (errorReplayEngine.accept(message)) {
+                replayedRecords.add(consumerRecord);
+                messages.add(message);
+            }
+        }
+        handleBatch(replayedRecords, messages, consumer, handler);
+        if (!transactionalRepublisher.isEnabled() && !replayedRecords.isEmpty()) {
+            consumer.commitSync(TransactionalRepublisher.offsetsToCommit(replayedRecords));
+        }
+    }
+
+    /**
+     * Handles processing of the messages received in a single poll. Each message goes through the handler, so
+     * per-message retry and error routing is unchanged. Messages skipped by a replay in progress are not
+     * processed. The filing histories of the messages are looked up together first.
+     */
+    private void handleBatch(final List<ConsumerRecord<String, ChdItemOrdered>> consumerRecords,
+                             final List<Message<ChdItemOrdered>> messages,
+                             final Consumer<?, ?> consumer,
+                             final java.util.function.Consumer<Message<ChdItemOrdered>> handler) {
+        final List<Message<ChdItemOrdered>> processed = messages.stream().filter(replayService::onMessage).toList();
+        processor.prefetchFilingHistories(processed.stream().map(Message::getPayload).toList());
+        if (transactionalRepublisher.isEnabled()) {
+            transactionalRepublisher.processInTransaction(consumerRecords, consumer,
+                    () -> batchProcessor.process(processed, handler));
+        } else {
+            batchProcessor.process(processed, handler);
+        }
+    }
+
+    /**
+     * Converts the records of a poll to messages. Records whose value could not be deserialized are handed to
+     * the {@link PoisonPillRecoverer} instead.
+     *
+     * @param consumerRecords
+     * @return the messages of the records that could be deserialized
+     */
+    private List<Message<ChdItemOrdered>> toMessages(final List<ConsumerRecord<String, ChdItemOrdered>> consumerRecords) {
+        final List<Message<ChdItemOrdered>> messages = new ArrayList<>(consumerRecords.size());
+        for (ConsumerRecord<String, ChdItemOrdered> consumerRecord : consumerRecords) {
+            if (PoisonPillRecoverer.isPoisonPill(consumerRecord)) {
+                poisonPillRecoverer.recover(consumerRecord);
+            } else {
+                messages.add(toMessage(consumerRecord));
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * Converts a record received by a listener taking `ConsumerRecord`s to the message the per-message handler
+     * expects.
+     *
+     * @param consumerRecord
+     * @return the message, with the `kafka_` headers of the record
+     */
+    @SuppressWarnings("unchecked")
+    static Message<ChdItemOrdered> toMessage(final ConsumerRecord<String, ChdItemOrdered> consumerRecord) {
+        return (Message<ChdItemOrdered>) MESSAGE_CONVERTER.toMessage(consumerRecord, null, null, ChdItemOrdered.class);
+    }
+}
@@ -0,0 +1,70 @@
+package uk.gov.companieshouse.chdorderconsumer.kafka;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.messaging.Message;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import uk.gov.companieshouse.orders.items.ChdItemOrdered;
+
+/**
+ * Processes the messages of a batch listener poll in parallel on a bounded worker pool, keeping messages
+ * with the same {@link OrderingKey} in order. The calling (consumer) thread waits for every message in the
+ * batch to be handled before returning, so that the container only commits the batch once all of its
+ * messages have been dealt with. The handler runs on several threads at once, so it must not keep retry
+ * or other per-message state in unsynchronised fields: the retry state of a message travels in its
+ * {@link RetryHeaders}.
+ */
+@Component
+public class ItemOrderedBatchProcessor implements DisposableBean {
+
+    private static final String THREAD_NAME_PREFIX = "chd-batch-";
+
+    private final ExecutorService executor;
+    private final KeyOrderedExecutor keyOrderedExecutor;
+    private final OrderingKey orderingKey;
+
+    public ItemOrderedBatchProcessor(
+            @Value("${uk.gov.companieshouse.chdorderconsumer.batch.parallelism:8}") int parallelism,
+            @Value("${uk.gov.companieshouse.chdorderconsumer.parallel.ordering:KEY}") OrderingKey orderingKey) {
+        this.executor = Executors.newFixedThreadPool(parallelism,
+                new CustomizableThreadFactory(THREAD_NAME_PREFIX));
+        this.keyOrderedExecutor = new KeyOrderedExecutor(executor, Integer.MAX_VALUE);
+        this.orderingKey = orderingKey;
+    }
+
+    /**
+     * Hands each message to the handler on the worker pool and blocks until all of them have completed.
+     * The handler is expected to deal with its own per-message failures (retry and error routing).
+     *
+     * @param messages the messages received in the poll
+     * @param handler  the per-message handler
+     */
+    public void process(final List<Message<ChdItemOrdered>> messages,
+                        final Consumer<Message<ChdItemOrdered>> handler) {
+        final List<CompletableFuture<Void>> completions = new ArrayList<>(messages.size());
+        try {
+            for (Message<ChdItemOrdered> message : messages) {
+                completions.add(keyOrderedExecutor.submit(orderingKey.resolve(message),
+                        () -> handler.accept(message)));
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted dispatching batch", ex);
+        }
+        CompletableFuture.allOf(completions.toArray(CompletableFuture[]::new)).join();
+    }
+
+    @Override
+    public void destroy() {
+        executor.shutdown();
+    }
+}
@@ -7,15 +7,17 @@ import static uk.gov.companieshouse.chdorderconsumer.logging.LoggingUtils.ORDER_
 import static uk.gov.companieshouse.chdorderconsumer.logging.LoggingUtils.PAYMENT_REFERENCE;
 import static uk.gov.companieshouse.chdorderconsumer.logging.LoggingUtils.logIfNotNull;
 
-import java.util.Date;
-import java.util.HashMap;
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutionException;
 
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
 import org.apache.kafka.common.TopicPartition;
 import org.springframework.kafka.annotation.KafkaListener;
-import org.springframework.kafka.config.KafkaListenerEndpointRegistry;
 import org.springframework.kafka.listener.ConsumerSeekAware;
+import org.springframework.kafka.listener.KafkaBackoffException;
+import org.springframework.kafka.support.Acknowledgment;
 import org.springframework.kafka.support.KafkaHeaders;
 import org.springframework.lang.NonNull;
 import org.springframework.messaging.MessageHeaders;
@@ -25,10 +27,6 @@ import uk.gov.companieshouse.chdorderconsumer.exception.DuplicateErrorException;
 import uk.gov.companieshouse.chdorderconsumer.exception.RetryableErrorException;
 import uk.gov.companieshouse.chdorderconsumer.logging.LoggingUtils;
 import uk.gov.companieshouse.chdorderconsumer.service.ItemOrderedProcessorService;
-import uk.gov.companieshouse.kafka.exceptions.SerializationException;
-import uk.gov.companieshouse.kafka.message.Message;
-import uk.gov.companieshouse.kafka.serialization.AvroSerializer;
-import uk.gov.companieshouse.kafka.serialization.SerializerFactory;
 import uk.gov.companieshouse.logging.Logger;
 import uk.gov.companieshouse.orders.items.ChdItemOrdered;
 import uk.gov.companieshouse.orders.items.Item;
@@ -38,7 +36,6 @@ public class ItemOrderedKafkaConsumer implements ConsumerSeekAware {
 
     private static final String CHD_ITEM_ORDERED_TOPIC = "chd-item-ordered";
     private static final String CHD_ITEM_ORDERED_TOPIC_RETRY = "chd-item-ordered-retry";
-    private static final String CHD_ITEM_ORDERED_KEY_RETRY = CHD_ITEM_ORDERED_TOPIC_RETRY;
     private static final String CHD_ITEM_ORDERED_TOPIC_ERROR = "chd-item-ordered-error";
 
     private static final String CHD_ITEM_ORDERED_GROUP =
@@ -47,93 +44,211 @@ public class ItemOrderedKafkaConsumer implements ConsumerSeekAware {
             APPLICATION_NAME_SPACE + "-" + CHD_ITEM_ORDERED_TOPIC_RETRY;
     private static final String CHD_ITEM_ORDERED_GROUP_ERROR =
             APPLICATION_NAME_SPACE + "-" + CHD_ITEM_ORDERED_TOPIC_ERROR;
+    private static final String BATCH_LISTENER_ID_SUFFIX = "-batch";
 
     private static final int MAX_RETRY_ATTEMPTS = 3;
-    private static final long ERROR_RECOVERY_OFFSET = 0L;
 
     private static final Logger LOGGER = LoggingUtils.getLogger();
 
-    private final Map<String, Integer> retryCount;
-
-    private final SerializerFactory serializerFactory;
-    private final ItemOrderedKafkaProducer kafkaProducer;
-    private final KafkaListenerEndpointRegistry registry;
     private final ItemOrderedProcessorService processor;
-
-    public ItemOrderedKafkaConsumer(SerializerFactory serializerFactory,
-                                    ItemOrderedKafkaProducer kafkaProducer, KafkaListenerEndpointRegistry registry,
-                                    ItemOrderedProcessorService processor) {
-        this.retryCount = new HashMap<>();
-        this.serializerFactory = serializerFactory;
-        this.kafkaProducer = kafkaProducer;
-        this.registry = registry;
+    private final ParallelRecordProcessor parallelProcessor;
+    private final ItemOrderedBatchHandler batchHandler;
+    private final ItemOrderedRepublisher republisher;
+    private final DelayedRetryScheduler retryScheduler;
+    private final RetryTiers retryTiers;
+    private final ErrorReplayEngine errorReplayEngine;
+    private final ListenerReplayService replayService;
+    private final RecordPrefilter prefilter;
+
+    public ItemOrderedKafkaConsumer(ItemOrderedProcessorService processor,
+                                    ParallelRecordProcessor parallelProcessor,
+                                    ItemOrderedBatchHandler batchHandler,
+                                    ItemOrderedRepublisher republisher,
+                                    DelayedRetryScheduler retryScheduler,
+                                    RetryTiers retryTiers,
+                                    ErrorReplayEngine errorReplayEngine,
+                                    ListenerReplayService replayService,
+                                    RecordPrefilter prefilter) {
         this.processor = processor;
+        this.parallelProcessor = parallelProcessor;
+        this.batchHandler = batchHandler;
+        this.republisher = republisher;
+        this.retryScheduler = retryScheduler;
+        this.retryTiers = retryTiers;
+        this.errorReplayEngine = errorReplayEngine;
+        this.replayService = replayService;
+        this.prefilter = prefilter;
     }
 
     /**
-     * Main listener/consumer. Calls `handleMessage` method to process received message.
+     * Main listener/consumer. Calls `handleMessage` method to process received message, on a worker
+     * thread when parallel processing is enabled.
      *
      * @param message
      */
     @KafkaListener(id = CHD_ITEM_ORDERED_GROUP, groupId = CHD_ITEM_ORDERED_GROUP,
             topics = CHD_ITEM_ORDERED_TOPIC,
-            autoStartup = "#{!${uk.gov.companieshouse.chdorderconsumer.error-consumer}}",
+            autoStartup = "#{!${uk.gov.companieshouse.chdorderconsumer.error-consumer} && "
+                    + "!${uk.gov.companieshouse.chdorderconsumer.batch-listener:false}}",
             containerFactory = "kafkaListenerContainerFactory")
     public void processChdItemOrdered(org.springframework.messaging.Message<ChdItemOrdered> message) {
-        handleMessage(message);
+        dispatchMessage(message);
     }
 
     /**
-     * Retry (`-retry`) listener/consumer. Calls `handleMessage` method to process received message.
+     * Retry (`-retry`) listener/consumer. Calls `handleMessage` method to process received message, on a
+     * worker thread when parallel processing is enabled.
      *
      * @param message
      */
     @KafkaListener(id = CHD_ITEM_ORDERED_GROUP_RETRY, groupId = CHD_ITEM_ORDERED_GROUP_RETRY,
             topics = CHD_ITEM_ORDERED_TOPIC_RETRY,
-            autoStartup = "#{!${uk.gov.companieshouse.chdorderconsumer.error-consumer}}",
+            autoStartup = "#{!${uk.gov.companieshouse.chdorderconsumer.error-consumer} && "
+                    + "!${uk.gov.companieshouse.chdorderconsumer.batch-listener:false}}",
             containerFactory = "kafkaListenerContainerFactory")
     public void processChdItemOrderedRetry(
             org.springframework.messaging.Message<ChdItemOrdered> message) {
-        handleMessage(message);
+        dispatchMessage(message);
     }
 
     /**
      * Error (`-error`) topic listener/consumer is enabled when the application is launched in error
-     * mode (IS_ERROR_QUEUE_CONSUMER=true). Receives messages up to `ERROR_RECOVERY_OFFSET` offset.
-     * Calls `handleMessage` method to process received message. If the `retryable` processor is
-     * unsuccessful with a `retryable` error, after maximum numbers of attempts allowed, the message
-     * is republished to `-retry` topic for failover processing. This listener stops accepting
-     * messages when the topic's offset reaches `ERROR_RECOVERY_OFFSET`.
+     * mode (IS_ERROR_QUEUE_CONSUMER=true). Replays the messages on the topic when error mode started,
+     * as decided by the {@link ErrorReplayEngine}. Calls `handleMessage` method to process received
+     * message, on the listener thread so that messages are acknowledged in order. If the `retryable`
+     * processor is unsuccessful with a `retryable` error, the message is republished to `-retry` topic for
+     * failover processing. Messages past the end of the replay are not acknowledged, so that the offset
+     * committed stops where the replay ended. This listener is paused once every partition has been
+     * replayed.
      *
      * @param message
      */
     @KafkaListener(id = CHD_ITEM_ORDERED_GROUP_ERROR, groupId = CHD_ITEM_ORDERED_GROUP_ERROR,
             topics = CHD_ITEM_ORDERED_TOPIC_ERROR,
-            autoStartup = "${uk.gov.companieshouse.chdorderconsumer.error-consumer}",
-            containerFactory = "kafkaListenerContainerFactory")
+            autoStartup = "#{${uk.gov.companieshouse.chdorderconsumer.error-consumer} && "
+                    + "!${uk.gov.companieshouse.chdorderconsumer.batch-listener:false}}",
+            containerFactory = "errorKafkaListenerContainerFactory")
     public void processChdItemOrderedError(
             org.springframework.messaging.Message<ChdItemOrdered> message) {
-        long offset = Long.parseLong("" + message.getHeaders().get("kafka_offset"));
-        if (offset <= ERROR_RECOVERY_OFFSET) {
+        if (!errorReplayEngine.accept(message)) {
+            return;
+        }
+        if (replayService.onMessage(message)) {
             handleMessage(message);
         } else {
-            Map<String, Object> logMap = LoggingUtils.createLogMap();
-            logMap.put(LoggingUtils.CHD_ITEM_ORDERED_GROUP_ERROR, ERROR_RECOVERY_OFFSET);
-            logMap.put(LoggingUtils.TOPIC, CHD_ITEM_ORDERED_TOPIC_ERROR);
-            LOGGER.info("Pausing error consumer as error recovery offset reached.",
-                    logMap);
-            registry.getListenerContainer(CHD_ITEM_ORDERED_GROUP_ERROR).pause();
+            acknowledge(message);
+        }
+    }
+
+    /**
+     * Batch main listener/consumer, enabled instead of the record listener when the application is
+     * launched in batch mode (`uk.gov.companieshouse.chdorderconsumer.batch-listener=true`). Processes
+     * the messages of each poll in parallel, through the {@link ItemOrderedBatchHandler}.
+     *
+     * @param consumerRecords
+     * @param consumer
+     */
+    @KafkaListener(id = CHD_ITEM_ORDERED_GROUP + BATCH_LISTENER_ID_SUFFIX, groupId = CHD_ITEM_ORDERED_GROUP,
+            topics = CHD_ITEM_ORDERED_TOPIC,
+            autoStartup = "#{!${uk.gov.companieshouse.chdorderconsumer.error-consumer} && "
+                    + "${uk.gov.companieshouse.chdorderconsumer.batch-listener:false}}",
+            containerFactory = "batchKafkaListenerContainerFactory")
+    public void processChdItemOrderedBatch(List<ConsumerRecord<String, ChdItemOrdered>> consumerRecords,
+                                           Consumer<?, ?> consumer) {
+        batchHandler.handle(consumerRecords, consumer, this::handleMessage);
+    }
+
+    /**
+     * Batch retry (`-retry`) listener/consumer, enabled instead of the record listener when the
+     * application is launched in batch mode. Processes the messages of each poll in parallel, through the
+     * {@link ItemOrderedBatchHandler}.
+     *
+     * @param consumerRecords
+     * @param consumer
+     */
+    @KafkaListener(id = CHD_ITEM_ORDERED_GROUP_RETRY + BATCH_LISTENER_ID_SUFFIX,
+            groupId = CHD_ITEM_ORDERED_GROUP_RETRY,
+            topics = CHD_ITEM_ORDERED_TOPIC_RETRY,
+            autoStartup = "#{!${uk.gov.companieshouse.chdorderconsumer.error-consumer} && "
+                    + "${uk.gov.companieshouse.chdorderconsumer.batch-listener:false}}",
+            containerFactory = "batchKafkaListenerContainerFactory")
+    public void processChdItemOrderedRetryBatch(
+            List<ConsumerRecord<String, ChdItemOrdered>> consumerRecords, Consumer<?, ?> consumer) {
+        batchHandler.handle(consumerRecords, consumer, this::handleMessage);
+    }
+
+    /**
+     * Batch error (`-error`) listener/consumer, enabled instead of the record listener when the
+     * application is launched in both error and batch mode. The messages replayed, as decided by the
+     * {@link ErrorReplayEngine}, are processed in parallel, through the {@link ItemOrderedBatchHandler}, which
+     * commits only the offsets of the records replayed.
+     *
+     * @param consumerRecords
+     * @param consumer
+     */
+    @KafkaListener(id = CHD_ITEM_ORDERED_GROUP_ERROR + BATCH_LISTENER_ID_SUFFIX,
+            groupId = CHD_ITEM_ORDERED_GROUP_ERROR,
+            topics = CHD_ITEM_ORDERED_TOPIC_ERROR,
+            autoStartup = "#{${uk.gov.companieshouse.chdorderconsumer.error-consumer} && "
+                    + "${uk.gov.companieshouse.chdorderconsumer.batch-listener:false}}",
+            containerFactory = "errorBatchKafkaListenerContainerFactory")
+    public void processChdItemOrderedErrorBatch(
+            List<ConsumerRecord<String, ChdItemOrdered>> consumerRecords, Consumer<?, ?> consumer) {
+        batchHandler.handleErrorReplay(consumerRecords, consumer, this::handleMessage);
+    }
+
+    /**
+     * Processes a message received by a record listener, either on the listener thread or, when parallel
+     * processing is enabled, on a worker thread ordered by its {@link OrderingKey}. Messages skipped by a
+     * replay in progress are not processed. The raw value of a message processed on a worker thread is copied
+     * out of the buffer it was fetched into first, so that the message does not keep the buffer alive while it
+     * waits for its turn. When filing histories are prefetched asynchronously, its filing history is looked up
+     * meanwhile. A message processed on the listener thread may be backed off for a delayed retry, and carries
+     * the retry state recorded by the {@link DelayedRetryScheduler} when it is received again.
+     *
+     * @param message
+     */
+    protected void dispatchMessage(org.springframework.messaging.Message<ChdItemOrdered> message) {
+        if (!replayService.onMessage(message)) {
+            acknowledge(message);
+            return;
+        }
+        if (parallelProcessor.isEnabled()) {
+            if (processor.prefetchesFilingHistoriesAsynchronously()) {
+                processor.prefetchFilingHistories(List.of(message.getPayload()));
+            }
+            ChdItemOrderedDeserializer.detachRawValue(message);
+            parallelProcessor.dispatch(message, this::handleMessage);
+        } else {
+            handleMessage(retryScheduler.resume(message), true);
         }
     }
 
     /**
-     * Handles processing of received message.
+     * Handles processing of received message. Items processed, or found to be duplicates, are remembered by
+     * the {@link RecordPrefilter}, so that further messages ordering them can be dropped before being decoded.
+     * A message received by a record listener is acknowledged once handled.
      *
      * @param message
      */
     protected void handleMessage(org.springframework.messaging.Message<ChdItemOrdered> message) {
+        handleMessage(message, false);
+    }
+
+    /**
+     * Handles processing of received message, backing it off for a delayed retry if `mayBackOff` and it fails
+     * with a retryable error, in which case a {@link KafkaBackoffException} is thrown instead of acknowledging
+     * it.
+     */
+    private void handleMessage(org.springframework.messaging.Message<ChdItemOrdered> message,
+                               boolean mayBackOff) {
+        processMessage(message, mayBackOff);
+        acknowledge(message);
+    }
+
+    private void processMessage(org.springframework.messaging.Message<ChdItemOrdered> message,
+                                boolean mayBackOff) {
         final ChdItemOrdered order = message.getPayload();
-        final String orderReference = order.getReference();
         final MessageHeaders headers = message.getHeaders();
         final String receivedTopic = headers.get(KafkaHeaders.RECEIVED_TOPIC).toString();
         try {
@@ -142,20 +257,40 @@ public class ItemOrderedKafkaConsumer implements ConsumerSeekAware {
             // process message
             processor.processItemOrdered(order);
 
-            // on successful processing remove counterKey from retryCount
-            if (retryCount.containsKey(orderReference)) {
-                resetRetryCount(receivedTopic + "-" + orderReference);
-            }
             logMessageProcessed(message, order);
+            markProcessed(order);
         } catch (RetryableErrorException ex) {
-            retryMessage(message, order, orderReference, receivedTopic, ex);
+            retryMessage(message, receivedTopic, ex, mayBackOff);
         } catch (DuplicateErrorException dx) {
             logMessageProcessingFailureDuplicateItem(message, dx);
+            markProcessed(order);
         } catch (Exception x) {
             logMessageProcessingFailureNonRecoverable(message, x);
         }
     }
 
+    /**
+     * Acknowledges a message received by a record listener, so that the container can commit its offset.
+     * Messages received by the batch and retry tier listeners carry no acknowledgment, as those listeners
+     * have their offsets committed for them.
+     */
+    private static void acknowledge(org.springframework.messaging.Message<ChdItemOrdered> message) {
+        final Acknowledgment acknowledgment = getAcknowledgment(message);
+        if (acknowledgment != null) {
+            acknowledgment.acknowledge();
+        }
+    }
+
+    private static Acknowledgment getAcknowledgment(org.springframework.messaging.Message<ChdItemOrdered> message) {
+        return message.getHeaders().get(KafkaHeaders.ACKNOWLEDGMENT, Acknowledgment.class);
+    }
+
+    private void markProcessed(ChdItemOrdered order) {
+        if (order.getItem() != null) {
+            prefilter.markProcessed(order.getItem().getId());
+        }
+    }
+
     protected void logMessageReceived(org.springframework.messaging.Message<ChdItemOrdered> message,
                                       ChdItemOrdered order) {
         Map<String, Object> logMap = LoggingUtils.getMessageHeadersAsMap(message);
@@ -171,81 +306,49 @@ public class ItemOrderedKafkaConsumer implements ConsumerSeekAware {
     }
 
     /**
-     * Retries a message that failed processing with a `RetryableErrorException`. Checks which topic
-     * the message was received from and whether any retry attempts remain. The message is published
-     * to the next topic for failover processing, if retries match or exceed `MAX_RETRY_ATTEMPTS`.
+     * Retries a message that failed processing with a `RetryableErrorException`. The retry state travels
+     * with the message in {@link RetryHeaders}, so routing depends only on the topic it was received from
+     * and its headers. A message from the error topic is retried straight away, in process, until it has failed
+     * `MAX_RETRY_ATTEMPTS` times there, as the replay of the error topic is already delayed and in order. A
+     * message from the main topic, or one that has failed `MAX_RETRY_ATTEMPTS` times on the retry or error
+     * topic, is republished to the next topic for failover processing by the {@link ItemOrderedRepublisher}.
+     * Otherwise, when `mayBackOff`, it is backed off by the {@link DelayedRetryScheduler} and received again
+     * after a backoff: only its partition is paused meanwhile, and its offset is not committed before then. A
+     * message processed on a worker thread or as part of a batch cannot be backed off, as the container has
+     * moved past its record, and is republished to the next topic straight away, as is a message the scheduler
+     * cannot back off. When delay-tier retry topics are configured the message is instead republished straight
+     * to the next topic of the {@link RetryTiers}.
      *
      * @param message
-     * @param order
-     * @param orderReference
      * @param receivedTopic
      * @param ex
+     * @param mayBackOff whether the message was received on the listener thread, and can be backed off
+     * @throws KafkaBackoffException if the message has been backed off
      */
     private void retryMessage(org.springframework.messaging.Message<ChdItemOrdered> message,
-                              final ChdItemOrdered order,
-                              String orderReference, String receivedTopic, RetryableErrorException ex) {
-        String nextTopic = (receivedTopic.equals(CHD_ITEM_ORDERED_TOPIC)
-                || receivedTopic.equals(CHD_ITEM_ORDERED_TOPIC_ERROR)) ? CHD_ITEM_ORDERED_TOPIC_RETRY
-                : CHD_ITEM_ORDERED_TOPIC_ERROR;
-        String counterKey = receivedTopic + "-" + orderReference;
-
-        if (receivedTopic.equals(CHD_ITEM_ORDERED_TOPIC)
-                || retryCount.getOrDefault(counterKey, 1) >= MAX_RETRY_ATTEMPTS) {
-            republishMessageToTopic(order, orderReference, receivedTopic, nextTopic);
-            if (!receivedTopic.equals(CHD_ITEM_ORDERED_TOPIC)) {
-                resetRetryCount(counterKey);
-            }
-        } else {
-            retryCount.put(counterKey, retryCount.getOrDefault(counterKey, 1) + 1);
-            logMessageProcessingFailureRecoverable(message, retryCount.get(counterKey), ex);
-            // retry
-            handleMessage(message);
+                              String receivedTopic, RetryableErrorException ex, boolean mayBackOff) {
+        final RetryHeaders retryHeaders = RetryHeaders.from(message.getHeaders()).recordFailure(receivedTopic);
+        logMessageProcessingFailureRecoverable(message, retryHeaders.attempt(), ex);
+        final int topicAttempt = RetryHeaders.getTopicAttempt(message.getHeaders()) + 1;
+        if (receivedTopic.equals(CHD_ITEM_ORDERED_TOPIC_ERROR) && topicAttempt < MAX_RETRY_ATTEMPTS) {
+            processMessage(retryHeaders.applyTo(message, topicAttempt), mayBackOff);
+            return;
         }
-    }
-
-    protected void republishMessageToTopic(final ChdItemOrdered order,
-                                           final String orderReference,
-                                           final String currentTopic,
-                                           final String nextTopic) {
-        Map<String, Object> logMap = LoggingUtils.createLogMap();
-        logIfNotNull(logMap, ORDER_REFERENCE_NUMBER, orderReference);
-        logIfNotNull(logMap, LoggingUtils.CURRENT_TOPIC, currentTopic);
-        logIfNotNull(logMap, LoggingUtils.NEXT_TOPIC, nextTopic);
-        LOGGER.info(String.format(
-                "Republishing message: \"%1$s\" received from topic: \"%2$s\" to topic: \"%3$s\"",
-                orderReference, currentTopic, nextTopic), logMap);
-        try {
-            kafkaProducer.sendMessage(createRetryMessage(order, orderReference, nextTopic));
-        } catch (ExecutionException | InterruptedException e) {
-            LOGGER.error(String.format("Error sending message: \"%1$s\" to topic: \"%2$s\"",
-                    orderReference, nextTopic), e, logMap);
-            if (e instanceof InterruptedException) {
-                Thread.currentThread().interrupt();
-            }
+        if (retryTiers.isEnabled()) {
+            republisher.republish(message, receivedTopic,
+                    retryTiers.nextTopic(receivedTopic, CHD_ITEM_ORDERED_TOPIC_ERROR), retryHeaders);
+            return;
         }
-    }
 
-    protected Message createRetryMessage(final ChdItemOrdered order,
-                                         final String orderReference,
-                                         final String topic) {
-        final Message message = new Message();
-        final AvroSerializer<ChdItemOrdered> serializer =
-                serializerFactory.getGenericRecordSerializer(ChdItemOrdered.class);
-        message.setKey(CHD_ITEM_ORDERED_KEY_RETRY);
-        try {
-            message.setValue(serializer.toBinary(order));
-        } catch (SerializationException e) {
-            Map<String, Object> logMap = LoggingUtils.createLogMap();
-            logIfNotNull(logMap, LoggingUtils.MESSAGE, orderReference);
-            logIfNotNull(logMap, LoggingUtils.TOPIC, topic);
-            logIfNotNull(logMap, LoggingUtils.OFFSET, message.getOffset());
-            LOGGER.error(String.format("Error serializing message: \"%1$s\" for topic: \"%2$s\"",
-                    orderReference, topic), e, logMap);
-        }
-        message.setTopic(topic);
-        message.setTimestamp(new Date().getTime());
+        final String nextTopic = (receivedTopic.equals(CHD_ITEM_ORDERED_TOPIC)
+                || receivedTopic.equals(CHD_ITEM_ORDERED_TOPIC_ERROR)) ? CHD_ITEM_ORDERED_TOPIC_RETRY
+                : CHD_ITEM_ORDERED_TOPIC_ERROR;
 
-        return message;
+        if (mayBackOff && receivedTopic.equals(CHD_ITEM_ORDERED_TOPIC_RETRY) && topicAttempt < MAX_RETRY_ATTEMPTS) {
+            // only returns if the message could not be backed off
+            retryScheduler.backOff(message, CHD_ITEM_ORDERED_GROUP_RETRY, retryHeaders, topicAttempt);
+        }
+        republisher.republish(message, receivedTopic, nextTopic, retryHeaders);
     }
 
     protected void logMessageProcessingFailureNonRecoverable(
@@ -271,28 +374,29 @@ public class ItemOrderedKafkaConsumer implements ConsumerSeekAware {
                 exception, logMap);
     }
 
-    /**
-     * Resets retryCount for message identified by key `counterKey`
-     *
-     * @param counterKey
-     */
-    private void resetRetryCount(String counterKey) {
-        retryCount.remove(counterKey);
-    }
-
     @Override
     public void registerSeekCallback(@NonNull ConsumerSeekCallback consumerSeekCallback) {
+        replayService.registerSeekCallback(consumerSeekCallback);
+    }
 
+    @Override
+    public void unregisterSeekCallback() {
+        replayService.unregisterSeekCallback();
     }
 
     @Override
     public void onPartitionsAssigned(@NonNull Map<TopicPartition, Long> map, @NonNull ConsumerSeekCallback consumerSeekCallback) {
+        replayService.partitionsAssigned(map.keySet());
+    }
 
+    @Override
+    public void onPartitionsRevoked(@NonNull Collection<TopicPartition> partitions) {
+        replayService.partitionsRevoked(partitions);
     }
 
     @Override
     public void onIdleContainer(@NonNull Map<TopicPartition, Long> map, @NonNull ConsumerSeekCallback consumerSeekCallback) {
-
+        replayService.partitionsIdle(map.keySet());
     }
 
     /**
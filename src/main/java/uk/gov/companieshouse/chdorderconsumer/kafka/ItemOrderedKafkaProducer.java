@@ -1,15 +1,50 @@
 package uk.gov.companieshouse.chdorderconsumer.kafka;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.kafka.KafkaClientMetrics;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import uk.gov.companieshouse.chdorderconsumer.logging.LoggingUtils;
 import uk.gov.companieshouse.kafka.message.Message;
 import uk.gov.companieshouse.kafka.producer.ProducerConfig;
 
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 
+/**
+ * Republishes messages to the retry and error topics. The producer is idempotent, so that its retries cannot
+ * duplicate a message, and batches and compresses the messages it sends, which keeps the cost of the strong
+ * acknowledgements down when every message is being republished during an outage. Messages are partitioned
+ * by key unless the round robin partitioner is configured. Its metrics are published as the
+ * `kafka.producer.*` meters.
+ */
 @Service
-public class ItemOrderedKafkaProducer extends KafkaProducer {
+public class ItemOrderedKafkaProducer extends KafkaProducer implements DisposableBean {
+
+    @Value("${uk.gov.companieshouse.chdorderconsumer.producer.idempotence:true}")
+    private boolean idempotence;
+
+    @Value("${uk.gov.companieshouse.chdorderconsumer.producer.linger-ms:20}")
+    private int lingerMilliseconds;
+
+    @Value("${uk.gov.companieshouse.chdorderconsumer.producer.batch-size:65536}")
+    private int batchSizeBytes;
+
+    @Value("${uk.gov.companieshouse.chdorderconsumer.producer.compression-type:zstd}")
+    private String compressionType;
+
+    @Value("${uk.gov.companieshouse.chdorderconsumer.producer.round-robin-partitioner:false}")
+    private boolean roundRobinPartitioner;
+
+    @Autowired(required = false)
+    private MeterRegistry meterRegistry;
+
+    private KafkaClientMetrics producerMetrics;
+
     /**
      * Sends message to Kafka topic
      * @param message message
@@ -22,8 +57,63 @@ public class ItemOrderedKafkaProducer extends KafkaProducer {
         getChKafkaProducer().send(message);
     }
 
+    /**
+     * Sends message to Kafka topic without waiting for it to be acknowledged
+     * @param message message
+     * @return a future completed once the message has been acknowledged, or exceptionally if it could not be sent
+     */
+    public CompletableFuture<RecordMetadata> sendMessageAsync(final Message message) {
+        Map<String, Object> logMap = LoggingUtils.createLogMapWithKafkaMessage(message);
+        LoggingUtils.getLogger().info("Sending message to kafka topic", logMap);
+        return getChKafkaProducer().sendAsync(message);
+    }
+
+    /**
+     * Creates a producer configured as this one is, that publishes in transactions with the transactional id
+     * given. Each transactional producer may only be used by one thread at a time, and must be closed by the
+     * caller.
+     * @param transactionalId the transactional id, unique to the producer
+     * @return the producer, with its transactions initialised
+     */
+    public ChdKafkaProducer createTransactionalProducer(final String transactionalId) {
+        final ProducerConfig config = createConfiguredProducerConfig();
+        if (config instanceof ChdProducerConfig chdProducerConfig) {
+            chdProducerConfig.setTransactionalId(transactionalId);
+        }
+        return createChKafkaProducer(config);
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        super.afterPropertiesSet();
+        if (meterRegistry != null) {
+            producerMetrics = getChKafkaProducer().bindMetrics(meterRegistry);
+        }
+    }
+
+    /**
+     * Closes the producer, which first sends the messages still lingering in its batches, and then the binder
+     * of its metrics.
+     */
+    @Override
+    public void destroy() {
+        if (getChKafkaProducer() != null) {
+            getChKafkaProducer().close();
+        }
+        if (producerMetrics != null) {
+            producerMetrics.close();
+        }
+    }
+
     @Override
     protected void modifyProducerConfig(final ProducerConfig producerConfig) {
         producerConfig.setRequestTimeoutMilliseconds(3000);
+        producerConfig.setRoundRobinPartitioner(roundRobinPartitioner);
+        if (producerConfig instanceof ChdProducerConfig chdProducerConfig) {
+            chdProducerConfig.setIdempotent(idempotence);
+            chdProducerConfig.setLingerMilliseconds(lingerMilliseconds);
+            chdProducerConfig.setBatchSizeBytes(batchSizeBytes);
+            chdProducerConfig.setCompressionType(compressionType);
+        }
     }
 }
@@ -0,0 +1,216 @@
+package uk.gov.companieshouse.chdorderconsumer.kafka;
+
+import static uk.gov.companieshouse.chdorderconsumer.logging.LoggingUtils.ORDER_REFERENCE_NUMBER;
+import static uk.gov.companieshouse.chdorderconsumer.logging.LoggingUtils.logIfNotNull;
+
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.header.Header;
+import org.springframework.kafka.support.KafkaHeaders;
+import org.springframework.stereotype.Component;
+
+import uk.gov.companieshouse.chdorderconsumer.logging.LoggingUtils;
+import uk.gov.companieshouse.kafka.exceptions.SerializationException;
+import uk.gov.companieshouse.kafka.message.Message;
+import uk.gov.companieshouse.kafka.serialization.AvroSerializer;
+import uk.gov.companieshouse.kafka.serialization.SerializerFactory;
+import uk.gov.companieshouse.logging.Logger;
+import uk.gov.companieshouse.orders.items.ChdItemOrdered;
+
+/**
+ * Republishes the messages that failed processing with a retryable error to the next topic for failover
+ * processing. Messages are sent without waiting for the broker to acknowledge them, bounded by the
+ * {@link RepublishBackpressure}, and kept in the {@link RepublishSpool} if they could not be sent. A message
+ * processed as part of a transaction is added to the transaction of its poll by the
+ * {@link TransactionalRepublisher} instead.
+ */
+@Component
+public class ItemOrderedRepublisher {
+
+    private static final Logger LOGGER = LoggingUtils.getLogger();
+
+    private final SerializerFactory serializerFactory;
+    private final ItemOrderedKafkaProducer kafkaProducer;
+    private final RepublishBackpressure republishBackpressure;
+    private final TransactionalRepublisher transactionalRepublisher;
+    private final RepublishSpool republishSpool;
+
+    public ItemOrderedRepublisher(SerializerFactory serializerFactory,
+                                  ItemOrderedKafkaProducer kafkaProducer,
+                                  RepublishBackpressure republishBackpressure,
+                                  TransactionalRepublisher transactionalRepublisher,
+                                  RepublishSpool republishSpool) {
+        this.serializerFactory = serializerFactory;
+        this.kafkaProducer = kafkaProducer;
+        this.republishBackpressure = republishBackpressure;
+        this.transactionalRepublisher = transactionalRepublisher;
+        this.republishSpool = republishSpool;
+    }
+
+    /**
+     * Republishes a message received to the next topic, forwarding the value and headers of the record
+     * consumed as they are when the message still carries them. A message processed as part of a transaction
+     * is added to the transaction rather than sent.
+     *
+     * @param message      the message that failed processing
+     * @param currentTopic the topic the message was received from
+     * @param nextTopic    the topic to republish the message to
+     * @param retryHeaders the retry state of the message, including the failure
+     */
+    public void republish(final org.springframework.messaging.Message<ChdItemOrdered> message,
+                          final String currentTopic,
+                          final String nextTopic,
+                          final RetryHeaders retryHeaders) {
+        final String orderReference = message.getPayload().getReference();
+        final Message retryMessage = createRetryMessage(message, nextTopic, retryHeaders);
+        final Map<String, Object> logMap = createRepublishLogMap(orderReference, currentTopic, nextTopic,
+                retryHeaders);
+        if (transactionalRepublisher.collect(message, retryMessage)) {
+            LOGGER.info(String.format(
+                    "Republishing message: \"%1$s\" received from topic: \"%2$s\" to topic: \"%3$s\" "
+                            + "in transaction", orderReference, currentTopic, nextTopic), logMap);
+            return;
+        }
+        send(retryMessage, orderReference, nextTopic, logMap);
+    }
+
+    /**
+     * Republishes an order to the next topic, encoding it afresh.
+     *
+     * @param order          the order that failed processing
+     * @param orderReference the reference of the order
+     * @param currentTopic   the topic the order was received from
+     * @param nextTopic      the topic to republish the order to
+     * @param retryHeaders   the retry state of the order, including the failure
+     */
+    public void republish(final ChdItemOrdered order,
+                          final String orderReference,
+                          final String currentTopic,
+                          final String nextTopic,
+                          final RetryHeaders retryHeaders) {
+        send(createRetryMessage(order, orderReference, nextTopic, retryHeaders), orderReference, nextTopic,
+                createRepublishLogMap(orderReference, currentTopic, nextTopic, retryHeaders));
+    }
+
+    /**
+     * Sends a message to the next topic without waiting for the broker to acknowledge it, so the listener
+     * thread can carry on. The number of messages in flight is bounded by the {@link RepublishBackpressure},
+     * which pauses the listeners when the limit is reached. A message that could not be sent is logged as an
+     * error once the producer has given up on it, and kept in the {@link RepublishSpool} to be sent again once
+     * Kafka is available.
+     */
+    private void send(final Message retryMessage,
+                      final String orderReference,
+                      final String nextTopic,
+                      final Map<String, Object> logMap) {
+        LOGGER.info(String.format(
+                "Republishing message: \"%1$s\" received from topic: \"%2$s\" to topic: \"%3$s\"",
+                orderReference, logMap.get(LoggingUtils.CURRENT_TOPIC), nextTopic), logMap);
+        try {
+            republishBackpressure.acquire();
+        } catch (InterruptedException e) {
+            logRepublishFailure(orderReference, nextTopic, e, logMap);
+            Thread.currentThread().interrupt();
+            republishSpool.append(retryMessage);
+            return;
+        }
+        kafkaProducer.sendMessageAsync(retryMessage).whenComplete((metadata, failure) -> {
+            republishBackpressure.release();
+            if (failure != null) {
+                logRepublishFailure(orderReference, nextTopic,
+                        failure instanceof Exception ex ? ex : new ExecutionException(failure), logMap);
+                republishSpool.append(retryMessage);
+            }
+        });
+    }
+
+    private static Map<String, Object> createRepublishLogMap(final String orderReference,
+                                                             final String currentTopic,
+                                                             final String nextTopic,
+                                                             final RetryHeaders retryHeaders) {
+        Map<String, Object> logMap = LoggingUtils.createLogMap();
+        logIfNotNull(logMap, ORDER_REFERENCE_NUMBER, orderReference);
+        logIfNotNull(logMap, LoggingUtils.CURRENT_TOPIC, currentTopic);
+        logIfNotNull(logMap, LoggingUtils.NEXT_TOPIC, nextTopic);
+        logIfNotNull(logMap, LoggingUtils.RETRY_ATTEMPT, retryHeaders.attempt());
+        logIfNotNull(logMap, LoggingUtils.ORIGIN_TOPIC, retryHeaders.originTopic());
+        return logMap;
+    }
+
+    private void logRepublishFailure(final String orderReference, final String nextTopic, final Exception e,
+                                     final Map<String, Object> logMap) {
+        LOGGER.error(String.format("Error sending message: \"%1$s\" to topic: \"%2$s\"",
+                orderReference, nextTopic), e, logMap);
+    }
+
+    /**
+     * Builds the message republished to `topic` from a message received. When the message still carries the
+     * record consumed, in the `kafka_data` header, and the record its undecoded value, in the
+     * {@link ChdItemOrderedDeserializer#RAW_VALUE_HEADER} header, that value is forwarded as is along with the
+     * headers of the record, rather than encoding the order afresh. Unless copied when the message was handed
+     * off the consumer thread, the value is only copied out of the buffer it was fetched into here. The `kafka_`
+     * headers, the raw value header and any previous retry state are not forwarded.
+     */
+    protected Message createRetryMessage(final org.springframework.messaging.Message<ChdItemOrdered> source,
+                                         final String topic,
+                                         final RetryHeaders retryHeaders) {
+        final String orderReference = source.getPayload().getReference();
+        if (!(source.getHeaders().get(KafkaHeaders.RAW_DATA) instanceof ConsumerRecord<?, ?> consumerRecord)
+                || consumerRecord.headers().lastHeader(ChdItemOrderedDeserializer.RAW_VALUE_HEADER) == null) {
+            return createRetryMessage(source.getPayload(), orderReference, topic, retryHeaders);
+        }
+        final Header rawValue = consumerRecord.headers().lastHeader(ChdItemOrderedDeserializer.RAW_VALUE_HEADER);
+        final RepublishMessage message = new RepublishMessage();
+        consumerRecord.headers().forEach(header -> {
+            if (isForwardedHeader(header.key())) {
+                message.addHeader(header.key(), header.value());
+            }
+        });
+        message.addHeaders(retryHeaders.toKafkaHeaders());
+        message.setKey(orderReference);
+        message.setValue(rawValue.value());
+        message.setTopic(topic);
+        message.setTimestamp(new Date().getTime());
+
+        return message;
+    }
+
+    private static boolean isForwardedHeader(final String name) {
+        return !name.startsWith(KafkaHeaders.PREFIX)
+                && !name.equals(ChdItemOrderedDeserializer.RAW_VALUE_HEADER)
+                && !RetryHeaders.isRetryHeader(name);
+    }
+
+    /**
+     * Builds the message republished to `topic`. The message is keyed by its order reference, so that
+     * republished messages are spread across the partitions of the topic while the messages of one order
+     * stay on the same partition.
+     */
+    protected Message createRetryMessage(final ChdItemOrdered order,
+                                         final String orderReference,
+                                         final String topic,
+                                         final RetryHeaders retryHeaders) {
+        final RepublishMessage message = new RepublishMessage();
+        message.addHeaders(retryHeaders.toKafkaHeaders());
+        final AvroSerializer<ChdItemOrdered> serializer =
+                serializerFactory.getGenericRecordSerializer(ChdItemOrdered.class);
+        message.setKey(orderReference);
+        try {
+            message.setValue(serializer.toBinary(order));
+        } catch (SerializationException e) {
+            Map<String, Object> logMap = LoggingUtils.createLogMap();
+            logIfNotNull(logMap, LoggingUtils.MESSAGE, orderReference);
+            logIfNotNull(logMap, LoggingUtils.TOPIC, topic);
+            logIfNotNull(logMap, LoggingUtils.OFFSET, message.getOffset());
+            LOGGER.error(String.format("Error serializing message: \"%1$s\" for topic: \"%2$s\"",
+                    orderReference, topic), e, logMap);
+        }
+        message.setTopic(topic);
+        message.setTimestamp(new Date().getTime());
+
+        return message;
+    }
+}
@@ -21,12 +21,21 @@ public abstract class KafkaProducer implements InitializingBean {
     @Override
     public void afterPropertiesSet() {
         LOGGER.trace("Configuring CH Kafka producer");
+        chKafkaProducer = createChKafkaProducer(createConfiguredProducerConfig());
+    }
+
+    /**
+     * Creates the producer configuration with the defaults applied and the modifications of the extending
+     * class, ready to create a producer from.
+     * @return the {@link ProducerConfig} created
+     */
+    protected ProducerConfig createConfiguredProducerConfig() {
         final ProducerConfig config = createProducerConfig();
         config.setRoundRobinPartitioner(true);
         config.setAcks(Acks.WAIT_FOR_ALL);
         config.setRetries(10);
         modifyProducerConfig(config);
-        chKafkaProducer = createChKafkaProducer(config);
+        return config;
     }
 
     /**
@@ -46,7 +55,7 @@ public abstract class KafkaProducer implements InitializingBean {
      * @return the {@link ProducerConfig} created
      */
     protected ProducerConfig createProducerConfig() {
-        final ProducerConfig config = new ProducerConfig();
+        final ProducerConfig config = new ChdProducerConfig();
         if (brokerAddresses != null && !brokerAddresses.isEmpty()) {
             config.setBrokerAddresses(brokerAddresses.split(","));
         } else {
@@ -0,0 +1,52 @@
+package uk.gov.companieshouse.chdorderconsumer.kafka;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Runs tasks on an executor so that tasks submitted with different keys run concurrently while tasks
+ * sharing a key run one after another, in submission order. The number of tasks submitted but not yet
+ * completed is bounded; {@link #submit(String, Runnable)} blocks the caller once that bound is reached.
+ */
+public class KeyOrderedExecutor {
+
+    private final Executor executor;
+    private final Semaphore inFlight;
+    private final ConcurrentHashMap<String, CompletableFuture<Void>> tails = new ConcurrentHashMap<>();
+
+    public KeyOrderedExecutor(final Executor executor, final int maxInFlight) {
+        this.executor = executor;
+        this.inFlight = new Semaphore(maxInFlight);
+    }
+
+    /**
+     * Submits a task to run after every task previously submitted with the same key has completed.
+     * A failed task does not prevent later tasks for the same key from running.
+     *
+     * @param key  the ordering key
+     * @param task the task
+     * @return a future completed when the task has run
+     * @throws InterruptedException if interrupted while waiting for in-flight capacity
+     */
+    public CompletableFuture<Void> submit(final String key, final Runnable task) throws InterruptedException {
+        inFlight.acquire();
+        final CompletableFuture<Void> next = tails.compute(key, (k, tail) ->
+                (tail == null ? CompletableFuture.<Void>completedFuture(null) : tail)
+                        .handle((result, failure) -> null)
+                        .thenRunAsync(task, executor));
+        next.whenComplete((result, failure) -> {
+            tails.remove(key, next);
+            inFlight.release();
+        });
+        return next;
+    }
+
+    /**
+     * @return the number of keys with tasks queued or running
+     */
+    public int activeKeys() {
+        return tails.size();
+    }
+}
@@ -0,0 +1,199 @@
+package uk.gov.companieshouse.chdorderconsumer.kafka;
+
+import static uk.gov.companieshouse.chdorderconsumer.logging.LoggingUtils.APPLICATION_NAME_SPACE;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.common.PartitionInfo;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.kafka.config.KafkaListenerEndpointRegistry;
+import org.springframework.kafka.core.ConsumerFactory;
+import org.springframework.kafka.listener.ConcurrentMessageListenerContainer;
+import org.springframework.kafka.listener.MessageListenerContainer;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import uk.gov.companieshouse.chdorderconsumer.logging.LoggingUtils;
+import uk.gov.companieshouse.logging.Logger;
+import uk.gov.companieshouse.orders.items.ChdItemOrdered;
+
+/**
+ * Sizes the number of consumers of each listener container from the partition count of its topics and
+ * the cores available. Containers are sized before they start, re-evaluated periodically to pick up
+ * partition expansion, and restarted when their size needs to change. Evaluations are not triggered by
+ * rebalances, as restarting a container causes one. Partition counts are read through a single metadata
+ * consumer kept for the life of the controller. The sizes picked are exposed through the
+ * `listenerconcurrency` actuator endpoint.
+ */
+@Component
+public class ListenerConcurrencyController implements SmartLifecycle {
+
+    private static final Logger LOGGER = LoggingUtils.getLogger();
+
+    /** Start before the listener endpoint registry so that containers are sized before they start. */
+    private static final int PHASE = Integer.MAX_VALUE - 200;
+    private static final Duration METADATA_TIMEOUT = Duration.ofSeconds(10);
+    private static final String THREAD_NAME_PREFIX = "chd-concurrency-";
+
+    private final KafkaListenerEndpointRegistry registry;
+    private final ConsumerFactory<String, ChdItemOrdered> consumerFactory;
+    private final int consumersPerCore;
+    private final int maxConcurrency;
+    private final long checkIntervalMillis;
+    private final int availableCores;
+
+    private final Map<String, ListenerConcurrency> decisions = new ConcurrentHashMap<>();
+    private ScheduledExecutorService scheduler;
+    private Consumer<String, ChdItemOrdered> metadataConsumer;
+    private volatile boolean running;
+
+    public ListenerConcurrencyController(KafkaListenerEndpointRegistry registry,
+            ConsumerFactory<String, ChdItemOrdered> consumerFactory,
+            @Value("${uk.gov.companieshouse.chdorderconsumer.concurrency.consumers-per-core:1}") int consumersPerCore,
+            @Value("${uk.gov.companieshouse.chdorderconsumer.concurrency.max:0}") int maxConcurrency,
+            @Value("${uk.gov.companieshouse.chdorderconsumer.concurrency.check-interval:PT5M}") Duration checkInterval) {
+        this.registry = registry;
+        this.consumerFactory = consumerFactory;
+        this.consumersPerCore = consumersPerCore;
+        this.maxConcurrency = maxConcurrency;
+        this.checkIntervalMillis = checkInterval.toMillis();
+        this.availableCores = Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Calculates the number of consumers for a container: one per partition, capped by the cores available
+     * (times `consumersPerCore`) and by `maxConcurrency` when set, and never less than one.
+     *
+     * @param partitions the number of partitions of the container's topics
+     * @return the number of consumers to run
+     */
+    int calculateConcurrency(int partitions) {
+        int cap = Math.max(1, availableCores * consumersPerCore);
+        if (maxConcurrency > 0) {
+            cap = Math.min(cap, maxConcurrency);
+        }
+        return Math.max(1, Math.min(partitions, cap));
+    }
+
+    /**
+     * @return the concurrency picked for each listener container, keyed by listener id
+     */
+    public Map<String, ListenerConcurrency> getDecisions() {
+        return Map.copyOf(decisions);
+    }
+
+    @Override
+    public void start() {
+        scheduler = Executors.newSingleThreadScheduledExecutor(new CustomizableThreadFactory(THREAD_NAME_PREFIX));
+        evaluate(false);
+        scheduler.scheduleWithFixedDelay(() -> evaluate(true), checkIntervalMillis, checkIntervalMillis,
+                TimeUnit.MILLISECONDS);
+        running = true;
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        synchronized (this) {
+            closeMetadataConsumer();
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public int getPhase() {
+        return PHASE;
+    }
+
+    /**
+     * Sizes every container, on start and then on the controller thread, one evaluation at a time as they
+     * share the metadata consumer.
+     *
+     * @param restartRunningContainers whether running containers are restarted to resize them
+     */
+    synchronized void evaluate(boolean restartRunningContainers) {
+        for (MessageListenerContainer container : registry.getListenerContainers()) {
+            if (container instanceof ConcurrentMessageListenerContainer<?, ?> concurrentContainer) {
+                try {
+                    resize(concurrentContainer, restartRunningContainers);
+                } catch (RuntimeException ex) {
+                    Map<String, Object> logMap = LoggingUtils.createLogMap();
+                    logMap.put(LoggingUtils.LISTENER_ID, container.getListenerId());
+                    LOGGER.error("Unable to evaluate listener concurrency", ex, logMap);
+                    // replace the metadata consumer in case it was left unusable
+                    closeMetadataConsumer();
+                }
+            }
+        }
+    }
+
+    private void resize(ConcurrentMessageListenerContainer<?, ?> container, boolean restartRunningContainers) {
+        String[] topics = container.getContainerProperties().getTopics();
+        if (topics == null || topics.length == 0) {
+            return;
+        }
+        int partitions = countPartitions(topics);
+        int concurrency = calculateConcurrency(partitions);
+        String listenerId = container.getListenerId();
+        decisions.put(listenerId, new ListenerConcurrency(Arrays.asList(topics), partitions, availableCores,
+                concurrency));
+        if (concurrency == container.getConcurrency()) {
+            return;
+        }
+
+        Map<String, Object> logMap = LoggingUtils.createLogMap();
+        logMap.put(LoggingUtils.LISTENER_ID, listenerId);
+        logMap.put(LoggingUtils.PARTITION_COUNT, partitions);
+        logMap.put(LoggingUtils.CONCURRENCY, concurrency);
+        if (!container.isRunning()) {
+            container.setConcurrency(concurrency);
+            LOGGER.info("Listener concurrency set", logMap);
+        } else if (restartRunningContainers && !container.isPauseRequested()) {
+            container.stop();
+            container.setConcurrency(concurrency);
+            container.start();
+            LOGGER.info("Listener restarted with new concurrency", logMap);
+        }
+    }
+
+    private int countPartitions(String[] topics) {
+        if (metadataConsumer == null) {
+            metadataConsumer = consumerFactory.createConsumer(APPLICATION_NAME_SPACE + "-concurrency", null);
+        }
+        int partitions = 0;
+        for (String topic : topics) {
+            List<PartitionInfo> partitionInfos = metadataConsumer.partitionsFor(topic, METADATA_TIMEOUT);
+            partitions += partitionInfos == null ? 0 : partitionInfos.size();
+        }
+        return partitions;
+    }
+
+    private void closeMetadataConsumer() {
+        if (metadataConsumer != null) {
+            metadataConsumer.close();
+            metadataConsumer = null;
+        }
+    }
+
+    /**
+     * The concurrency picked for a listener container and the inputs it was derived from.
+     */
+    public record ListenerConcurrency(List<String> topics, int partitions, int availableCores, int concurrency) {
+    }
+}
@@ -0,0 +1,27 @@
+package uk.gov.companieshouse.chdorderconsumer.kafka;
+
+import java.util.Map;
+
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Component;
+
+/**
+ * Actuator endpoint reporting the number of consumers the {@link ListenerConcurrencyController} picked for
+ * each listener container, together with the partition and core counts it was derived from.
+ */
+@Component
+@Endpoint(id = "listenerconcurrency")
+public class ListenerConcurrencyEndpoint {
+
+    private final ListenerConcurrencyController concurrencyController;
+
+    public ListenerConcurrencyEndpoint(ListenerConcurrencyController concurrencyController) {
+        this.concurrencyController = concurrencyController;
+    }
+
+    @ReadOperation
+    public Map<String, ListenerConcurrencyController.ListenerConcurrency> listenerConcurrency() {
+        return concurrencyController.getDecisions();
+    }
+}
@@ -0,0 +1,350 @@
+package uk.gov.companieshouse.chdorderconsumer.kafka;
+
+import static uk.gov.companieshouse.chdorderconsumer.logging.LoggingUtils.APPLICATION_NAME_SPACE;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.common.TopicPartition;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.kafka.core.ConsumerFactory;
+import org.springframework.kafka.listener.ConsumerSeekAware.ConsumerSeekCallback;
+import org.springframework.kafka.support.KafkaHeaders;
+import org.springframework.messaging.Message;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import uk.gov.companieshouse.chdorderconsumer.logging.LoggingUtils;
+import uk.gov.companieshouse.logging.Logger;
+import uk.gov.companieshouse.orders.items.ChdItemOrdered;
+
+/**
+ * Rewinds the partitions of a listener group assigned to this instance, either to a timestamp or to an offset
+ * range per partition, and reprocesses the records at a throttled rate. Uses the seek callbacks the
+ * {@link ItemOrderedKafkaConsumer} listeners' consumers register, mapped to the partitions assigned to each
+ * consumer. Seeks requested through them, from the endpoint or a worker thread, are queued and performed by
+ * the consumer thread on its next poll, as the consumer itself is not thread safe.
+ * <p>
+ * A timestamp replay reprocesses every record from the timestamp up to the committed offset of the group
+ * when the replay was requested, then carries on as normal. An offset range replay reprocesses the range
+ * then seeks back to the committed offset, skipping the records between. A replay of a partition ends early
+ * if its listener goes idle. Throughput is logged while a replay runs and reported by the `replay` actuator
+ * endpoint.
+ */
+@Component
+public class ListenerReplayService implements DisposableBean {
+
+    private static final Logger LOGGER = LoggingUtils.getLogger();
+    private static final Duration METADATA_TIMEOUT = Duration.ofSeconds(10);
+    private static final String THREAD_NAME_PREFIX = "chd-replay-";
+
+    /**
+     * The listener groups that can be replayed.
+     */
+    public enum ReplayGroup {
+        MAIN("chd-item-ordered"),
+        RETRY("chd-item-ordered-retry"),
+        ERROR("chd-item-ordered-error");
+
+        private final String topic;
+
+        ReplayGroup(String topic) {
+            this.topic = topic;
+        }
+
+        public String getTopic() {
+            return topic;
+        }
+
+        public String getGroupId() {
+            return APPLICATION_NAME_SPACE + "-" + topic;
+        }
+    }
+
+    /**
+     * An inclusive range of offsets to replay.
+     */
+    public record OffsetRange(long from, long to) {
+    }
+
+    /**
+     * The state of the current (or last) replay.
+     */
+    public record ReplayStatus(String topic, Instant startedAt, int partitions, int partitionsRemaining,
+                               long replayed, double recordsPerSecond) {
+    }
+
+    private final ConsumerFactory<String, ChdItemOrdered> consumerFactory;
+    private final double defaultRate;
+    private final Map<Thread, ConsumerSeekCallback> consumerSeekCallbacks = new ConcurrentHashMap<>();
+    private final Map<TopicPartition, ConsumerSeekCallback> seekCallbacks = new ConcurrentHashMap<>();
+    private final Map<TopicPartition, PartitionReplay> replays = new ConcurrentHashMap<>();
+    private final AtomicLong replayed = new AtomicLong();
+    private final ScheduledExecutorService reporter;
+
+    private volatile Throttle throttle = new Throttle(0);
+    private volatile String replayTopic;
+    private volatile Instant startedAt;
+    private volatile int replayPartitions;
+
+    public ListenerReplayService(ConsumerFactory<String, ChdItemOrdered> consumerFactory,
+            @Value("${uk.gov.companieshouse.chdorderconsumer.replay.default-rate:50}") double defaultRate,
+            @Value("${uk.gov.companieshouse.chdorderconsumer.replay.report-interval:PT30S}") Duration reportInterval) {
+        this.consumerFactory = consumerFactory;
+        this.defaultRate = defaultRate;
+        this.reporter = Executors.newSingleThreadScheduledExecutor(new CustomizableThreadFactory(THREAD_NAME_PREFIX));
+        this.reporter.scheduleWithFixedDelay(this::logThroughput, reportInterval.toMillis(), reportInterval.toMillis(),
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Records the seek callback a consumer registers, called on the consumer's thread.
+     */
+    public void registerSeekCallback(final ConsumerSeekCallback callback) {
+        consumerSeekCallbacks.put(Thread.currentThread(), callback);
+    }
+
+    /**
+     * Forgets the seek callback of a consumer that has stopped, called on the consumer's thread.
+     */
+    public void unregisterSeekCallback() {
+        consumerSeekCallbacks.remove(Thread.currentThread());
+    }
+
+    /**
+     * Maps the partitions assigned to a consumer, called on the consumer's thread, to the seek callback it
+     * registered.
+     */
+    public void partitionsAssigned(final Collection<TopicPartition> partitions) {
+        final ConsumerSeekCallback callback = consumerSeekCallbacks.get(Thread.currentThread());
+        if (callback != null) {
+            partitions.forEach(partition -> seekCallbacks.put(partition, callback));
+        }
+    }
+
+    /**
+     * Forgets the seek callbacks, and any replay, of partitions no longer assigned to this instance.
+     */
+    public void partitionsRevoked(final Collection<TopicPartition> partitions) {
+        partitions.forEach(partition -> {
+            seekCallbacks.remove(partition);
+            replays.remove(partition);
+        });
+    }
+
+    /**
+     * Ends the replay of partitions whose listener has gone idle, as there is nothing left to reprocess.
+     */
+    public void partitionsIdle(final Collection<TopicPartition> partitions) {
+        partitions.forEach(replays::remove);
+    }
+
+    /**
+     * Rewinds every partition of the group assigned to this instance to the first record at or after the
+     * timestamp.
+     *
+     * @param group     the listener group
+     * @param timestamp the timestamp in milliseconds since the epoch
+     * @param rate      the maximum records reprocessed per second, or null for the default
+     * @return the status of the replay started
+     */
+    public synchronized ReplayStatus replayFromTimestamp(final ReplayGroup group, final long timestamp,
+                                                         final Double rate) {
+        final Set<TopicPartition> partitions = assignedPartitions(group);
+        final Map<TopicPartition, Long> committed = committedOffsets(group, partitions);
+        startReplay(group, rate);
+        for (TopicPartition partition : partitions) {
+            final long resumeOffset = committed.getOrDefault(partition, 0L);
+            replays.put(partition, new PartitionReplay(resumeOffset - 1, resumeOffset));
+            seekCallbacks.get(partition).seekToTimestamp(partition.topic(), partition.partition(), timestamp);
+        }
+        replayPartitions = partitions.size();
+        logReplayStarted(group, partitions.size());
+        return getStatus();
+    }
+
+    /**
+     * Rewinds each partition given that is assigned to this instance to the start of its offset range.
+     *
+     * @param group  the listener group
+     * @param ranges the offset range to reprocess, by partition number
+     * @param rate   the maximum records reprocessed per second, or null for the default
+     * @return the status of the replay started
+     */
+    public synchronized ReplayStatus replayOffsets(final ReplayGroup group, final Map<Integer, OffsetRange> ranges,
+                                                   final Double rate) {
+        final Set<TopicPartition> partitions = assignedPartitions(group).stream()
+                .filter(partition -> ranges.containsKey(partition.partition()))
+                .collect(Collectors.toSet());
+        final Map<TopicPartition, Long> committed = committedOffsets(group, partitions);
+        startReplay(group, rate);
+        for (TopicPartition partition : partitions) {
+            final OffsetRange range = ranges.get(partition.partition());
+            final long resumeOffset = Math.max(committed.getOrDefault(partition, 0L), range.to() + 1);
+            replays.put(partition, new PartitionReplay(range.to(), resumeOffset));
+            seekCallbacks.get(partition).seek(partition.topic(), partition.partition(), range.from());
+        }
+        replayPartitions = partitions.size();
+        logReplayStarted(group, partitions.size());
+        return getStatus();
+    }
+
+    /**
+     * Decides whether a record received by a listener should be processed, waiting for the replay rate if it
+     * is being replayed, and moves a partition on once its replay range has been reprocessed.
+     *
+     * @param message the message received
+     * @return whether to process the message
+     */
+    public boolean onMessage(final Message<ChdItemOrdered> message) {
+        if (replays.isEmpty()) {
+            return true;
+        }
+        final Object topic = message.getHeaders().get(KafkaHeaders.RECEIVED_TOPIC);
+        final Object partitionNumber = message.getHeaders().get(KafkaHeaders.RECEIVED_PARTITION);
+        final Object offsetValue = message.getHeaders().get(KafkaHeaders.OFFSET);
+        if (topic == null || partitionNumber == null || offsetValue == null) {
+            return true;
+        }
+        final TopicPartition partition =
+                new TopicPartition(topic.toString(), Integer.parseInt(partitionNumber.toString()));
+        final PartitionReplay replay = replays.get(partition);
+        if (replay == null) {
+            return true;
+        }
+        final long offset = Long.parseLong(offsetValue.toString());
+        if (!replay.isRangeDone() && offset <= replay.lastOffset()) {
+            throttle.acquire();
+            replayed.incrementAndGet();
+            if (offset == replay.lastOffset()) {
+                finishRange(partition, replay);
+            }
+            return true;
+        }
+        if (!replay.isRangeDone()) {
+            finishRange(partition, replay);
+        }
+        if (offset < replay.resumeOffset()) {
+            // Fetched before the seek back to the resume offset took effect.
+            return false;
+        }
+        replays.remove(partition, replay);
+        return true;
+    }
+
+    public ReplayStatus getStatus() {
+        final Instant started = startedAt;
+        final long count = replayed.get();
+        final double elapsedSeconds = started == null ? 0
+                : Math.max(1, Duration.between(started, Instant.now()).toMillis()) / 1000.0;
+        return new ReplayStatus(replayTopic, started, replayPartitions, replays.size(), count,
+                elapsedSeconds == 0 ? 0 : count / elapsedSeconds);
+    }
+
+    @Override
+    public void destroy() {
+        reporter.shutdownNow();
+    }
+
+    private void finishRange(TopicPartition partition, PartitionReplay replay) {
+        replay.rangeDone = true;
+        if (replay.resumeOffset() > replay.lastOffset() + 1) {
+            final ConsumerSeekCallback callback = seekCallbacks.get(partition);
+            if (callback != null) {
+                callback.seek(partition.topic(), partition.partition(), replay.resumeOffset());
+            }
+        } else {
+            replays.remove(partition, replay);
+        }
+    }
+
+    private void startReplay(ReplayGroup group, Double rate) {
+        replays.keySet().removeIf(partition -> partition.topic().equals(group.getTopic()));
+        throttle = new Throttle(rate == null ? defaultRate : rate);
+        replayed.set(0);
+        replayTopic = group.getTopic();
+        startedAt = Instant.now();
+    }
+
+    private Set<TopicPartition> assignedPartitions(ReplayGroup group) {
+        return seekCallbacks.keySet().stream()
+                .filter(partition -> partition.topic().equals(group.getTopic()))
+                .collect(Collectors.toSet());
+    }
+
+    private Map<TopicPartition, Long> committedOffsets(ReplayGroup group, Set<TopicPartition> partitions) {
+        final Map<TopicPartition, Long> offsets = new HashMap<>();
+        if (partitions.isEmpty()) {
+            return offsets;
+        }
+        try (Consumer<String, ChdItemOrdered> consumer =
+                     consumerFactory.createConsumer(group.getGroupId(), "-replay")) {
+            consumer.committed(partitions, METADATA_TIMEOUT).forEach((partition, committed) -> {
+                if (committed != null) {
+                    offsets.put(partition, committed.offset());
+                }
+            });
+        }
+        return offsets;
+    }
+
+    private void logReplayStarted(ReplayGroup group, int partitions) {
+        Map<String, Object> logMap = LoggingUtils.createLogMap();
+        logMap.put(LoggingUtils.TOPIC, group.getTopic());
+        logMap.put(LoggingUtils.PARTITION_COUNT, partitions);
+        LOGGER.info("Replay started", logMap);
+    }
+
+    private void logThroughput() {
+        if (replays.isEmpty()) {
+            return;
+        }
+        final ReplayStatus status = getStatus();
+        Map<String, Object> logMap = LoggingUtils.createLogMap();
+        logMap.put(LoggingUtils.TOPIC, status.topic());
+        logMap.put(LoggingUtils.REPLAYED, status.replayed());
+        logMap.put(LoggingUtils.RECORDS_PER_SECOND, status.recordsPerSecond());
+        logMap.put(LoggingUtils.REMAINING, status.partitionsRemaining());
+        LOGGER.info("Replay progress", logMap);
+    }
+
+    /**
+     * The replay of a single partition: records up to `lastOffset` are reprocessed, then consumption carries
+     * on from `resumeOffset`.
+     */
+    private static final class PartitionReplay {
+
+        private final long lastOffset;
+        private final long resumeOffset;
+        private volatile boolean rangeDone;
+
+        private PartitionReplay(long lastOffset, long resumeOffset) {
+            this.lastOffset = lastOffset;
+            this.resumeOffset = resumeOffset;
+        }
+
+        long lastOffset() {
+            return lastOffset;
+        }
+
+        long resumeOffset() {
+            return resumeOffset;
+        }
+
+        boolean isRangeDone() {
+            return rangeDone;
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package uk.gov.companieshouse.chdorderconsumer.kafka;
+
+import org.springframework.kafka.support.KafkaHeaders;
+import org.springframework.messaging.Message;
+import uk.gov.companieshouse.orders.items.ChdItemOrdered;
+
+/**
+ * Identifies the messages that must be processed in order relative to one another when messages from
+ * the same partition are processed in parallel.
+ */
+public enum OrderingKey {
+
+    /**
+     * Messages sharing a Kafka record key are processed in order. Messages without a key, and messages
+     * republished to the retry and error topics, fall back to their order reference: older releases keyed
+     * every republished message with one constant key, which would have serialised them all.
+     */
+    KEY {
+        @Override
+        public String resolve(final Message<ChdItemOrdered> message) {
+            final Object topic = message.getHeaders().get(KafkaHeaders.RECEIVED_TOPIC);
+            final Object key = message.getHeaders().get(KafkaHeaders.RECEIVED_KEY);
+            if (key == null || (topic != null && !CHD_ITEM_ORDERED_TOPIC.equals(topic.toString()))) {
+                return REFERENCE.resolve(message);
+            }
+            return key.toString();
+        }
+    },
+
+    /**
+     * Messages sharing an order reference are processed in order.
+     */
+    REFERENCE {
+        @Override
+        public String resolve(final Message<ChdItemOrdered> message) {
+            return String.valueOf(message.getPayload().getReference());
+        }
+    };
+
+    private static final String CHD_ITEM_ORDERED_TOPIC = "chd-item-ordered";
+
+    public abstract String resolve(Message<ChdItemOrdered> message);
+}
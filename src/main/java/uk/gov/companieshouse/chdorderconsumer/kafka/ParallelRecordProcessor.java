@@ -0,0 +1,88 @@
+package uk.gov.companieshouse.chdorderconsumer.kafka;
+
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.kafka.support.Acknowledgment;
+import org.springframework.kafka.support.KafkaHeaders;
+import org.springframework.messaging.Message;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import uk.gov.companieshouse.chdorderconsumer.logging.LoggingUtils;
+import uk.gov.companieshouse.logging.Logger;
+import uk.gov.companieshouse.orders.items.ChdItemOrdered;
+
+/**
+ * Processes the messages of a single partition in parallel while keeping messages with the same
+ * {@link OrderingKey} in order. Enabled with `uk.gov.companieshouse.chdorderconsumer.parallel.enabled`,
+ * The record listener containers run with manual, asynchronous acknowledgements: each message is
+ * acknowledged by its handler once processed and the container only commits up to the highest offset below
+ * which every message has been acknowledged.
+ */
+@Component
+public class ParallelRecordProcessor implements DisposableBean {
+
+    private static final Logger LOGGER = LoggingUtils.getLogger();
+    private static final String THREAD_NAME_PREFIX = "chd-parallel-";
+
+    private final boolean enabled;
+    private final OrderingKey orderingKey;
+    private final ExecutorService executor;
+    private final KeyOrderedExecutor keyOrderedExecutor;
+
+    public ParallelRecordProcessor(
+            @Value("${uk.gov.companieshouse.chdorderconsumer.parallel.enabled:false}") boolean enabled,
+            @Value("${uk.gov.companieshouse.chdorderconsumer.parallel.threads:16}") int threads,
+            @Value("${uk.gov.companieshouse.chdorderconsumer.parallel.max-in-flight:500}") int maxInFlight,
+            @Value("${uk.gov.companieshouse.chdorderconsumer.parallel.ordering:KEY}") OrderingKey orderingKey) {
+        this.enabled = enabled;
+        this.orderingKey = orderingKey;
+        this.executor = Executors.newFixedThreadPool(threads, new CustomizableThreadFactory(THREAD_NAME_PREFIX));
+        this.keyOrderedExecutor = new KeyOrderedExecutor(executor, maxInFlight);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Hands the message to the handler on the worker pool, behind any in-flight message with the same
+     * ordering key. The handler acknowledges the message once it is done with it, which may be after a
+     * delayed retry; a message whose handler fails is acknowledged here. Blocks the consumer thread while the
+     * maximum number of in-flight messages is reached.
+     *
+     * @param message the message received
+     * @param handler the message handler
+     */
+    public void dispatch(final Message<ChdItemOrdered> message, final Consumer<Message<ChdItemOrdered>> handler) {
+        final Acknowledgment acknowledgment =
+                message.getHeaders().get(KafkaHeaders.ACKNOWLEDGMENT, Acknowledgment.class);
+        try {
+            keyOrderedExecutor.submit(orderingKey.resolve(message), () -> handler.accept(message))
+                    .whenComplete((result, failure) -> {
+                        if (failure != null) {
+                            Map<String, Object> logMap = LoggingUtils.getMessageHeadersAsMap(message);
+                            LOGGER.error("'chd-item-ordered' message processing failed on worker thread",
+                                    failure instanceof Exception ex ? ex : new IllegalStateException(failure),
+                                    logMap);
+                            if (acknowledgment != null) {
+                                acknowledgment.acknowledge();
+                            }
+                        }
+                    });
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted waiting to dispatch message", ex);
+        }
+    }
+
+    @Override
+    public void destroy() {
+        executor.shutdown();
+    }
+}
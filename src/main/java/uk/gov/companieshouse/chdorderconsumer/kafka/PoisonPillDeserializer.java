@@ -0,0 +1,62 @@
+package uk.gov.companieshouse.chdorderconsumer.kafka;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.serialization.Deserializer;
+import org.apache.kafka.common.utils.Utils;
+import org.springframework.kafka.support.serializer.SerializationUtils;
+
+/**
+ * Wraps the deserializer of record values so that a value that cannot be deserialized, a poison pill, does
+ * not fail the poll. The record is handed on with a null value instead, and the exception, carrying the raw
+ * value, in the {@link SerializationUtils#VALUE_DESERIALIZER_EXCEPTION_HEADER} header, as Spring's
+ * `ErrorHandlingDeserializer` does. Containers configured to check for the header route such records to the
+ * {@link PoisonPillRecoverer}.
+ *
+ * @param <T> the type of value
+ */
+public class PoisonPillDeserializer<T> implements Deserializer<T> {
+
+    private final Deserializer<T> delegate;
+
+    public PoisonPillDeserializer(Deserializer<T> delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public T deserialize(String topic, byte[] data) {
+        return delegate.deserialize(topic, data);
+    }
+
+    @Override
+    public T deserialize(String topic, Headers headers, byte[] data) {
+        try {
+            return delegate.deserialize(topic, headers, data);
+        } catch (Exception ex) {
+            SerializationUtils.deserializationException(headers, data, ex, false);
+            return null;
+        }
+    }
+
+    @Override
+    public T deserialize(String topic, Headers headers, ByteBuffer data) {
+        try {
+            return delegate.deserialize(topic, headers, data);
+        } catch (Exception ex) {
+            SerializationUtils.deserializationException(headers, Utils.toNullableArray(data), ex, false);
+            return null;
+        }
+    }
+
+    @Override
+    public void configure(Map<String, ?> configs, boolean isKey) {
+        delegate.configure(configs, isKey);
+    }
+
+    @Override
+    public void close() {
+        delegate.close();
+    }
+}
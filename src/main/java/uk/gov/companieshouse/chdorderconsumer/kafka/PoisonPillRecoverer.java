@@ -0,0 +1,175 @@
+package uk.gov.companieshouse.chdorderconsumer.kafka;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.Map;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.header.Header;
+import org.springframework.core.log.LogAccessor;
+import org.springframework.kafka.listener.ConsumerRecordRecoverer;
+import org.springframework.kafka.listener.KafkaBackoffException;
+import org.springframework.kafka.support.KafkaHeaders;
+import org.springframework.kafka.support.serializer.DeserializationException;
+import org.springframework.kafka.support.serializer.SerializationUtils;
+import org.springframework.stereotype.Component;
+
+import uk.gov.companieshouse.chdorderconsumer.exception.TransactionFailedException;
+import uk.gov.companieshouse.chdorderconsumer.logging.LoggingUtils;
+import uk.gov.companieshouse.logging.Logger;
+
+/**
+ * Recovers records the listener containers have given up on. A record whose value could not be
+ * deserialized, marked as such by the {@link PoisonPillDeserializer}, is republished as is, raw value and
+ * headers, to the error topic, with the reason it could not be deserialized in the
+ * {@link #DESERIALIZATION_ERROR_HEADER} header. A poison pill consumed from the error topic itself is only
+ * logged, so that it is not republished endlessly. A record of a retry tier that is not yet due, handed back
+ * with a {@link KafkaBackoffException}, is not recovered at all, so that the container seeks back to it. A
+ * record of a poll whose transaction could not be committed, failing with a {@link TransactionFailedException},
+ * is republished as consumed to the error topic, so that it is not lost. Any other record is logged, as the
+ * container does by default.
+ */
+@Component
+public class PoisonPillRecoverer implements ConsumerRecordRecoverer {
+
+    /** Header giving the reason the value of a record republished to the error topic could not be read. */
+    public static final String DESERIALIZATION_ERROR_HEADER = "chd_deserialization_error";
+
+    private static final String CHD_ITEM_ORDERED_TOPIC_ERROR = "chd-item-ordered-error";
+    private static final Logger LOGGER = LoggingUtils.getLogger();
+    private static final LogAccessor LOG_ACCESSOR = new LogAccessor(PoisonPillRecoverer.class);
+
+    private final ItemOrderedKafkaProducer kafkaProducer;
+    private final RepublishSpool republishSpool;
+
+    public PoisonPillRecoverer(ItemOrderedKafkaProducer kafkaProducer, RepublishSpool republishSpool) {
+        this.kafkaProducer = kafkaProducer;
+        this.republishSpool = republishSpool;
+    }
+
+    /**
+     * @param consumerRecord a record received
+     * @return whether the value of the record could not be deserialized
+     */
+    public static boolean isPoisonPill(final ConsumerRecord<?, ?> consumerRecord) {
+        return consumerRecord.value() == null
+                && consumerRecord.headers().lastHeader(SerializationUtils.VALUE_DESERIALIZER_EXCEPTION_HEADER) != null;
+    }
+
+    /**
+     * Recovers a poison pill received by a batch listener.
+     *
+     * @param consumerRecord the record, as received
+     */
+    public void recover(final ConsumerRecord<?, ?> consumerRecord) {
+        accept(consumerRecord, SerializationUtils.getExceptionFromHeader(consumerRecord,
+                SerializationUtils.VALUE_DESERIALIZER_EXCEPTION_HEADER, LOG_ACCESSOR));
+    }
+
+    @Override
+    public void accept(final ConsumerRecord<?, ?> consumerRecord, final Exception exception) {
+        final KafkaBackoffException backoffException = findCause(exception, KafkaBackoffException.class);
+        if (backoffException != null) {
+            // failing recovery leaves the record uncommitted, to be consumed again once its partition resumes
+            throw backoffException;
+        }
+        final Map<String, Object> logMap = LoggingUtils.createLogMap();
+        LoggingUtils.logIfNotNull(logMap, LoggingUtils.TOPIC, consumerRecord.topic());
+        LoggingUtils.logIfNotNull(logMap, LoggingUtils.PARTITION, consumerRecord.partition());
+        LoggingUtils.logIfNotNull(logMap, LoggingUtils.OFFSET, consumerRecord.offset());
+
+        if (findCause(exception, TransactionFailedException.class) != null) {
+            recoverFromFailedTransaction(consumerRecord, exception, logMap);
+            return;
+        }
+        final DeserializationException deserializationException =
+                findCause(exception, DeserializationException.class);
+        if (deserializationException == null) {
+            LOGGER.error("Record processing failed, skipping record", exception, logMap);
+            return;
+        }
+        final byte[] data = deserializationException.getData();
+        logMap.put(LoggingUtils.VALUE_PREVIEW,
+                ChdItemOrderedDeserializer.preview(ByteBuffer.wrap(data == null ? new byte[0] : data)));
+        if (CHD_ITEM_ORDERED_TOPIC_ERROR.equals(consumerRecord.topic())) {
+            LOGGER.error("Record value cannot be deserialized, skipping record on error topic",
+                    deserializationException, logMap);
+            return;
+        }
+        LOGGER.error("Record value cannot be deserialized, republishing record to error topic",
+                deserializationException, logMap);
+
+        sendToErrorTopic(createErrorMessage(consumerRecord, data, deserializationException));
+    }
+
+    /**
+     * Republishes a record of a poll whose transaction failed to the error topic, with its value as consumed.
+     * Poison pills have been recovered by the batch listener already.
+     */
+    private void recoverFromFailedTransaction(final ConsumerRecord<?, ?> consumerRecord, final Exception exception,
+                                              final Map<String, Object> logMap) {
+        if (isPoisonPill(consumerRecord)) {
+            return;
+        }
+        final Header rawValue = consumerRecord.headers().lastHeader(ChdItemOrderedDeserializer.RAW_VALUE_HEADER);
+        if (rawValue == null) {
+            LOGGER.error("Transaction failed and record value not available, skipping record", exception, logMap);
+            return;
+        }
+        LOGGER.error("Transaction failed, republishing record to error topic", exception, logMap);
+
+        final RepublishMessage message = new RepublishMessage();
+        for (Header header : consumerRecord.headers()) {
+            if (!header.key().startsWith(KafkaHeaders.PREFIX)
+                    && !header.key().equals(ChdItemOrderedDeserializer.RAW_VALUE_HEADER)) {
+                message.addHeader(header.key(), header.value());
+            }
+        }
+        message.setKey(consumerRecord.key() == null ? null : consumerRecord.key().toString());
+        message.setValue(rawValue.value());
+        message.setTopic(CHD_ITEM_ORDERED_TOPIC_ERROR);
+        message.setTimestamp(new Date().getTime());
+        sendToErrorTopic(message);
+    }
+
+    private void sendToErrorTopic(final RepublishMessage message) {
+        kafkaProducer.sendMessageAsync(message).whenComplete((metadata, failure) -> {
+            if (failure != null) {
+                republishSpool.append(message);
+            }
+        });
+    }
+
+    private static RepublishMessage createErrorMessage(final ConsumerRecord<?, ?> consumerRecord,
+                                                       final byte[] data,
+                                                       final DeserializationException deserializationException) {
+        final RepublishMessage message = new RepublishMessage();
+        for (Header header : consumerRecord.headers()) {
+            if (!header.key().equals(SerializationUtils.VALUE_DESERIALIZER_EXCEPTION_HEADER)
+                    && !header.key().equals(SerializationUtils.KEY_DESERIALIZER_EXCEPTION_HEADER)) {
+                message.addHeader(header.key(), header.value());
+            }
+        }
+        final Throwable reason = deserializationException.getCause() != null
+                ? deserializationException.getCause() : deserializationException;
+        message.addHeader(DESERIALIZATION_ERROR_HEADER,
+                String.valueOf(reason.getMessage()).getBytes(StandardCharsets.UTF_8));
+        message.setKey(consumerRecord.key() == null ? null : consumerRecord.key().toString());
+        message.setValue(data);
+        message.setTopic(CHD_ITEM_ORDERED_TOPIC_ERROR);
+        message.setTimestamp(new Date().getTime());
+        return message;
+    }
+
+    private static <T extends Throwable> T findCause(final Throwable exception, final Class<T> type) {
+        Throwable cause = exception;
+        while (cause != null) {
+            if (type.isInstance(cause)) {
+                return type.cast(cause);
+            }
+            cause = cause.getCause();
+        }
+        return null;
+    }
+}
@@ -0,0 +1,39 @@
+package uk.gov.companieshouse.chdorderconsumer.kafka;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.springframework.kafka.listener.adapter.RecordFilterStrategy;
+import org.springframework.stereotype.Component;
+
+import uk.gov.companieshouse.orders.items.ChdItemOrdered;
+
+/**
+ * Discards the records the {@link ChdItemOrderedDeserializer} dropped on the {@link RecordPrefilter}'s
+ * say, which reach the container with a null value and the {@link ChdItemOrderedDeserializer#PREFILTERED_HEADER}
+ * header, so that no listener is invoked with them. Records discarded from the error topic are accounted for
+ * by the {@link ErrorReplayEngine}, so that the replay still completes. Records of the error topic past the
+ * snapshot of the replay are not discarded, as the container would acknowledge them; the error listener
+ * leaves them uncommitted instead.
+ */
+@Component
+public class PrefilteredRecordFilter implements RecordFilterStrategy<String, ChdItemOrdered> {
+
+    private static final String CHD_ITEM_ORDERED_TOPIC_ERROR = "chd-item-ordered-error";
+
+    private final ErrorReplayEngine errorReplayEngine;
+
+    public PrefilteredRecordFilter(ErrorReplayEngine errorReplayEngine) {
+        this.errorReplayEngine = errorReplayEngine;
+    }
+
+    @Override
+    public boolean filter(final ConsumerRecord<String, ChdItemOrdered> consumerRecord) {
+        if (consumerRecord.value() != null
+                || consumerRecord.headers().lastHeader(ChdItemOrderedDeserializer.PREFILTERED_HEADER) == null) {
+            return false;
+        }
+        if (CHD_ITEM_ORDERED_TOPIC_ERROR.equals(consumerRecord.topic())) {
+            return errorReplayEngine.skip(consumerRecord);
+        }
+        return true;
+    }
+}
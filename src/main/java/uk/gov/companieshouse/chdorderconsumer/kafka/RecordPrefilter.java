@@ -0,0 +1,93 @@
+package uk.gov.companieshouse.chdorderconsumer.kafka;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import uk.gov.companieshouse.chdorderconsumer.logging.LoggingUtils;
+import uk.gov.companieshouse.logging.Logger;
+
+/**
+ * Decides, from the {@link ChdItemOrderedProjection} of a record value, whether the value is worth decoding
+ * in full, when enabled with `prefilter.enabled`. Values ordering an item this instance has already
+ * processed, or already found to be a duplicate, are dropped, as are items of a kind not listed in
+ * `prefilter.item-kinds`, when any are. The ids of the last `prefilter.processed-items` items processed are
+ * remembered. Values dropped are counted by reason in the `chd.prefilter.dropped` metric.
+ */
+@Component
+public class RecordPrefilter {
+
+    static final String DROPPED_METRIC = "chd.prefilter.dropped";
+    private static final String REASON_TAG = "reason";
+    private static final Logger LOGGER = LoggingUtils.getLogger();
+
+    private final boolean enabled;
+    private final Set<String> itemKinds;
+    private final Map<String, Boolean> processedItems;
+    private final Counter processedDropped;
+    private final Counter itemKindDropped;
+
+    public RecordPrefilter(MeterRegistry meterRegistry,
+            @Value("${uk.gov.companieshouse.chdorderconsumer.prefilter.enabled:false}") boolean enabled,
+            @Value("${uk.gov.companieshouse.chdorderconsumer.prefilter.item-kinds:}") List<String> itemKinds,
+            @Value("${uk.gov.companieshouse.chdorderconsumer.prefilter.processed-items:10000}")
+            int processedItemsCapacity) {
+        this.enabled = enabled;
+        this.itemKinds = Set.copyOf(itemKinds);
+        this.processedItems = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > processedItemsCapacity;
+            }
+        });
+        this.processedDropped = meterRegistry.counter(DROPPED_METRIC, REASON_TAG, "processed");
+        this.itemKindDropped = meterRegistry.counter(DROPPED_METRIC, REASON_TAG, "item-kind");
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @param projection the projection of a record value
+     * @return whether the value is to be decoded in full and processed
+     */
+    public boolean accept(final ChdItemOrderedProjection projection) {
+        if (!itemKinds.isEmpty() && !itemKinds.contains(projection.itemKind())) {
+            itemKindDropped.increment();
+            logDropped("Message dropped as its item kind is not processed", projection);
+            return false;
+        }
+        if (projection.itemId() != null && processedItems.containsKey(projection.itemId())) {
+            processedDropped.increment();
+            logDropped("Message dropped as its item has already been processed", projection);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Remembers an item as processed, so that further messages ordering it are dropped.
+     *
+     * @param itemId the id of the item
+     */
+    public void markProcessed(final String itemId) {
+        if (enabled && itemId != null) {
+            processedItems.put(itemId, Boolean.TRUE);
+        }
+    }
+
+    private static void logDropped(final String message, final ChdItemOrderedProjection projection) {
+        final Map<String, Object> logMap = LoggingUtils.createLogMap();
+        LoggingUtils.logIfNotNull(logMap, LoggingUtils.ORDER_REFERENCE_NUMBER, projection.reference());
+        LoggingUtils.logIfNotNull(logMap, LoggingUtils.ITEM_ID, projection.itemId());
+        LOGGER.debug(message, logMap);
+    }
+}
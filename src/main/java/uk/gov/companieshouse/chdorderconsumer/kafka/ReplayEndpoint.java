@@ -0,0 +1,90 @@
+package uk.gov.companieshouse.chdorderconsumer.kafka;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import org.springframework.boot.actuate.endpoint.InvalidEndpointRequestException;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Selector;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+
+import uk.gov.companieshouse.chdorderconsumer.kafka.ListenerReplayService.OffsetRange;
+import uk.gov.companieshouse.chdorderconsumer.kafka.ListenerReplayService.ReplayGroup;
+import uk.gov.companieshouse.chdorderconsumer.kafka.ListenerReplayService.ReplayStatus;
+
+/**
+ * Actuator endpoint starting a replay of a listener group (`main`, `retry` or `error`) with the
+ * {@link ListenerReplayService}, and reporting its progress. A replay is started by posting either a
+ * `timestamp` (milliseconds since the epoch) or `offsets` (comma separated `partition:from-to` ranges), and
+ * optionally a `rate` in records per second.
+ */
+@Component
+@Endpoint(id = "replay")
+public class ReplayEndpoint {
+
+    private final ListenerReplayService replayService;
+
+    public ReplayEndpoint(ListenerReplayService replayService) {
+        this.replayService = replayService;
+    }
+
+    @ReadOperation
+    public ReplayStatus status() {
+        return replayService.getStatus();
+    }
+
+    @WriteOperation
+    public ReplayStatus replay(@Selector String group, @Nullable Long timestamp, @Nullable String offsets,
+                               @Nullable Double rate) {
+        final ReplayGroup replayGroup = parseGroup(group);
+        if (timestamp != null && offsets == null) {
+            return replayService.replayFromTimestamp(replayGroup, timestamp, rate);
+        }
+        if (offsets != null && timestamp == null) {
+            return replayService.replayOffsets(replayGroup, parseOffsets(offsets), rate);
+        }
+        throw new InvalidEndpointRequestException("Either a timestamp or offsets must be given",
+                "Either a timestamp or offsets must be given");
+    }
+
+    private static ReplayGroup parseGroup(String group) {
+        try {
+            return ReplayGroup.valueOf(group.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException ex) {
+            throw new InvalidEndpointRequestException("Unknown listener group: " + group,
+                    "Unknown listener group");
+        }
+    }
+
+    /**
+     * Parses offset ranges given as `partition:from-to`, separated by commas, e.g. `0:100-250,3:40-40`.
+     */
+    static Map<Integer, OffsetRange> parseOffsets(String offsets) {
+        final Map<Integer, OffsetRange> ranges = new LinkedHashMap<>();
+        for (String range : offsets.split(",")) {
+            final String[] partitionAndOffsets = range.trim().split(":");
+            final String[] fromAndTo = partitionAndOffsets.length == 2 ? partitionAndOffsets[1].split("-") : null;
+            if (fromAndTo == null || fromAndTo.length != 2) {
+                throw new InvalidEndpointRequestException("Invalid offset range: " + range,
+                        "Offset ranges must be given as partition:from-to");
+            }
+            try {
+                final long from = Long.parseLong(fromAndTo[0].trim());
+                final long to = Long.parseLong(fromAndTo[1].trim());
+                if (from > to) {
+                    throw new InvalidEndpointRequestException("Invalid offset range: " + range,
+                            "The start of an offset range must not be after its end");
+                }
+                ranges.put(Integer.parseInt(partitionAndOffsets[0].trim()), new OffsetRange(from, to));
+            } catch (NumberFormatException ex) {
+                throw new InvalidEndpointRequestException("Invalid offset range: " + range,
+                        "Offset ranges must be given as partition:from-to");
+            }
+        }
+        return ranges;
+    }
+}
@@ -0,0 +1,145 @@
+package uk.gov.companieshouse.chdorderconsumer.kafka;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.kafka.config.KafkaListenerEndpointRegistry;
+import org.springframework.kafka.listener.MessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import uk.gov.companieshouse.chdorderconsumer.logging.LoggingUtils;
+import uk.gov.companieshouse.logging.Logger;
+
+/**
+ * Bounds the number of messages being republished asynchronously at once. When the limit is reached the
+ * running listener containers are paused, and the caller waits for a send to complete; the containers paused
+ * here are resumed once the sends in flight have dropped to half the limit. Containers paused by another
+ * component, through {@link #holdPaused(MessageListenerContainer)} or before the limit was reached, are left
+ * paused. On stop, waits up to
+ * `republish.drain-timeout` for the sends still in flight to complete.
+ */
+@Component
+public class RepublishBackpressure implements SmartLifecycle {
+
+    private static final Logger LOGGER = LoggingUtils.getLogger();
+
+    /** Stop after the listener containers and the retry scheduler, both of which may still republish. */
+    private static final int PHASE = Integer.MAX_VALUE - 300;
+
+    private final KafkaListenerEndpointRegistry registry;
+    private final int maxInFlight;
+    private final Semaphore permits;
+    private final long drainTimeoutMillis;
+
+    private final Set<MessageListenerContainer> pausedContainers = ConcurrentHashMap.newKeySet();
+    private volatile boolean running;
+
+    public RepublishBackpressure(KafkaListenerEndpointRegistry registry,
+            @Value("${uk.gov.companieshouse.chdorderconsumer.republish.max-in-flight:100}") int maxInFlight,
+            @Value("${uk.gov.companieshouse.chdorderconsumer.republish.drain-timeout:PT30S}") Duration drainTimeout) {
+        this.registry = registry;
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.permits = new Semaphore(this.maxInFlight);
+        this.drainTimeoutMillis = drainTimeout.toMillis();
+    }
+
+    /**
+     * Takes a slot for a send, pausing the listener containers and waiting for a slot to free up if every
+     * slot is taken.
+     *
+     * @throws InterruptedException if interrupted while waiting for a slot
+     */
+    public void acquire() throws InterruptedException {
+        if (permits.tryAcquire()) {
+            return;
+        }
+        pauseContainers();
+        permits.acquire();
+    }
+
+    /**
+     * Frees the slot of a completed send, resuming the listener containers paused once enough sends have
+     * completed.
+     */
+    public void release() {
+        permits.release();
+        if (!pausedContainers.isEmpty() && getInFlight() <= maxInFlight / 2) {
+            resumeContainers();
+        }
+    }
+
+    /**
+     * Pauses a container on behalf of another component, for as long as that component needs. The container is
+     * no longer resumed once the sends in flight drain, even if it had already been paused here.
+     *
+     * @param container the container to pause
+     */
+    public synchronized void holdPaused(MessageListenerContainer container) {
+        pausedContainers.remove(container);
+        container.pause();
+    }
+
+    /**
+     * @return the number of sends in flight
+     */
+    public int getInFlight() {
+        return maxInFlight - permits.availablePermits();
+    }
+
+    @Override
+    public void start() {
+        running = true;
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        try {
+            if (permits.tryAcquire(maxInFlight, drainTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                permits.release(maxInFlight);
+                return;
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        Map<String, Object> logMap = LoggingUtils.createLogMap();
+        logMap.put(LoggingUtils.IN_FLIGHT, getInFlight());
+        LOGGER.info("Stopping with republished messages still in flight", logMap);
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public int getPhase() {
+        return PHASE;
+    }
+
+    private synchronized void pauseContainers() {
+        for (MessageListenerContainer container : registry.getListenerContainers()) {
+            if (container.isRunning() && !container.isPauseRequested() && pausedContainers.add(container)) {
+                container.pause();
+            }
+        }
+        Map<String, Object> logMap = LoggingUtils.createLogMap();
+        logMap.put(LoggingUtils.IN_FLIGHT, getInFlight());
+        LOGGER.info("Pausing listeners until republished messages in flight drain", logMap);
+    }
+
+    private synchronized void resumeContainers() {
+        if (pausedContainers.isEmpty()) {
+            return;
+        }
+        pausedContainers.forEach(MessageListenerContainer::resume);
+        pausedContainers.clear();
+        LOGGER.info("Resuming listeners as republished messages in flight have drained", LoggingUtils.createLogMap());
+    }
+}
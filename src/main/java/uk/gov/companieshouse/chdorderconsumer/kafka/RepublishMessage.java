@@ -0,0 +1,26 @@
+package uk.gov.companieshouse.chdorderconsumer.kafka;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import uk.gov.companieshouse.kafka.message.Message;
+
+/**
+ * A {@link Message} republished for failover processing, carrying record headers alongside its value.
+ */
+public class RepublishMessage extends Message {
+
+    private final Map<String, byte[]> headers = new LinkedHashMap<>();
+
+    public Map<String, byte[]> getHeaders() {
+        return headers;
+    }
+
+    public void addHeader(final String name, final byte[] value) {
+        headers.put(name, value);
+    }
+
+    public void addHeaders(final Map<String, byte[]> headersToAdd) {
+        headers.putAll(headersToAdd);
+    }
+}
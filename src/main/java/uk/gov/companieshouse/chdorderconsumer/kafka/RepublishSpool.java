@@ -0,0 +1,420 @@
+package uk.gov.companieshouse.chdorderconsumer.kafka;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import uk.gov.companieshouse.chdorderconsumer.logging.LoggingUtils;
+import uk.gov.companieshouse.kafka.message.Message;
+import uk.gov.companieshouse.logging.Logger;
+
+/**
+ * Keeps the messages that could not be republished to Kafka in an append-only, memory-mapped spool file,
+ * so that they survive a broker outage and a restart rather than being dropped. Every access to the file is
+ * made on the spool's own thread: messages are handed to it to be appended, so the producer thread reporting
+ * the failure never waits on the disk, and a background drainer sends the messages spooled to their topics in
+ * order, every `spool.drain-interval`, stopping at the first that still cannot be sent. A message that has
+ * failed {@value #MAX_HEAD_ATTEMPTS} drains in a row is moved to the back of the spool, so that it cannot hold
+ * up the others. Space is reclaimed once the spool is empty, or by compacting the messages left to the start
+ * of the file when an append does not fit. The number of messages spooled is published as the
+ * `chd.republish.spool.depth` gauge.
+ * <p>
+ * The file starts with the read and write positions, followed by the records, each a length, a CRC32 and
+ * the encoded message. A record and the write position moving past it are flushed together; a record torn by
+ * a crash fails its checksum, and it and any record after it are never read.
+ * <p>
+ * The spool is disabled by default, and needs a `spool.path` on a volume that survives a restart when enabled.
+ */
+@Component
+public class RepublishSpool implements SmartLifecycle {
+
+    private static final Logger LOGGER = LoggingUtils.getLogger();
+
+    /** Start before, and stop after, the {@link RepublishBackpressure}, whose sends may still fail. */
+    private static final int PHASE = Integer.MAX_VALUE - 400;
+    private static final String THREAD_NAME = "chd-spool-";
+    private static final String DEPTH_METRIC = "chd.republish.spool.depth";
+    static final int MAX_HEAD_ATTEMPTS = 3;
+
+    private static final int READ_POSITION_INDEX = 0;
+    private static final int WRITE_POSITION_INDEX = 8;
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_OVERHEAD = 8;
+    private static final int NULL_LENGTH = -1;
+
+    private final ItemOrderedKafkaProducer kafkaProducer;
+    private final boolean enabled;
+    private final Path path;
+    private final int capacity;
+    private final long drainIntervalMillis;
+    private final AtomicInteger depth = new AtomicInteger();
+
+    // only accessed on the spool thread, once started
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private int headAttempts;
+
+    private ScheduledExecutorService spoolThread;
+    private volatile boolean running;
+
+    public RepublishSpool(ItemOrderedKafkaProducer kafkaProducer,
+            MeterRegistry meterRegistry,
+            @Value("${uk.gov.companieshouse.chdorderconsumer.spool.enabled:false}") boolean enabled,
+            @Value("${uk.gov.companieshouse.chdorderconsumer.spool.path:}") String path,
+            @Value("${uk.gov.companieshouse.chdorderconsumer.spool.capacity:67108864}") int capacity,
+            @Value("${uk.gov.companieshouse.chdorderconsumer.spool.drain-interval:PT5S}") Duration drainInterval) {
+        this.kafkaProducer = kafkaProducer;
+        this.enabled = enabled;
+        this.path = path == null || path.isBlank() ? null : Path.of(path);
+        this.capacity = Math.max(HEADER_SIZE + RECORD_OVERHEAD, capacity);
+        this.drainIntervalMillis = drainInterval.toMillis();
+        Gauge.builder(DEPTH_METRIC, depth, AtomicInteger::get)
+                .description("Messages spooled waiting to be republished")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Hands a message that could not be republished to the spool thread, to be appended to the spool and sent
+     * again by the drainer.
+     *
+     * @param message the message
+     * @return completed with whether the message was spooled; false straight away if the spool is disabled,
+     *         leaving it to the caller to report the message lost
+     */
+    public CompletableFuture<Boolean> append(final Message message) {
+        if (!enabled) {
+            return CompletableFuture.completedFuture(false);
+        }
+        final ScheduledExecutorService executor = spoolThread;
+        if (running && executor != null) {
+            try {
+                return CompletableFuture.supplyAsync(() -> spool(message), executor);
+            } catch (RejectedExecutionException ex) {
+                // stopped since, so reported as not open below
+            }
+        }
+        LOGGER.error("Message could not be spooled as the spool has stopped",
+                LoggingUtils.createLogMapWithKafkaMessage(message));
+        return CompletableFuture.completedFuture(false);
+    }
+
+    /**
+     * @return the number of messages spooled
+     */
+    public int getDepth() {
+        return depth.get();
+    }
+
+    /**
+     * Sends the messages spooled in order, removing each once sent, until the spool is empty or a message
+     * cannot be sent. A message that cannot be sent {@value #MAX_HEAD_ATTEMPTS} times in a row is moved to the
+     * back of the spool. Runs on the spool thread.
+     */
+    void drain() {
+        Message message;
+        while ((message = peek()) != null) {
+            try {
+                kafkaProducer.sendMessage(message);
+            } catch (ExecutionException | RuntimeException ex) {
+                Map<String, Object> logMap = LoggingUtils.createLogMapWithKafkaMessage(message);
+                logMap.put(LoggingUtils.SPOOL_DEPTH, depth.get());
+                LOGGER.error("Spooled message could not be republished, will retry", ex, logMap);
+                if (++headAttempts < MAX_HEAD_ATTEMPTS || depth.get() == 1 || !write(message)) {
+                    return;
+                }
+                LOGGER.info("Moved spooled message that keeps failing to the back of the spool", logMap);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            remove();
+        }
+    }
+
+    @Override
+    public synchronized void start() {
+        if (!enabled) {
+            return;
+        }
+        if (path == null) {
+            throw new IllegalStateException(
+                    "uk.gov.companieshouse.chdorderconsumer.spool.path must be set when the spool is enabled");
+        }
+        try {
+            open();
+        } catch (IOException ex) {
+            throw new IllegalStateException("Unable to open republish spool " + path, ex);
+        }
+        spoolThread = new ScheduledThreadPoolExecutor(1, new CustomizableThreadFactory(THREAD_NAME));
+        spoolThread.scheduleWithFixedDelay(this::drain, drainIntervalMillis, drainIntervalMillis,
+                TimeUnit.MILLISECONDS);
+        running = true;
+    }
+
+    /**
+     * Stops the drainer once any message being sent has been, and closes the spool once the messages handed
+     * to the spool thread have been appended.
+     */
+    @Override
+    public void stop() {
+        final ScheduledExecutorService stopping;
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            running = false;
+            stopping = spoolThread;
+        }
+        stopping.shutdown();
+        try {
+            stopping.awaitTermination(drainIntervalMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            try {
+                buffer.force();
+                channel.close();
+            } catch (IOException ex) {
+                LOGGER.error("Error closing republish spool", ex, LoggingUtils.createLogMap());
+            }
+        }
+        if (depth.get() > 0) {
+            Map<String, Object> logMap = LoggingUtils.createLogMap();
+            logMap.put(LoggingUtils.SPOOL_DEPTH, depth.get());
+            LOGGER.info("Stopping with messages still spooled, to be republished on restart", logMap);
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public int getPhase() {
+        return PHASE;
+    }
+
+    /**
+     * Maps the spool file, creating it if need be, and counts the records still to be drained. A header
+     * that does not fit the file, or a record that fails its checksum, marks the end of the readable spool.
+     */
+    private void open() throws IOException {
+        Files.createDirectories(path.toAbsolutePath().getParent());
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        final int size = (int) Math.max(capacity, channel.size());
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+
+        long readPosition = buffer.getLong(READ_POSITION_INDEX);
+        long writePosition = buffer.getLong(WRITE_POSITION_INDEX);
+        if (readPosition < HEADER_SIZE || writePosition < readPosition || writePosition > size) {
+            readPosition = HEADER_SIZE;
+            writePosition = HEADER_SIZE;
+        }
+        int records = 0;
+        long position = readPosition;
+        while (position < writePosition) {
+            final int length = buffer.getInt((int) position);
+            if (length < 0 || position + RECORD_OVERHEAD + length > writePosition
+                    || buffer.getInt((int) position + 4) != checksum((int) position + RECORD_OVERHEAD, length)) {
+                break;
+            }
+            position += RECORD_OVERHEAD + length;
+            records++;
+        }
+        buffer.putLong(READ_POSITION_INDEX, readPosition);
+        buffer.putLong(WRITE_POSITION_INDEX, position);
+        buffer.force(0, HEADER_SIZE);
+        depth.set(records);
+        headAttempts = 0;
+
+        if (records > 0) {
+            Map<String, Object> logMap = LoggingUtils.createLogMap();
+            logMap.put(LoggingUtils.SPOOL_DEPTH, records);
+            LOGGER.info("Opened republish spool with messages still to be republished", logMap);
+        }
+    }
+
+    /**
+     * Appends a message to the spool, on the spool thread.
+     */
+    private boolean spool(final Message message) {
+        final Map<String, Object> logMap = LoggingUtils.createLogMapWithKafkaMessage(message);
+        if (!write(message)) {
+            logMap.put(LoggingUtils.SPOOL_DEPTH, depth.get());
+            LOGGER.error("Message could not be spooled as the spool is full",
+                    new BufferOverflowException(), logMap);
+            return false;
+        }
+        logMap.put(LoggingUtils.SPOOL_DEPTH, depth.get());
+        LOGGER.info("Spooled message for republishing once Kafka is available", logMap);
+        return true;
+    }
+
+    /**
+     * Writes a message after the last record, compacting the spool first if it does not fit, and flushes the
+     * record and the write position moving past it with a single `force`.
+     *
+     * @return whether the message was written; it is not if it does not fit even once compacted
+     */
+    private boolean write(final Message message) {
+        if (!tryWrite(message) && (!compact() || !tryWrite(message))) {
+            return false;
+        }
+        depth.incrementAndGet();
+        return true;
+    }
+
+    private boolean tryWrite(final Message message) {
+        final int writePosition = (int) buffer.getLong(WRITE_POSITION_INDEX);
+        final ByteBuffer record = buffer.duplicate();
+        record.limit(capacity).position(writePosition + RECORD_OVERHEAD);
+        try {
+            encode(message, record);
+        } catch (BufferOverflowException ex) {
+            return false;
+        }
+        final int length = record.position() - writePosition - RECORD_OVERHEAD;
+        buffer.putInt(writePosition, length);
+        buffer.putInt(writePosition + 4, checksum(writePosition + RECORD_OVERHEAD, length));
+        buffer.putLong(WRITE_POSITION_INDEX, record.position());
+        buffer.force(0, record.position());
+        return true;
+    }
+
+    /**
+     * Moves the records left to the start of the file, reclaiming the space of the records drained before
+     * them. Only done when the records left fit in that space, so that they are never overwritten before the
+     * read position has moved to their copy.
+     *
+     * @return whether any space was reclaimed
+     */
+    private boolean compact() {
+        final int readPosition = (int) buffer.getLong(READ_POSITION_INDEX);
+        final int writePosition = (int) buffer.getLong(WRITE_POSITION_INDEX);
+        final int live = writePosition - readPosition;
+        if (readPosition == HEADER_SIZE || live > readPosition - HEADER_SIZE) {
+            return false;
+        }
+        buffer.put(HEADER_SIZE, buffer, readPosition, live);
+        buffer.force(HEADER_SIZE, live);
+        buffer.putLong(READ_POSITION_INDEX, HEADER_SIZE);
+        buffer.putLong(WRITE_POSITION_INDEX, HEADER_SIZE + live);
+        buffer.force(0, HEADER_SIZE);
+        return true;
+    }
+
+    private Message peek() {
+        if (buffer == null) {
+            return null;
+        }
+        final int readPosition = (int) buffer.getLong(READ_POSITION_INDEX);
+        if (readPosition >= buffer.getLong(WRITE_POSITION_INDEX)) {
+            return null;
+        }
+        final int length = buffer.getInt(readPosition);
+        return decode(buffer.slice(readPosition + RECORD_OVERHEAD, length));
+    }
+
+    private void remove() {
+        final int readPosition = (int) buffer.getLong(READ_POSITION_INDEX);
+        final long nextPosition = readPosition + RECORD_OVERHEAD + (long) buffer.getInt(readPosition);
+        if (nextPosition >= buffer.getLong(WRITE_POSITION_INDEX)) {
+            // empty, so start again from the beginning of the file
+            buffer.putLong(WRITE_POSITION_INDEX, HEADER_SIZE);
+            buffer.putLong(READ_POSITION_INDEX, HEADER_SIZE);
+        } else {
+            buffer.putLong(READ_POSITION_INDEX, nextPosition);
+        }
+        buffer.force(0, HEADER_SIZE);
+        depth.decrementAndGet();
+        headAttempts = 0;
+    }
+
+    private int checksum(final int index, final int length) {
+        final CRC32 crc = new CRC32();
+        crc.update(buffer.slice(index, length));
+        return (int) crc.getValue();
+    }
+
+    private static void encode(final Message message, final ByteBuffer record) {
+        putString(record, message.getTopic());
+        putString(record, message.getKey());
+        record.putLong(message.getTimestamp() == null ? NULL_LENGTH : message.getTimestamp());
+        final Map<String, byte[]> headers = message instanceof RepublishMessage republishMessage
+                ? republishMessage.getHeaders() : Map.of();
+        record.putInt(headers.size());
+        headers.forEach((name, value) -> {
+            putString(record, name);
+            putBytes(record, value);
+        });
+        putBytes(record, message.getValue());
+    }
+
+    private static Message decode(final ByteBuffer record) {
+        final RepublishMessage message = new RepublishMessage();
+        message.setTopic(getString(record));
+        message.setKey(getString(record));
+        final long timestamp = record.getLong();
+        message.setTimestamp(timestamp == NULL_LENGTH ? null : timestamp);
+        final int headerCount = record.getInt();
+        for (int header = 0; header < headerCount; header++) {
+            message.addHeader(getString(record), getBytes(record));
+        }
+        message.setValue(getBytes(record));
+        return message;
+    }
+
+    private static void putString(final ByteBuffer record, final String value) {
+        putBytes(record, value == null ? null : value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String getString(final ByteBuffer record) {
+        final byte[] bytes = getBytes(record);
+        return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void putBytes(final ByteBuffer record, final byte[] value) {
+        if (value == null) {
+            record.putInt(NULL_LENGTH);
+            return;
+        }
+        record.putInt(value.length);
+        record.put(value);
+    }
+
+    private static byte[] getBytes(final ByteBuffer record) {
+        final int length = record.getInt();
+        if (length == NULL_LENGTH) {
+            return null;
+        }
+        final byte[] bytes = new byte[length];
+        record.get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,128 @@
+package uk.gov.companieshouse.chdorderconsumer.kafka;
+
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.support.MessageBuilder;
+
+import uk.gov.companieshouse.orders.items.ChdItemOrdered;
+
+/**
+ * The retry state of a message, carried in the headers of the records republished for failover processing
+ * so that any instance can route a message without shared state.
+ *
+ * @param attempt          the number of processing attempts that have failed so far, across all topics
+ * @param firstFailureTime the time of the first failure, in milliseconds since the epoch
+ * @param originTopic      the topic the message first failed on
+ */
+public record RetryHeaders(int attempt, long firstFailureTime, String originTopic) {
+
+    public static final String RETRY_ATTEMPT = "chd_retry_attempt";
+    public static final String FIRST_FAILURE_TIME = "chd_first_failure_time";
+    public static final String ORIGIN_TOPIC = "chd_origin_topic";
+
+    /**
+     * The number of attempts that have failed on the topic the message was received from. Only ever held on
+     * the in-memory copy of a message received again after a delayed retry backoff, or retried in process
+     * from the error topic, never published.
+     */
+    public static final String TOPIC_ATTEMPT = "chd_topic_attempt";
+
+    /**
+     * Reads the retry state from the headers of a message received, defaulting to no failures so far.
+     *
+     * @param headers the message headers
+     * @return the retry state
+     */
+    public static RetryHeaders from(final MessageHeaders headers) {
+        final String originTopic = stringValue(headers.get(ORIGIN_TOPIC));
+        return new RetryHeaders(
+                (int) longValue(headers.get(RETRY_ATTEMPT), 0L),
+                longValue(headers.get(FIRST_FAILURE_TIME), 0L),
+                originTopic);
+    }
+
+    /**
+     * @param headers the message headers
+     * @return the number of attempts that have failed on the topic the message was received from
+     */
+    public static int getTopicAttempt(final MessageHeaders headers) {
+        return (int) longValue(headers.get(TOPIC_ATTEMPT), 0L);
+    }
+
+    /**
+     * @param name the name of a header
+     * @return whether the header holds retry state
+     */
+    public static boolean isRetryHeader(final String name) {
+        return RETRY_ATTEMPT.equals(name) || FIRST_FAILURE_TIME.equals(name) || ORIGIN_TOPIC.equals(name)
+                || TOPIC_ATTEMPT.equals(name);
+    }
+
+    /**
+     * Records a further failed attempt, keeping the time and topic of the first failure.
+     *
+     * @param receivedTopic the topic the message that failed was received from
+     * @return the retry state including the failure
+     */
+    public RetryHeaders recordFailure(final String receivedTopic) {
+        return new RetryHeaders(attempt + 1,
+                firstFailureTime > 0 ? firstFailureTime : System.currentTimeMillis(),
+                originTopic != null ? originTopic : receivedTopic);
+    }
+
+    /**
+     * @return the headers to publish the retry state with
+     */
+    public Map<String, byte[]> toKafkaHeaders() {
+        final Map<String, byte[]> headers = new LinkedHashMap<>();
+        headers.put(RETRY_ATTEMPT, bytes(String.valueOf(attempt)));
+        headers.put(FIRST_FAILURE_TIME, bytes(String.valueOf(firstFailureTime)));
+        headers.put(ORIGIN_TOPIC, bytes(originTopic));
+        return headers;
+    }
+
+    /**
+     * Copies the message with the retry state, and the number of attempts failed on the topic it was received
+     * from, for a retry in-process.
+     *
+     * @param message      the message that failed
+     * @param topicAttempt the number of attempts that have failed on the topic it was received from
+     * @return the copy to retry
+     */
+    public Message<ChdItemOrdered> applyTo(final Message<ChdItemOrdered> message, final int topicAttempt) {
+        return MessageBuilder.fromMessage(message)
+                .setHeader(RETRY_ATTEMPT, attempt)
+                .setHeader(FIRST_FAILURE_TIME, firstFailureTime)
+                .setHeader(ORIGIN_TOPIC, originTopic)
+                .setHeader(TOPIC_ATTEMPT, topicAttempt)
+                .build();
+    }
+
+    private static long longValue(final Object value, final long defaultValue) {
+        final String text = stringValue(value);
+        if (text == null || text.isBlank()) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(text.trim());
+        } catch (NumberFormatException ex) {
+            return defaultValue;
+        }
+    }
+
+    /** Headers received from Kafka hold their raw bytes; those set in-process hold the value itself. */
+    private static String stringValue(final Object value) {
+        if (value instanceof byte[] raw) {
+            return new String(raw, StandardCharsets.UTF_8);
+        }
+        return value == null ? null : value.toString();
+    }
+
+    private static byte[] bytes(final String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,152 @@
+package uk.gov.companieshouse.chdorderconsumer.kafka;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * The in-process record of the retry state of messages waiting to be retried. Lock-free, with a hard capacity
+ * beyond which entries are refused, and a time to live after which entries are evicted so that the state of a
+ * retry that never runs cannot be held forever. Its size, hits (entries claimed by their retry), refusals
+ * (entries not added as it is at capacity) and evictions (entries held past their time to live) are published
+ * as metrics.
+ *
+ * @param <K> the type of the keys the entries are held under
+ * @param <V> the type of the retry state held
+ */
+public class RetryLedger<K, V> {
+
+    static final String SIZE_METRIC = "chd.retry.ledger.size";
+    static final String HITS_METRIC = "chd.retry.ledger.hits";
+    static final String REFUSALS_METRIC = "chd.retry.ledger.refusals";
+    static final String EVICTIONS_METRIC = "chd.retry.ledger.evictions";
+    private static final String REASON_TAG = "reason";
+
+    private final Map<K, Entry<V>> entries = new ConcurrentHashMap<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final int capacity;
+    private final long ttlMillis;
+    private final Counter hits;
+    private final Counter refusals;
+    private final Counter expiryEvictions;
+
+    public RetryLedger(final MeterRegistry meterRegistry, final int capacity, final Duration ttl) {
+        this.capacity = capacity;
+        this.ttlMillis = ttl.toMillis();
+        Gauge.builder(SIZE_METRIC, size, AtomicInteger::get)
+                .description("Messages waiting to be retried")
+                .register(meterRegistry);
+        this.hits = meterRegistry.counter(HITS_METRIC);
+        this.refusals = meterRegistry.counter(REFUSALS_METRIC);
+        this.expiryEvictions = meterRegistry.counter(EVICTIONS_METRIC, REASON_TAG, "expired");
+    }
+
+    /**
+     * Adds an entry unless the ledger is at capacity, replacing any entry already held under its key.
+     *
+     * @param key   the key of the entry
+     * @param value the retry state
+     * @return whether the entry was added
+     */
+    public boolean add(final K key, final V value) {
+        if (size.incrementAndGet() > capacity) {
+            size.decrementAndGet();
+            refusals.increment();
+            return false;
+        }
+        if (entries.put(key, new Entry<>(value, System.currentTimeMillis())) != null) {
+            size.decrementAndGet();
+        }
+        return true;
+    }
+
+    /**
+     * Claims an entry for its retry, so that only one of its retry, its eviction or a drain ever acts on it,
+     * and counts the hit.
+     *
+     * @param key the key of the entry
+     * @return the retry state, or null if the entry is no longer held
+     */
+    public V claim(final K key) {
+        final Entry<V> entry = entries.remove(key);
+        if (entry == null) {
+            return null;
+        }
+        size.decrementAndGet();
+        hits.increment();
+        return entry.value();
+    }
+
+    /**
+     * Removes an entry that will not be retried after all, without counting a hit.
+     *
+     * @param key the key of the entry
+     * @return whether the entry was still held
+     */
+    public boolean remove(final K key) {
+        if (entries.remove(key) == null) {
+            return false;
+        }
+        size.decrementAndGet();
+        return true;
+    }
+
+    /**
+     * Evicts the entries held for longer than the time to live.
+     *
+     * @return the keys of the entries evicted
+     */
+    public List<K> evictExpired() {
+        final long cutOff = System.currentTimeMillis() - ttlMillis;
+        final List<K> evicted = new ArrayList<>();
+        entries.forEach((key, entry) -> {
+            if (entry.addedAt() < cutOff && entries.remove(key, entry)) {
+                size.decrementAndGet();
+                expiryEvictions.increment();
+                evicted.add(key);
+            }
+        });
+        return evicted;
+    }
+
+    /**
+     * Removes every entry held.
+     *
+     * @return the keys of the entries removed
+     */
+    public List<K> drain() {
+        final List<K> drained = new ArrayList<>();
+        entries.keySet().forEach(key -> {
+            if (entries.remove(key) != null) {
+                size.decrementAndGet();
+                drained.add(key);
+            }
+        });
+        return drained;
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    private record Entry<V>(V value, long addedAt) {
+
+        // Identity semantics: an entry replaced under its key must not be evicted in place of its replacement.
+        @Override
+        public boolean equals(Object other) {
+            return this == other;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(this);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package uk.gov.companieshouse.chdorderconsumer.kafka;
+
+import static uk.gov.companieshouse.chdorderconsumer.logging.LoggingUtils.APPLICATION_NAME_SPACE;
+
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.TopicPartition;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.kafka.annotation.KafkaListener;
+import org.springframework.kafka.config.KafkaListenerEndpointRegistry;
+import org.springframework.kafka.listener.ContainerPartitionPausingBackOffManager;
+import org.springframework.kafka.listener.ContainerPausingBackOffHandler;
+import org.springframework.kafka.listener.KafkaBackoffException;
+import org.springframework.kafka.listener.KafkaConsumerBackoffManager;
+import org.springframework.kafka.listener.ListenerContainerPauseService;
+import org.springframework.kafka.support.Acknowledgment;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+import org.springframework.stereotype.Service;
+
+import uk.gov.companieshouse.orders.items.ChdItemOrdered;
+
+/**
+ * Consumes the delay-tier retry topics configured in {@link RetryTiers}. A record is only processed once it
+ * is due, i.e. once the delay of its tier has elapsed since the record's timestamp. A record not yet due is
+ * handed back to the container by the {@link KafkaConsumerBackoffManager}: its partition is paused until the
+ * record is due and a {@link KafkaBackoffException} is thrown, for the container's error handler to seek
+ * back to it. Waiting for a tier therefore costs neither CPU nor calls to the CHD API, and the offset of a
+ * record is not committed before it has been processed.
+ */
+@Service
+@ConditionalOnExpression("'${uk.gov.companieshouse.chdorderconsumer.retry-tiers:}' != ''")
+public class RetryTierKafkaConsumer implements DisposableBean {
+
+    private static final String CHD_ITEM_ORDERED_GROUP_RETRY_TIERS =
+            APPLICATION_NAME_SPACE + "-chd-item-ordered-retry-tiers";
+    private static final String THREAD_NAME_PREFIX = "chd-retry-tier-";
+
+    private final ItemOrderedKafkaConsumer itemOrderedKafkaConsumer;
+    private final RetryTiers retryTiers;
+    private final ThreadPoolTaskScheduler scheduler;
+    private final KafkaConsumerBackoffManager backOffManager;
+
+    public RetryTierKafkaConsumer(ItemOrderedKafkaConsumer itemOrderedKafkaConsumer,
+                                  KafkaListenerEndpointRegistry registry, RetryTiers retryTiers) {
+        this.itemOrderedKafkaConsumer = itemOrderedKafkaConsumer;
+        this.retryTiers = retryTiers;
+        this.scheduler = new ThreadPoolTaskScheduler();
+        this.scheduler.setThreadNamePrefix(THREAD_NAME_PREFIX);
+        this.scheduler.initialize();
+        this.backOffManager = new ContainerPartitionPausingBackOffManager(registry,
+                new ContainerPausingBackOffHandler(new ListenerContainerPauseService(registry, scheduler)));
+    }
+
+    /**
+     * Delay-tier retry listener/consumer. Processes the record with `handleMessage` once it is due, and
+     * acknowledges it; otherwise backs off until it is due.
+     *
+     * @param consumerRecord
+     * @param acknowledgment
+     * @param consumer
+     */
+    @KafkaListener(id = CHD_ITEM_ORDERED_GROUP_RETRY_TIERS, groupId = CHD_ITEM_ORDERED_GROUP_RETRY_TIERS,
+            topics = "#{@retryTiers.topics}",
+            autoStartup = "#{!${uk.gov.companieshouse.chdorderconsumer.error-consumer}}",
+            containerFactory = "retryTierKafkaListenerContainerFactory")
+    public void processChdItemOrderedRetryTier(ConsumerRecord<String, ChdItemOrdered> consumerRecord,
+                                               Acknowledgment acknowledgment, Consumer<?, ?> consumer) {
+        final long dueTimestamp = consumerRecord.timestamp()
+                + retryTiers.getDelay(consumerRecord.topic()).toMillis();
+        backOffManager.backOffIfNecessary(backOffManager.createContext(dueTimestamp,
+                CHD_ITEM_ORDERED_GROUP_RETRY_TIERS,
+                new TopicPartition(consumerRecord.topic(), consumerRecord.partition()), consumer));
+        itemOrderedKafkaConsumer.handleMessage(ItemOrderedBatchHandler.toMessage(consumerRecord));
+        acknowledgment.acknowledge();
+    }
+
+    @Override
+    public void destroy() {
+        scheduler.shutdown();
+    }
+}
@@ -0,0 +1,76 @@
+package uk.gov.companieshouse.chdorderconsumer.kafka;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.convert.DurationStyle;
+import org.springframework.stereotype.Component;
+
+/**
+ * The ladder of delay-tier retry topics configured with `uk.gov.companieshouse.chdorderconsumer.retry-tiers`,
+ * e.g. `30s,5m,1h` for the topics `chd-item-ordered-retry-30s`, `chd-item-ordered-retry-5m` and
+ * `chd-item-ordered-retry-1h`. A message failing with a retryable error moves one tier up the ladder, and
+ * on to the error topic after the last tier, where the ladder ends: a message failing again when the error
+ * topic is replayed goes back to the error topic rather than round the ladder again. When no tiers are
+ * configured the single `chd-item-ordered-retry` topic is used as before.
+ */
+@Component
+public class RetryTiers {
+
+    static final String TIER_TOPIC_PREFIX = "chd-item-ordered-retry-";
+
+    private final Map<String, Duration> delays = new LinkedHashMap<>();
+    private final List<String> topics;
+
+    public RetryTiers(@Value("${uk.gov.companieshouse.chdorderconsumer.retry-tiers:}") String tiers) {
+        for (String tier : tiers.split(",")) {
+            if (!tier.isBlank()) {
+                delays.put(TIER_TOPIC_PREFIX + tier.trim(), DurationStyle.detectAndParse(tier.trim()));
+            }
+        }
+        this.topics = List.copyOf(delays.keySet());
+    }
+
+    public boolean isEnabled() {
+        return !topics.isEmpty();
+    }
+
+    /**
+     * @return the tier topics, lowest delay first
+     */
+    public String[] getTopics() {
+        return topics.toArray(String[]::new);
+    }
+
+    /**
+     * @param topic a tier topic
+     * @return the delay after which records of the tier topic are due, or {@link Duration#ZERO} when the topic
+     * is not a tier topic
+     */
+    public Duration getDelay(final String topic) {
+        return delays.getOrDefault(topic, Duration.ZERO);
+    }
+
+    /**
+     * Works out where a message that failed with a retryable error goes next: the next tier up from a tier
+     * topic, the error topic after the last tier or from the error topic itself, and the first tier from any
+     * other topic.
+     *
+     * @param receivedTopic the topic the message was received from
+     * @param errorTopic    the error topic
+     * @return the topic to republish the message to
+     */
+    public String nextTopic(final String receivedTopic, final String errorTopic) {
+        if (receivedTopic.equals(errorTopic)) {
+            return errorTopic;
+        }
+        final int tier = topics.indexOf(receivedTopic);
+        if (tier < 0) {
+            return topics.get(0);
+        }
+        return tier + 1 < topics.size() ? topics.get(tier + 1) : errorTopic;
+    }
+}
@@ -0,0 +1,54 @@
+package uk.gov.companieshouse.chdorderconsumer.kafka;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket limiting the rate at which callers proceed, allowing bursts of up to one second's worth of
+ * permits. A rate of zero or less means no limit.
+ */
+public class Throttle {
+
+    private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final double nanosPerPermit;
+    private final double maxTokens;
+    private double tokens;
+    private long lastRefillNanos;
+
+    public Throttle(final double permitsPerSecond) {
+        this.nanosPerPermit = permitsPerSecond > 0 ? NANOS_PER_SECOND / permitsPerSecond : 0;
+        this.maxTokens = Math.max(1.0, permitsPerSecond);
+        this.tokens = maxTokens;
+        this.lastRefillNanos = System.nanoTime();
+    }
+
+    /**
+     * Blocks until a permit is available.
+     */
+    public void acquire() {
+        final long waitNanos = reserve();
+        if (waitNanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Takes a permit, going into debt if none is available.
+     *
+     * @return how long to wait before the permit taken may be used, in nanoseconds
+     */
+    synchronized long reserve() {
+        if (nanosPerPermit == 0) {
+            return 0;
+        }
+        final long now = System.nanoTime();
+        tokens = Math.min(maxTokens, tokens + (now - lastRefillNanos) / nanosPerPermit);
+        lastRefillNanos = now;
+        tokens -= 1;
+        return tokens >= 0 ? 0 : (long) (-tokens * nanosPerPermit);
+    }
+}
@@ -0,0 +1,189 @@
+package uk.gov.companieshouse.chdorderconsumer.kafka;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.AuthorizationException;
+import org.apache.kafka.common.errors.OutOfOrderSequenceException;
+import org.apache.kafka.common.errors.ProducerFencedException;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.kafka.support.KafkaHeaders;
+import org.springframework.stereotype.Component;
+
+import uk.gov.companieshouse.chdorderconsumer.exception.TransactionFailedException;
+import uk.gov.companieshouse.chdorderconsumer.logging.LoggingUtils;
+import uk.gov.companieshouse.kafka.message.Message;
+import uk.gov.companieshouse.logging.Logger;
+import uk.gov.companieshouse.orders.items.ChdItemOrdered;
+
+/**
+ * Hands a batch of messages on to the next topic exactly once when transactional mode is enabled
+ * (`uk.gov.companieshouse.chdorderconsumer.transactional.enabled=true`). The messages republished while a
+ * batch listener poll is processed are collected rather than sent, then published together with the offsets
+ * of the poll in a single Kafka transaction once the poll has been processed. If the transaction fails
+ * neither the messages nor the offsets are committed, and a {@link TransactionFailedException} is thrown for the
+ * poll to be redelivered; should it still fail once the container gives up on it, its records are republished to
+ * the error topic by the {@link PoisonPillRecoverer} rather than skipped. Transactional mode only applies to the
+ * batch listeners, so the application fails to start if it is enabled without
+ * `uk.gov.companieshouse.chdorderconsumer.batch-listener=true`.
+ * <p>
+ * Each consumer thread publishes with its own transactional producer, created on first use with a
+ * transactional id unique to this instance.
+ */
+@Component
+public class TransactionalRepublisher implements DisposableBean {
+
+    private static final Logger LOGGER = LoggingUtils.getLogger();
+
+    private final ItemOrderedKafkaProducer kafkaProducer;
+    private final boolean enabled;
+    private final String transactionalIdPrefix;
+    private final AtomicInteger producerCount = new AtomicInteger();
+
+    private final Map<TopicPartition, List<Message>> transactions = new ConcurrentHashMap<>();
+    private final Set<ChdKafkaProducer> producers = ConcurrentHashMap.newKeySet();
+    private final ThreadLocal<ChdKafkaProducer> threadProducer = new ThreadLocal<>();
+
+    public TransactionalRepublisher(ItemOrderedKafkaProducer kafkaProducer,
+            @Value("${uk.gov.companieshouse.chdorderconsumer.transactional.enabled:false}") boolean enabled,
+            @Value("${uk.gov.companieshouse.chdorderconsumer.transactional.id-prefix:chd-order-consumer-}")
+            String transactionalIdPrefix,
+            @Value("${uk.gov.companieshouse.chdorderconsumer.batch-listener:false}") boolean batchListener) {
+        if (enabled && !batchListener) {
+            throw new IllegalStateException("uk.gov.companieshouse.chdorderconsumer.transactional.enabled "
+                    + "requires uk.gov.companieshouse.chdorderconsumer.batch-listener");
+        }
+        this.kafkaProducer = kafkaProducer;
+        this.enabled = enabled;
+        this.transactionalIdPrefix = transactionalIdPrefix + UUID.randomUUID() + "-";
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Processes a batch listener poll, then publishes the messages republished while processing it together
+     * with its offsets in one transaction.
+     *
+     * @param consumerRecords the records of the poll
+     * @param consumer        the consumer the poll was received by
+     * @param processing      processes the poll
+     * @throws TransactionFailedException if the transaction could not be committed
+     */
+    public void processInTransaction(final List<ConsumerRecord<String, ChdItemOrdered>> consumerRecords,
+                                     final Consumer<?, ?> consumer, final Runnable processing) {
+        final Map<TopicPartition, OffsetAndMetadata> offsets = offsetsToCommit(consumerRecords);
+        final List<Message> republished = Collections.synchronizedList(new ArrayList<>());
+        offsets.keySet().forEach(partition -> transactions.put(partition, republished));
+        try {
+            processing.run();
+        } finally {
+            offsets.keySet().forEach(partition -> transactions.remove(partition, republished));
+        }
+        if (offsets.isEmpty()) {
+            return;
+        }
+
+        final ChdKafkaProducer producer = getThreadProducer();
+        try {
+            producer.sendInTransaction(List.copyOf(republished), offsets, consumer.groupMetadata());
+        } catch (ProducerFencedException | OutOfOrderSequenceException | AuthorizationException ex) {
+            closeThreadProducer(producer);
+            throw new TransactionFailedException("Transaction republishing poll failed", ex);
+        } catch (KafkaException ex) {
+            throw new TransactionFailedException("Transaction republishing poll failed", ex);
+        }
+    }
+
+    /**
+     * @param consumerRecords records processed
+     * @return the offsets to commit once the records have been processed, by partition
+     */
+    public static Map<TopicPartition, OffsetAndMetadata> offsetsToCommit(
+            final List<ConsumerRecord<String, ChdItemOrdered>> consumerRecords) {
+        final Map<TopicPartition, OffsetAndMetadata> offsets = new HashMap<>();
+        consumerRecords.forEach(consumerRecord -> offsets.merge(
+                new TopicPartition(consumerRecord.topic(), consumerRecord.partition()),
+                new OffsetAndMetadata(consumerRecord.offset() + 1),
+                (current, next) -> next.offset() > current.offset() ? next : current));
+        return offsets;
+    }
+
+    /**
+     * @param source a message received
+     * @return whether the message is being processed as part of a transaction
+     */
+    public boolean isInTransaction(final org.springframework.messaging.Message<ChdItemOrdered> source) {
+        final TopicPartition partition = topicPartition(source);
+        return partition != null && transactions.containsKey(partition);
+    }
+
+    /**
+     * Adds a message to the transaction of the poll the message it republishes was received in.
+     *
+     * @param source       the message received
+     * @param retryMessage the message to republish
+     * @return whether the message was added, or must be sent by the caller as the source is not being
+     *         processed as part of a transaction
+     */
+    public boolean collect(final org.springframework.messaging.Message<ChdItemOrdered> source,
+                           final Message retryMessage) {
+        final TopicPartition partition = topicPartition(source);
+        final List<Message> republished = partition == null ? null : transactions.get(partition);
+        if (republished == null) {
+            return false;
+        }
+        republished.add(retryMessage);
+        return true;
+    }
+
+    @Override
+    public void destroy() {
+        producers.forEach(ChdKafkaProducer::close);
+        producers.clear();
+    }
+
+    private ChdKafkaProducer getThreadProducer() {
+        ChdKafkaProducer producer = threadProducer.get();
+        if (producer == null) {
+            final String transactionalId = transactionalIdPrefix + producerCount.incrementAndGet();
+            producer = kafkaProducer.createTransactionalProducer(transactionalId);
+            producers.add(producer);
+            threadProducer.set(producer);
+
+            Map<String, Object> logMap = LoggingUtils.createLogMap();
+            logMap.put(LoggingUtils.TRANSACTIONAL_ID, transactionalId);
+            LOGGER.info("Created transactional producer", logMap);
+        }
+        return producer;
+    }
+
+    private void closeThreadProducer(ChdKafkaProducer producer) {
+        threadProducer.remove();
+        producers.remove(producer);
+        producer.close();
+    }
+
+    private static TopicPartition topicPartition(final org.springframework.messaging.Message<ChdItemOrdered> message) {
+        final Object topic = message.getHeaders().get(KafkaHeaders.RECEIVED_TOPIC);
+        final Object partition = message.getHeaders().get(KafkaHeaders.RECEIVED_PARTITION);
+        if (topic == null || partition == null) {
+            return null;
+        }
+        return new TopicPartition(topic.toString(), Integer.parseInt(partition.toString()));
+    }
+}
@@ -23,11 +23,25 @@ public class LoggingUtils {
     public static final String NEXT_TOPIC = "next_topic";
     public static final String MESSAGE = "message";
     public static final String RETRY_ATTEMPT = "retry_attempt";
+    public static final String ORIGIN_TOPIC = "origin_topic";
     public static final String CHD_ITEM_ORDERED_GROUP_ERROR = "chd_item_ordered_error";
     public static final String ORDER_REFERENCE_NUMBER = "order_reference_number";
     public static final String ITEM_ID = "item_id";
     public static final String PAYMENT_REFERENCE = "payment_reference";
     public static final String COMPANY_NUMBER = "company_number";
+    public static final String LISTENER_ID = "listener_id";
+    public static final String PARTITION_COUNT = "partition_count";
+    public static final String CONCURRENCY = "concurrency";
+    public static final String REPLAYED = "replayed";
+    public static final String REMAINING = "remaining";
+    public static final String PARTITIONS_COMPLETE = "partitions_complete";
+    public static final String RECORDS_PER_SECOND = "records_per_second";
+    public static final String IN_FLIGHT = "in_flight";
+    public static final String TRANSACTIONAL_ID = "transactional_id";
+    public static final String SPOOL_DEPTH = "spool_depth";
+    public static final String VALUE_PREVIEW = "value_preview";
+    public static final String SCHEMA_FILE = "schema_file";
+    public static final String FILING_HISTORY_COUNT = "filing_history_count";
 
     private static final Logger LOGGER = LoggerFactory.getLogger(APPLICATION_NAME_SPACE);
 
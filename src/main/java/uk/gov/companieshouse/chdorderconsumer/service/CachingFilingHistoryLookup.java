@@ -0,0 +1,324 @@
+package uk.gov.companieshouse.chdorderconsumer.service;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.FunctionTimer;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import uk.gov.companieshouse.chdorderconsumer.logging.LoggingUtils;
+import uk.gov.companieshouse.logging.Logger;
+
+/**
+ * Read-through Caffeine cache of the filing history details looked up by the {@link MongoService}, so that
+ * filing histories ordered again and again are only looked up once. Details are cached for
+ * `filing-history-cache.ttl`, and filing histories not found for `filing-history-cache.negative-ttl`; failed
+ * lookups are not cached. Concurrent lookups of a filing history not cached share a single query. At most
+ * `filing-history-cache.max-size` filing histories are cached. Hits, misses, evictions and the time taken to
+ * load are published as metrics, from the statistics the cache records.
+ * <p>
+ * Filing histories not cached are looked up in the {@link FilingHistoryFileCache} before Mongo, and the
+ * details found in Mongo are kept there, so that they survive a restart.
+ * <p>
+ * When `filing-history-cache.async-prefetch` is enabled, filing histories are prefetched without blocking:
+ * the query is issued through the reactive streams driver, and the orders looking up a filing history being
+ * prefetched wait for the query to complete, so that the lookups of orders overlap with the processing of
+ * others.
+ */
+@Service
+public class CachingFilingHistoryLookup {
+
+    static final String SIZE_METRIC = "chd.filing.history.cache.size";
+    static final String HITS_METRIC = "chd.filing.history.cache.hits";
+    static final String MISSES_METRIC = "chd.filing.history.cache.misses";
+    static final String LOAD_METRIC = "chd.filing.history.cache.load";
+    static final String EVICTIONS_METRIC = "chd.filing.history.cache.evictions";
+    private static final String REASON_TAG = "reason";
+    private static final Logger LOGGER = LoggingUtils.getLogger();
+
+    private final MongoService mongoService;
+    private final FilingHistoryFileCache fileCache;
+    private final boolean asyncPrefetch;
+    private final AsyncCache<String, Optional<FilingHistoryDetails>> cache;
+    private final Counter capacityEvictions;
+    private final Counter expiryEvictions;
+
+    public CachingFilingHistoryLookup(MongoService mongoService,
+            FilingHistoryFileCache fileCache,
+            MeterRegistry meterRegistry,
+            @Value("${uk.gov.companieshouse.chdorderconsumer.filing-history-cache.max-size:10000}") int maxSize,
+            @Value("${uk.gov.companieshouse.chdorderconsumer.filing-history-cache.ttl:PT1H}") Duration ttl,
+            @Value("${uk.gov.companieshouse.chdorderconsumer.filing-history-cache.negative-ttl:PT5M}")
+            Duration negativeTtl,
+            @Value("${uk.gov.companieshouse.chdorderconsumer.filing-history-cache.async-prefetch:false}")
+            boolean asyncPrefetch) {
+        this.mongoService = mongoService;
+        this.fileCache = fileCache;
+        this.asyncPrefetch = asyncPrefetch;
+        this.capacityEvictions = meterRegistry.counter(EVICTIONS_METRIC, REASON_TAG, "capacity");
+        this.expiryEvictions = meterRegistry.counter(EVICTIONS_METRIC, REASON_TAG, "expired");
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfter(new DetailsExpiry(ttl, negativeTtl))
+                .evictionListener((String transactionId, Optional<FilingHistoryDetails> details,
+                                   RemovalCause cause) -> countEviction(cause))
+                .recordStats()
+                .buildAsync();
+        Gauge.builder(SIZE_METRIC, cache, cached -> cached.synchronous().estimatedSize())
+                .description("Filing histories cached")
+                .register(meterRegistry);
+        FunctionCounter.builder(HITS_METRIC, cache, cached -> cached.synchronous().stats().hitCount())
+                .register(meterRegistry);
+        FunctionCounter.builder(MISSES_METRIC, cache, cached -> cached.synchronous().stats().missCount())
+                .register(meterRegistry);
+        FunctionTimer.builder(LOAD_METRIC, cache, cached -> cached.synchronous().stats().loadCount(),
+                        cached -> cached.synchronous().stats().totalLoadTime(), TimeUnit.NANOSECONDS)
+                .register(meterRegistry);
+    }
+
+    /**
+     * Looks up the entity id and barcode of a filing history, from the cache if held and not expired. An item
+     * without a filing history id has no filing history, so is not looked up.
+     *
+     * @param transactionId the id of the filing history, possibly null
+     * @return the details of the filing history, or empty if there is no such filing history
+     */
+    public Optional<FilingHistoryDetails> getFilingHistoryDetails(String transactionId) {
+        if (transactionId == null) {
+            return Optional.empty();
+        }
+        while (true) {
+            final CompletableFuture<Optional<FilingHistoryDetails>> claimed = new CompletableFuture<>();
+            final CompletableFuture<Optional<FilingHistoryDetails>> cached =
+                    cache.get(transactionId, (id, executor) -> claimed);
+            if (cached == claimed) {
+                return load(transactionId, claimed);
+            }
+            try {
+                return cached.join();
+            } catch (CompletionException ex) {
+                if (!(ex.getCause() instanceof PrefetchFailedException)) {
+                    throw ex.getCause() instanceof RuntimeException cause ? cause : ex;
+                }
+                // Look the filing history up on its own instead.
+            }
+        }
+    }
+
+    /**
+     * @return whether {@link #prefetch(Collection)} returns without waiting for the filing histories to be
+     *     looked up
+     */
+    public boolean isAsyncPrefetch() {
+        return asyncPrefetch;
+    }
+
+    /**
+     * Looks up the filing histories of a batch of orders that are not cached, or being looked up already,
+     * together in a single query, so that the lookups of the orders then hit the cache. A failure is only
+     * logged, leaving each order to look up its filing history on its own. When prefetching asynchronously,
+     * returns once the query is issued.
+     *
+     * @param transactionIds the ids of the filing histories
+     */
+    public void prefetch(Collection<String> transactionIds) {
+        final List<String> ids = transactionIds.stream().filter(Objects::nonNull).distinct().toList();
+        if (ids.isEmpty()) {
+            return;
+        }
+        final CompletableFuture<Map<String, Optional<FilingHistoryDetails>>> prefetched =
+                cache.getAll(ids, (notCached, executor) -> {
+                    final List<String> claimed = ids.stream().filter(notCached::contains).toList();
+                    return asyncPrefetch ? prefetchAsync(claimed, executor) : prefetchNow(claimed);
+                });
+        if (!asyncPrefetch) {
+            try {
+                prefetched.join();
+            } catch (CompletionException ex) {
+                // Logged by failPrefetch; each order looks its filing history up on its own.
+            }
+        }
+    }
+
+    private CompletableFuture<Map<String, Optional<FilingHistoryDetails>>> prefetchNow(List<String> claimed) {
+        try {
+            return CompletableFuture.completedFuture(withNotFound(claimed, loadAllDetails(claimed)));
+        } catch (RuntimeException ex) {
+            return CompletableFuture.failedFuture(failPrefetch(claimed, ex));
+        }
+    }
+
+    /**
+     * Issues the query for the filing histories claimed, and completes the prefetch on the executor of the
+     * cache rather than on the thread of the driver that completes the query, so that keeping the details
+     * found in the file cache, and completing the lookups waiting for them, does not hold up the driver.
+     */
+    private CompletableFuture<Map<String, Optional<FilingHistoryDetails>>> prefetchAsync(List<String> claimed,
+            Executor executor) {
+        final Map<String, FilingHistoryDetails> details = new HashMap<>();
+        final CompletableFuture<Map<String, FilingHistoryDetails>> found;
+        try {
+            final List<String> notStored = loadStoredDetails(claimed, details);
+            found = notStored.isEmpty()
+                    ? CompletableFuture.completedFuture(Map.of())
+                    : mongoService.getAllFilingHistoryDetailsAsync(notStored);
+        } catch (RuntimeException ex) {
+            return CompletableFuture.failedFuture(failPrefetch(claimed, ex));
+        }
+        return found.handleAsync((foundDetails, ex) -> {
+            if (ex != null) {
+                throw new CompletionException(failPrefetch(claimed,
+                        ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex));
+            }
+            foundDetails.forEach((transactionId, filingHistoryDetails) -> {
+                fileCache.put(transactionId, filingHistoryDetails);
+                details.put(transactionId, filingHistoryDetails);
+            });
+            return withNotFound(claimed, details);
+        }, executor);
+    }
+
+    /**
+     * Gives up the prefetch of filing histories, so that the orders waiting for it look them up on their own.
+     *
+     * @return the failure to complete the prefetch with
+     */
+    private static PrefetchFailedException failPrefetch(List<String> claimed, Throwable cause) {
+        final PrefetchFailedException failure = new PrefetchFailedException(cause);
+        Map<String, Object> logMap = LoggingUtils.createLogMap();
+        logMap.put(LoggingUtils.FILING_HISTORY_COUNT, claimed.size());
+        LOGGER.error("Error prefetching filing histories, each will be looked up on its own", failure, logMap);
+        return failure;
+    }
+
+    /**
+     * Maps each filing history prefetched to its details, or to empty if not found, so that it is cached
+     * as not found.
+     */
+    private static Map<String, Optional<FilingHistoryDetails>> withNotFound(List<String> claimed,
+            Map<String, FilingHistoryDetails> details) {
+        final Map<String, Optional<FilingHistoryDetails>> prefetched = new HashMap<>();
+        claimed.forEach(transactionId ->
+                prefetched.put(transactionId, Optional.ofNullable(details.get(transactionId))));
+        return prefetched;
+    }
+
+    private Optional<FilingHistoryDetails> load(String transactionId,
+            CompletableFuture<Optional<FilingHistoryDetails>> loading) {
+        final Optional<FilingHistoryDetails> details;
+        try {
+            details = loadDetails(transactionId);
+        } catch (RuntimeException ex) {
+            loading.completeExceptionally(ex);
+            throw ex;
+        }
+        loading.complete(details);
+        return details;
+    }
+
+    private Optional<FilingHistoryDetails> loadDetails(String transactionId) {
+        final Optional<FilingHistoryDetails> stored = fileCache.get(transactionId);
+        if (stored.isPresent()) {
+            return stored;
+        }
+        final Optional<FilingHistoryDetails> details = mongoService.getFilingHistoryDetails(transactionId);
+        details.ifPresent(found -> fileCache.put(transactionId, found));
+        return details;
+    }
+
+    private Map<String, FilingHistoryDetails> loadAllDetails(Collection<String> transactionIds) {
+        final Map<String, FilingHistoryDetails> details = new HashMap<>();
+        final List<String> notStored = loadStoredDetails(transactionIds, details);
+        if (!notStored.isEmpty()) {
+            mongoService.getAllFilingHistoryDetails(notStored).forEach((transactionId, found) -> {
+                fileCache.put(transactionId, found);
+                details.put(transactionId, found);
+            });
+        }
+        return details;
+    }
+
+    /**
+     * Reads the details of filing histories kept in the file cache into the map given.
+     *
+     * @return the ids of the filing histories not kept
+     */
+    private List<String> loadStoredDetails(Collection<String> transactionIds,
+            Map<String, FilingHistoryDetails> details) {
+        final List<String> notStored = new ArrayList<>();
+        for (String transactionId : transactionIds) {
+            fileCache.get(transactionId).ifPresentOrElse(stored -> details.put(transactionId, stored),
+                    () -> notStored.add(transactionId));
+        }
+        return notStored;
+    }
+
+    private void countEviction(RemovalCause cause) {
+        if (cause == RemovalCause.SIZE) {
+            capacityEvictions.increment();
+        } else if (cause == RemovalCause.EXPIRED) {
+            expiryEvictions.increment();
+        }
+    }
+
+    /**
+     * Runs any pending evictions, so that the size and eviction metrics are up to date.
+     */
+    void cleanUp() {
+        cache.synchronous().cleanUp();
+    }
+
+    /**
+     * Expires the details of a filing history after `filing-history-cache.ttl`, and a filing history not found
+     * after `filing-history-cache.negative-ttl`, from when it was loaded. Reads do not extend either.
+     */
+    private record DetailsExpiry(Duration ttl, Duration negativeTtl)
+            implements Expiry<String, Optional<FilingHistoryDetails>> {
+
+        @Override
+        public long expireAfterCreate(String transactionId, Optional<FilingHistoryDetails> details,
+                long currentTime) {
+            return (details.isPresent() ? ttl : negativeTtl).toNanos();
+        }
+
+        @Override
+        public long expireAfterUpdate(String transactionId, Optional<FilingHistoryDetails> details,
+                long currentTime, long currentDuration) {
+            return expireAfterCreate(transactionId, details, currentTime);
+        }
+
+        @Override
+        public long expireAfterRead(String transactionId, Optional<FilingHistoryDetails> details,
+                long currentTime, long currentDuration) {
+            return currentDuration;
+        }
+    }
+
+    /**
+     * The failure of a prefetch, which the orders waiting for it do not rethrow.
+     */
+    private static final class PrefetchFailedException extends RuntimeException {
+        PrefetchFailedException(Throwable cause) {
+            super(cause);
+        }
+    }
+}
@@ -0,0 +1,10 @@
+package uk.gov.companieshouse.chdorderconsumer.service;
+
+/**
+ * The details of a filing history document a missing image delivery is enriched with.
+ *
+ * @param entityId the entity id of the filing history, if any
+ * @param barcode  the barcode of the filing history, if any
+ */
+public record FilingHistoryDetails(String entityId, String barcode) {
+}
@@ -0,0 +1,324 @@
+package uk.gov.companieshouse.chdorderconsumer.service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.stereotype.Component;
+
+import uk.gov.companieshouse.chdorderconsumer.logging.LoggingUtils;
+import uk.gov.companieshouse.logging.Logger;
+
+/**
+ * Second tier of the {@link CachingFilingHistoryLookup}: the filing history details looked up, kept in a
+ * memory-mapped hash file that outlives the process, so that a restarted instance does not have to look up
+ * again every filing history it has already seen. Details are written as lookups complete, and are read
+ * back for up to `filing-history-file-cache.ttl`.
+ * <p>
+ * The file holds a fixed number of fixed-size slots, `filing-history-file-cache.slots`, found by open
+ * addressing from the hash of the filing history id. Each slot holds the lengths of the id, entity id and
+ * barcode, a CRC32 of the slot, the time it was written and the three values; a slot that fails its checksum
+ * is read as a miss. Details too long for a slot are not kept. Once the slots probed for an id are all taken,
+ * the first is overwritten. A file written with another layout is cleared on start.
+ * <p>
+ * The slots are locked in stripes, each of as many consecutive slots as are probed for an id, so that lookups
+ * of filing histories far apart in the file do not wait for each other. The slots probed for an id span at most
+ * two stripes, which are locked in order.
+ * <p>
+ * The file cache is disabled by default, and needs a `filing-history-file-cache.path` on a volume that survives
+ * a restart when enabled. Its TTL should be no longer than the `filing-history-cache.ttl` of the details held in
+ * memory, so that a restart does not serve details older than a running instance would.
+ */
+@Component
+public class FilingHistoryFileCache implements SmartLifecycle {
+
+    static final String HITS_METRIC = "chd.filing.history.file.cache.hits";
+    static final String MISSES_METRIC = "chd.filing.history.file.cache.misses";
+
+    private static final Logger LOGGER = LoggingUtils.getLogger();
+
+    /** Start before the listener containers, whose messages are enriched with the details cached. */
+    private static final int PHASE = Integer.MAX_VALUE - 400;
+
+    private static final int MAGIC = 0x43484446;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int SLOT_SIZE = 128;
+    private static final int STATE_INDEX = 0;
+    private static final int LENGTHS_INDEX = 1;
+    private static final int CHECKSUM_INDEX = 4;
+    private static final int WRITTEN_AT_INDEX = 8;
+    private static final int PAYLOAD_INDEX = 16;
+    private static final int PAYLOAD_SIZE = SLOT_SIZE - PAYLOAD_INDEX;
+    private static final int MAX_PROBES = 8;
+    private static final byte OCCUPIED = 1;
+    private static final int NULL_LENGTH = 0xff;
+    private static final int STRIPES = 64;
+
+    private final boolean enabled;
+    private final Path path;
+    private final int slots;
+    private final long ttlMillis;
+    private final Counter hits;
+    private final Counter misses;
+    private final ReadWriteLock[] stripes = new ReadWriteLock[STRIPES];
+
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private volatile boolean running;
+
+    public FilingHistoryFileCache(MeterRegistry meterRegistry,
+            @Value("${uk.gov.companieshouse.chdorderconsumer.filing-history-file-cache.enabled:false}") boolean enabled,
+            @Value("${uk.gov.companieshouse.chdorderconsumer.filing-history-file-cache.path:}") String path,
+            @Value("${uk.gov.companieshouse.chdorderconsumer.filing-history-file-cache.slots:65536}") int slots,
+            @Value("${uk.gov.companieshouse.chdorderconsumer.filing-history-file-cache.ttl:PT1H}") Duration ttl) {
+        this.enabled = enabled;
+        this.path = path == null || path.isBlank() ? null : Path.of(path);
+        // Whole stripes, so that the slots probed for an id span at most two.
+        this.slots = Math.ceilDiv(Math.max(MAX_PROBES, slots), MAX_PROBES) * MAX_PROBES;
+        this.ttlMillis = ttl.toMillis();
+        this.hits = meterRegistry.counter(HITS_METRIC);
+        this.misses = meterRegistry.counter(MISSES_METRIC);
+        Arrays.setAll(stripes, stripe -> new ReentrantReadWriteLock());
+    }
+
+    /**
+     * @param transactionId the id of a filing history
+     * @return the details of the filing history, if kept and not expired
+     */
+    public Optional<FilingHistoryDetails> get(final String transactionId) {
+        if (!running) {
+            return Optional.empty();
+        }
+        final byte[] key = transactionId.getBytes(StandardCharsets.UTF_8);
+        final int home = home(key);
+        return withSlotsLocked(home, false, () -> read(key, home));
+    }
+
+    private Optional<FilingHistoryDetails> read(final byte[] key, final int home) {
+        final int slot = probe(key, home);
+        if (slot < 0 || !matches(slot, key) || isExpired(slot)) {
+            misses.increment();
+            return Optional.empty();
+        }
+        hits.increment();
+        final ByteBuffer payload = buffer.slice(slot + PAYLOAD_INDEX + key.length, PAYLOAD_SIZE - key.length);
+        final String entityId = getString(payload, Byte.toUnsignedInt(buffer.get(slot + LENGTHS_INDEX + 1)));
+        final String barcode = getString(payload, Byte.toUnsignedInt(buffer.get(slot + LENGTHS_INDEX + 2)));
+        return Optional.of(new FilingHistoryDetails(entityId, barcode));
+    }
+
+    /**
+     * Keeps the details of a filing history, unless too long for a slot.
+     *
+     * @param transactionId the id of the filing history
+     * @param details       its details
+     */
+    public void put(final String transactionId, final FilingHistoryDetails details) {
+        if (!running) {
+            return;
+        }
+        final byte[] key = transactionId.getBytes(StandardCharsets.UTF_8);
+        final byte[] entityId = toBytes(details.entityId());
+        final byte[] barcode = toBytes(details.barcode());
+        if (key.length + length(entityId) + length(barcode) > PAYLOAD_SIZE) {
+            return;
+        }
+        final int home = home(key);
+        withSlotsLocked(home, true, () -> {
+            write(key, home, entityId, barcode);
+            return null;
+        });
+    }
+
+    private void write(final byte[] key, final int home, final byte[] entityId, final byte[] barcode) {
+        int slot = probe(key, home);
+        if (slot < 0) {
+            slot = slotOf(home);
+        }
+        buffer.put(slot + LENGTHS_INDEX, (byte) key.length);
+        buffer.put(slot + LENGTHS_INDEX + 1, (byte) (entityId == null ? NULL_LENGTH : entityId.length));
+        buffer.put(slot + LENGTHS_INDEX + 2, (byte) (barcode == null ? NULL_LENGTH : barcode.length));
+        buffer.putLong(slot + WRITTEN_AT_INDEX, System.currentTimeMillis());
+        final ByteBuffer payload = buffer.slice(slot + PAYLOAD_INDEX, PAYLOAD_SIZE);
+        payload.put(key);
+        if (entityId != null) {
+            payload.put(entityId);
+        }
+        if (barcode != null) {
+            payload.put(barcode);
+        }
+        while (payload.hasRemaining()) {
+            payload.put((byte) 0);
+        }
+        buffer.putInt(slot + CHECKSUM_INDEX, checksum(slot));
+        buffer.put(slot + STATE_INDEX, OCCUPIED);
+    }
+
+    @Override
+    public synchronized void start() {
+        if (!enabled) {
+            return;
+        }
+        if (path == null) {
+            throw new IllegalStateException("uk.gov.companieshouse.chdorderconsumer.filing-history-file-cache.path "
+                    + "must be set when the filing history file cache is enabled");
+        }
+        try {
+            open();
+        } catch (IOException ex) {
+            throw new IllegalStateException("Unable to open filing history file cache " + path, ex);
+        }
+        running = true;
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        try {
+            buffer.force();
+            channel.close();
+        } catch (IOException ex) {
+            LOGGER.error("Error closing filing history file cache", ex, LoggingUtils.createLogMap());
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public int getPhase() {
+        return PHASE;
+    }
+
+    /**
+     * Maps the cache file, creating it if need be, and clears it if it was written with another layout.
+     */
+    private void open() throws IOException {
+        Files.createDirectories(path.toAbsolutePath().getParent());
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        final long size = HEADER_SIZE + (long) slots * SLOT_SIZE;
+        if (channel.size() != size || !hasLayout(channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE))) {
+            channel.truncate(0);
+        }
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.putInt(8, slots);
+        buffer.putInt(12, SLOT_SIZE);
+    }
+
+    private boolean hasLayout(final ByteBuffer header) {
+        return header.getInt(0) == MAGIC && header.getInt(4) == VERSION && header.getInt(8) == slots
+                && header.getInt(12) == SLOT_SIZE;
+    }
+
+    /**
+     * Runs an action holding the locks of the stripes of the slots probed from a home slot, for reading or
+     * writing, taking the lower stripe first.
+     */
+    private <T> T withSlotsLocked(final int home, final boolean write, final Supplier<T> action) {
+        final int first = stripeOf(home);
+        final int last = stripeOf((home + MAX_PROBES - 1) % slots);
+        final Lock lower = lockOf(Math.min(first, last), write);
+        final Lock upper = lockOf(Math.max(first, last), write);
+        lower.lock();
+        try {
+            upper.lock();
+            try {
+                return action.get();
+            } finally {
+                upper.unlock();
+            }
+        } finally {
+            lower.unlock();
+        }
+    }
+
+    private static int stripeOf(final int index) {
+        return (index / MAX_PROBES) % STRIPES;
+    }
+
+    private Lock lockOf(final int stripe, final boolean write) {
+        return write ? stripes[stripe].writeLock() : stripes[stripe].readLock();
+    }
+
+    /**
+     * @return the slot holding the key, else the first free slot probed for it, else -1
+     */
+    private int probe(final byte[] key, final int home) {
+        for (int probe = 0; probe < MAX_PROBES; probe++) {
+            final int slot = slotOf((home + probe) % slots);
+            if (buffer.get(slot + STATE_INDEX) != OCCUPIED || matches(slot, key)) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private int home(final byte[] key) {
+        return Math.floorMod(Arrays.hashCode(key) * 0x9E3779B9, slots);
+    }
+
+    private static int slotOf(final int index) {
+        return HEADER_SIZE + index * SLOT_SIZE;
+    }
+
+    private boolean matches(final int slot, final byte[] key) {
+        return buffer.get(slot + STATE_INDEX) == OCCUPIED
+                && Byte.toUnsignedInt(buffer.get(slot + LENGTHS_INDEX)) == key.length
+                && buffer.slice(slot + PAYLOAD_INDEX, key.length).equals(ByteBuffer.wrap(key))
+                && buffer.getInt(slot + CHECKSUM_INDEX) == checksum(slot);
+    }
+
+    private boolean isExpired(final int slot) {
+        return buffer.getLong(slot + WRITTEN_AT_INDEX) + ttlMillis < System.currentTimeMillis();
+    }
+
+    private int checksum(final int slot) {
+        final CRC32 crc = new CRC32();
+        crc.update(buffer.slice(slot + LENGTHS_INDEX, CHECKSUM_INDEX - LENGTHS_INDEX));
+        crc.update(buffer.slice(slot + WRITTEN_AT_INDEX, SLOT_SIZE - WRITTEN_AT_INDEX));
+        return (int) crc.getValue();
+    }
+
+    private static byte[] toBytes(final String value) {
+        return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int length(final byte[] value) {
+        return value == null ? 0 : value.length;
+    }
+
+    private static String getString(final ByteBuffer payload, final int length) {
+        if (length == NULL_LENGTH) {
+            return null;
+        }
+        final byte[] bytes = new byte[length];
+        payload.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -6,7 +6,9 @@ import static org.springframework.http.HttpStatus.CREATED;
 import static org.springframework.http.HttpStatus.UNAUTHORIZED;
 
 import java.time.LocalDateTime;
+import java.util.Collection;
 import java.util.Map;
+import java.util.Objects;
 
 import com.google.gson.GsonBuilder;
 import org.springframework.stereotype.Service;
@@ -29,12 +31,12 @@ public class ItemOrderedProcessorService {
 
     private final CHDOrderService chdOrderService;
 
-    private final MongoService mongoService;
+    private final CachingFilingHistoryLookup filingHistoryLookup;
 
     public ItemOrderedProcessorService(final CHDOrderService chdOrderService,
-                                       final MongoService mongoService) {
+                                       final CachingFilingHistoryLookup filingHistoryLookup) {
         this.chdOrderService = chdOrderService;
-        this.mongoService = mongoService;
+        this.filingHistoryLookup = filingHistoryLookup;
     }
 
     MissingImageDeliveryRequestApi mapChdItemOrderedToMissingImageDeliveryRequestApi(ChdItemOrdered chdItemOrdered) {
@@ -58,17 +60,45 @@ public class ItemOrderedProcessorService {
 
         String filingHistoryId = itemOptions.get("filingHistoryId");
 
-        missingImageDeliveryRequestApi.setEntityId(mongoService.getEntityId(filingHistoryId));
+        FilingHistoryDetails filingHistoryDetails = filingHistoryLookup.getFilingHistoryDetails(filingHistoryId)
+                .orElseThrow(() -> new ServiceException("Filing history " + filingHistoryId
+                        + " not found for item " + item.getId()));
+
+        missingImageDeliveryRequestApi.setEntityId(filingHistoryDetails.entityId());
 
         if (missingImageDeliveryRequestApi.getEntityId() == null &&
             missingImageDeliveryRequestApi.getFilingHistoryBarcode() == null) {
 
-            missingImageDeliveryRequestApi.setFilingHistoryBarcode(mongoService.getBarcode(filingHistoryId));
+            missingImageDeliveryRequestApi.setFilingHistoryBarcode(filingHistoryDetails.barcode());
         }
 
         return missingImageDeliveryRequestApi;
     }
 
+    /**
+     * Looks up the filing histories of a batch of orders together, ahead of processing them one by one.
+     *
+     * @param chdItemOrdered the orders
+     */
+    public void prefetchFilingHistories(Collection<ChdItemOrdered> chdItemOrdered) {
+        filingHistoryLookup.prefetch(chdItemOrdered.stream()
+                .map(ChdItemOrdered::getItem)
+                .filter(Objects::nonNull)
+                .map(Item::getItemOptions)
+                .filter(Objects::nonNull)
+                .map(itemOptions -> itemOptions.get("filingHistoryId"))
+                .filter(Objects::nonNull)
+                .toList());
+    }
+
+    /**
+     * @return whether {@link #prefetchFilingHistories(Collection)} returns without waiting for the filing
+     *     histories to be looked up, so that the lookups overlap with the processing of other orders
+     */
+    public boolean prefetchesFilingHistoriesAsynchronously() {
+        return filingHistoryLookup.isAsyncPrefetch();
+    }
+
     public void processItemOrdered(ChdItemOrdered chdItemOrdered) {
         MissingImageDeliveryRequestApi missingImageDeliveryRequestApi = new MissingImageDeliveryRequestApi();
         try {
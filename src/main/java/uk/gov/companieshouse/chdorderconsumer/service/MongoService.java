@@ -2,14 +2,32 @@ package uk.gov.companieshouse.chdorderconsumer.service;
 
 import com.mongodb.client.FindIterable;
 import com.mongodb.client.MongoClient;
-import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.MongoCollection;
 import com.mongodb.client.model.Filters;
 import com.mongodb.client.model.Projections;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 import org.bson.Document;
-import org.springframework.beans.factory.annotation.Autowired;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
-import uk.gov.companieshouse.environment.EnvironmentReader;
 
+/**
+ * Looks up filing histories in Mongo. The database, collection and entity id field, configured by the
+ * `MONGO_DATABASE_NAME`, `MONGO_COLLECTION` and `ENTITY_ID_FIELD` environment variables, are resolved once
+ * when the application starts, which fails if any is missing, so that each lookup is just the query.
+ * <p>
+ * Filing histories can also be looked up asynchronously, through the reactive streams driver, so that the
+ * thread asking is not blocked for the round trip. The reactive streams client is only there when
+ * `filing-history-cache.async-prefetch` is enabled.
+ */
 @Service
 public class MongoService {
 
@@ -17,45 +35,129 @@ public class MongoService {
     private static final String MONGO_COLLECTION = "MONGO_COLLECTION";
     private static final String ENTITY_ID_FIELD = "ENTITY_ID_FIELD";
     private static final String BARCODE_FIELD = "barcode";
+    private static final String ID_FIELD = "_id";
 
-    @Autowired
-    private MongoClient mongoClient;
+    private final MongoCollection<Document> collection;
+    private final com.mongodb.reactivestreams.client.MongoCollection<Document> reactiveCollection;
+    private final String entityIdField;
 
-    @Autowired
-    private EnvironmentReader environmentReader;
-
-    public String getEntityId(String transactionId) {
-        String mongoCollection = environmentReader
-            .getMandatoryString(MONGO_COLLECTION);
-        String entityIdField = environmentReader
-            .getMandatoryString(ENTITY_ID_FIELD);
-
-        MongoDatabase database = getDatabase();
+    public MongoService(MongoClient mongoClient,
+                        ObjectProvider<com.mongodb.reactivestreams.client.MongoClient> reactiveMongoClient,
+                        @Value("${" + MONGO_DATABASE_NAME + "}") String databaseName,
+                        @Value("${" + MONGO_COLLECTION + "}") String collectionName,
+                        @Value("${" + ENTITY_ID_FIELD + "}") String entityIdField) {
+        requireConfig(MONGO_DATABASE_NAME, databaseName);
+        requireConfig(MONGO_COLLECTION, collectionName);
+        this.collection = mongoClient.getDatabase(databaseName).getCollection(collectionName);
+        com.mongodb.reactivestreams.client.MongoClient reactiveClient = reactiveMongoClient.getIfAvailable();
+        this.reactiveCollection = reactiveClient == null
+            ? null : reactiveClient.getDatabase(databaseName).getCollection(collectionName);
+        this.entityIdField = requireConfig(ENTITY_ID_FIELD, entityIdField);
+    }
 
-        FindIterable<Document> documents = database.getCollection(mongoCollection)
+    /**
+     * Looks up the entity id and barcode of a filing history together, in a single query projecting both.
+     *
+     * @param transactionId the id of the filing history
+     * @return the details of the filing history, or empty if there is no such filing history
+     */
+    public Optional<FilingHistoryDetails> getFilingHistoryDetails(String transactionId) {
+        FindIterable<Document> documents = collection
             .find(Filters.eq(transactionId))
-            .projection(Projections.include(entityIdField));
+            .projection(Projections.include(entityIdField, BARCODE_FIELD));
         Document document = documents.first();
-        return (String) document.get(entityIdField);
+        if (document == null) {
+            return Optional.empty();
+        }
+        return Optional.of(new FilingHistoryDetails(
+            (String) document.get(entityIdField), (String) document.get(BARCODE_FIELD)));
     }
 
-    public String getBarcode(String transactionId) {
-        String mongoCollection = environmentReader
-            .getMandatoryString(MONGO_COLLECTION);
+    /**
+     * Looks up the entity id and barcode of a number of filing histories, in a single `$in` query projecting
+     * both.
+     *
+     * @param transactionIds the ids of the filing histories
+     * @return the details of the filing histories found, by id
+     */
+    public Map<String, FilingHistoryDetails> getAllFilingHistoryDetails(Collection<String> transactionIds) {
+        if (transactionIds.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        FindIterable<Document> documents = collection
+            .find(Filters.in(ID_FIELD, transactionIds))
+            .projection(Projections.include(entityIdField, BARCODE_FIELD));
+        Map<String, FilingHistoryDetails> details = new HashMap<>();
+        for (Document document : documents.into(new ArrayList<>())) {
+            putDetails(details, document);
+        }
+        return details;
+    }
 
-        MongoDatabase database = getDatabase();
+    /**
+     * Looks up the entity id and barcode of a number of filing histories like
+     * {@link #getAllFilingHistoryDetails(Collection)}, but without blocking: the query is issued through the
+     * reactive streams driver and the future returned completes on one of its threads.
+     *
+     * @param transactionIds the ids of the filing histories
+     * @return the details of the filing histories found, by id, once the query completes
+     * @throws IllegalStateException if asynchronous prefetching is not enabled
+     */
+    public CompletableFuture<Map<String, FilingHistoryDetails>> getAllFilingHistoryDetailsAsync(
+            Collection<String> transactionIds) {
+        if (transactionIds.isEmpty()) {
+            return CompletableFuture.completedFuture(Collections.emptyMap());
+        }
+        if (reactiveCollection == null) {
+            throw new IllegalStateException("Asynchronous filing history lookups need "
+                + "uk.gov.companieshouse.chdorderconsumer.filing-history-cache.async-prefetch enabled");
+        }
+        DetailsSubscriber subscriber = new DetailsSubscriber();
+        reactiveCollection
+            .find(Filters.in(ID_FIELD, transactionIds))
+            .projection(Projections.include(entityIdField, BARCODE_FIELD))
+            .subscribe(subscriber);
+        return subscriber.future;
+    }
 
-        FindIterable<Document> documents = database.getCollection(mongoCollection)
-            .find(Filters.eq(transactionId))
-            .projection(Projections.include(BARCODE_FIELD));
-        Document document = documents.first();
-        return (String) document.get(BARCODE_FIELD);
+    private void putDetails(Map<String, FilingHistoryDetails> details, Document document) {
+        details.put(String.valueOf(document.get(ID_FIELD)), new FilingHistoryDetails(
+            (String) document.get(entityIdField), (String) document.get(BARCODE_FIELD)));
     }
 
-    private MongoDatabase getDatabase() {
-        String mongoDatabaseName = environmentReader
-            .getMandatoryString(MONGO_DATABASE_NAME);
+    private static String requireConfig(String name, String value) {
+        if (value == null || value.isBlank()) {
+            throw new IllegalStateException(String.format("Required config item %s missing", name));
+        }
+        return value;
+    }
+
+    /**
+     * Collects the documents published by a query into the details of the filing histories found.
+     */
+    private class DetailsSubscriber implements Subscriber<Document> {
+
+        private final CompletableFuture<Map<String, FilingHistoryDetails>> future = new CompletableFuture<>();
+        private final Map<String, FilingHistoryDetails> details = new HashMap<>();
+
+        @Override
+        public void onSubscribe(Subscription subscription) {
+            subscription.request(Long.MAX_VALUE);
+        }
+
+        @Override
+        public void onNext(Document document) {
+            putDetails(details, document);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            future.completeExceptionally(throwable);
+        }
 
-        return mongoClient.getDatabase(mongoDatabaseName);
+        @Override
+        public void onComplete() {
+            future.complete(details);
+        }
     }
 }
@@ -0,0 +1,70 @@
+package uk.gov.companieshouse.chdorderconsumer.kafka;
+
+import static uk.gov.companieshouse.chdorderconsumer.util.TestUtils.createOrder;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.avro.io.DatumReader;
+import org.apache.avro.io.Decoder;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.reflect.ReflectDatumReader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import uk.gov.companieshouse.kafka.serialization.SerializerFactory;
+import uk.gov.companieshouse.orders.items.ChdItemOrdered;
+
+/**
+ * Compares decoding a `chd-item-ordered` value with a reflect reader and decoder created per record, as the
+ * deserializer used to, against the {@link ChdItemOrderedDeserializer}. Not run by the build; run `main` from
+ * the test classpath after `mvn test-compile`, adding `-prof gc` to the options to compare allocation rates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class ChdItemOrderedDeserializerBenchmark {
+
+    private static final String TOPIC = "chd-item-ordered";
+
+    private final ChdItemOrderedDeserializer<ChdItemOrdered> deserializer = new ChdItemOrderedDeserializer<>();
+    private byte[] data;
+
+    @Setup
+    public void setUp() throws Exception {
+        data = new SerializerFactory().getGenericRecordSerializer(ChdItemOrdered.class).toBinary(createOrder());
+    }
+
+    @Benchmark
+    public ChdItemOrdered reflectReaderPerRecord() throws Exception {
+        Decoder decoder = DecoderFactory.get().binaryDecoder(data, null);
+        DatumReader<ChdItemOrdered> reader = new ReflectDatumReader<>(ChdItemOrdered.class);
+        return reader.read(null, decoder);
+    }
+
+    @Benchmark
+    public ChdItemOrdered cachedReaderPerThread() {
+        return deserializer.deserialize(TOPIC, data);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(ChdItemOrderedDeserializerBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
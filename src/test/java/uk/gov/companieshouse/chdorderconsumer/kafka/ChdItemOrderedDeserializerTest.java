@@ -1,11 +1,34 @@
 package uk.gov.companieshouse.chdorderconsumer.kafka;
 
+import static uk.gov.companieshouse.chdorderconsumer.util.TestUtils.createOrder;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.message.BinaryMessageEncoder;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
 import org.apache.kafka.common.errors.SerializationException;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.header.internals.RecordHeaders;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
 import org.mockito.InjectMocks;
 import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.kafka.support.KafkaHeaders;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.support.MessageBuilder;
+import uk.gov.companieshouse.kafka.serialization.AvroSerializer;
+import uk.gov.companieshouse.kafka.serialization.SerializerFactory;
+import uk.gov.companieshouse.orders.items.ChdItemOrdered;
 
 @ExtendWith(MockitoExtension.class)
 class ChdItemOrderedDeserializerTest {
@@ -18,4 +41,163 @@ class ChdItemOrderedDeserializerTest {
 
         Assertions.assertThrows(SerializationException.class, () -> deserializer.deserialize("chd-item-ordered", testData));
     }
+
+    @Test
+    void deserializeKeepsRawValueInHeaders() throws Exception {
+        final ChdItemOrdered order = createOrder();
+        final byte[] data = new SerializerFactory().getGenericRecordSerializer(ChdItemOrdered.class).toBinary(order);
+        final RecordHeaders headers = new RecordHeaders();
+
+        final Object deserialized = deserializer.deserialize("chd-item-ordered", headers, data);
+
+        Assertions.assertEquals(order, deserialized);
+        Assertions.assertSame(data, headers.lastHeader(ChdItemOrderedDeserializer.RAW_VALUE_HEADER).value());
+    }
+
+    @Test
+    void deserializeDecodesEachRecordWithReusedDecoder() throws Exception {
+        final ChdItemOrdered first = createOrder();
+        final ChdItemOrdered second = createOrder();
+        second.setReference("ORD-222222-222222");
+        final AvroSerializer<ChdItemOrdered> serializer =
+                new SerializerFactory().getGenericRecordSerializer(ChdItemOrdered.class);
+
+        Assertions.assertThrows(SerializationException.class,
+                () -> deserializer.deserialize("chd-item-ordered", "Test data".getBytes()));
+        final Object firstDeserialized = deserializer.deserialize("chd-item-ordered", serializer.toBinary(first));
+        final Object secondDeserialized = deserializer.deserialize("chd-item-ordered", serializer.toBinary(second));
+
+        Assertions.assertEquals(first, firstDeserialized);
+        Assertions.assertEquals(second, secondDeserialized);
+        Assertions.assertNotSame(firstDeserialized, secondDeserialized);
+    }
+
+    @Test
+    void deserializeDecodesValueWithinFetchedBuffer() throws Exception {
+        final ChdItemOrdered order = createOrder();
+        final byte[] data = new SerializerFactory().getGenericRecordSerializer(ChdItemOrdered.class).toBinary(order);
+        final byte[] fetched = new byte[data.length + 20];
+        System.arraycopy(data, 0, fetched, 10, data.length);
+        final ByteBuffer value = ByteBuffer.wrap(fetched, 10, data.length).slice();
+        final RecordHeaders headers = new RecordHeaders();
+
+        final Object deserialized = deserializer.deserialize("chd-item-ordered", headers, value);
+
+        Assertions.assertEquals(order, deserialized);
+        Assertions.assertArrayEquals(data, headers.lastHeader(ChdItemOrderedDeserializer.RAW_VALUE_HEADER).value());
+        Assertions.assertEquals(0, value.position());
+    }
+
+    @Test
+    void deserializeDoesNotKeepRawValueOfNullValue() {
+        final RecordHeaders headers = new RecordHeaders();
+
+        Assertions.assertNull(deserializer.deserialize("chd-item-ordered", headers, (byte[]) null));
+        Assertions.assertNull(headers.lastHeader(ChdItemOrderedDeserializer.RAW_VALUE_HEADER));
+    }
+
+    @Test
+    void detachRawValueCopiesValueOutOfFetchedBuffer() throws Exception {
+        final ChdItemOrdered order = createOrder();
+        final byte[] data = new SerializerFactory().getGenericRecordSerializer(ChdItemOrdered.class).toBinary(order);
+        final byte[] fetched = new byte[data.length + 20];
+        System.arraycopy(data, 0, fetched, 10, data.length);
+        final ConsumerRecord<String, ChdItemOrdered> consumerRecord =
+                new ConsumerRecord<>("chd-item-ordered", 0, 10L, "key", order);
+        deserializer.deserialize("chd-item-ordered", consumerRecord.headers(),
+                ByteBuffer.wrap(fetched, 10, data.length).slice());
+        final Message<ChdItemOrdered> message = MessageBuilder.withPayload(order)
+                .setHeader(KafkaHeaders.RAW_DATA, consumerRecord)
+                .build();
+
+        ChdItemOrderedDeserializer.detachRawValue(message);
+        Arrays.fill(fetched, (byte) 0);
+
+        final Header rawValue = consumerRecord.headers().lastHeader(ChdItemOrderedDeserializer.RAW_VALUE_HEADER);
+        Assertions.assertArrayEquals(data, rawValue.value());
+        Assertions.assertEquals(1, consumerRecord.headers().toArray().length);
+    }
+
+    @Test
+    void deserializeFailureDescribesValueInBoundedPreview() {
+        final byte[] testData = new byte[1024 * 1024];
+        Arrays.fill(testData, (byte) 0xff);
+
+        final SerializationException exception = Assertions.assertThrows(SerializationException.class,
+                () -> deserializer.deserialize("chd-item-ordered", testData));
+
+        Assertions.assertTrue(exception.getMessage().startsWith("Message data [1048576 bytes: ffff"));
+        Assertions.assertTrue(exception.getMessage().length() < 512);
+    }
+
+    @Test
+    void deserializeResolvesSingleObjectEncodedValueAgainstWriterSchemaFromStore(@TempDir Path schemaDirectory)
+            throws Exception {
+        // Given a value written with a newer schema, with an extra field
+        final Schema readerSchema = ChdItemOrdered.getClassSchema();
+        final List<Schema.Field> fields = new ArrayList<>();
+        readerSchema.getFields().forEach(field -> fields.add(new Schema.Field(field, field.schema())));
+        fields.add(new Schema.Field("channel", Schema.create(Schema.Type.STRING), null, "web"));
+        final Schema writerSchema = Schema.createRecord(readerSchema.getName(), readerSchema.getDoc(),
+                readerSchema.getNamespace(), false, fields);
+        Files.writeString(schemaDirectory.resolve("chd-item-ordered-v2.avsc"), writerSchema.toString());
+
+        final ChdItemOrdered order = createOrder();
+        final GenericData.Record written = new GenericData.Record(writerSchema);
+        readerSchema.getFields().forEach(field -> written.put(field.name(), order.get(field.pos())));
+        written.put("channel", "api");
+        final ByteBuffer data = new BinaryMessageEncoder<GenericData.Record>(GenericData.get(), writerSchema)
+                .encode(written);
+        final ChdItemOrderedDeserializer<ChdItemOrdered> deserializerUnderTest =
+                new ChdItemOrderedDeserializer<>(new FileSchemaStore(schemaDirectory, Duration.ZERO));
+
+        // When
+        final ChdItemOrdered deserialized =
+                deserializerUnderTest.deserialize("chd-item-ordered", new RecordHeaders(), data);
+
+        // Then
+        Assertions.assertEquals(order, deserialized);
+    }
+
+    @Test
+    void deserializeThrowsSerializationExceptionForUnknownWriterSchema() throws Exception {
+        final Schema writerSchema = Schema.createRecord("Unknown", null, "test", false,
+                List.of(new Schema.Field("id", Schema.create(Schema.Type.STRING))));
+        final GenericData.Record written = new GenericData.Record(writerSchema);
+        written.put("id", "1");
+        final byte[] data = new BinaryMessageEncoder<GenericData.Record>(GenericData.get(), writerSchema)
+                .encode(written).array();
+
+        Assertions.assertThrows(SerializationException.class,
+                () -> new ChdItemOrderedDeserializer<>().deserialize("chd-item-ordered", data));
+    }
+
+    @Test
+    void projectDecodesOnlyReferenceAndItem() throws Exception {
+        final ChdItemOrdered order = createOrder();
+        final byte[] data = new SerializerFactory().getGenericRecordSerializer(ChdItemOrdered.class).toBinary(order);
+
+        final ChdItemOrderedProjection projection =
+                new ChdItemOrderedDeserializer<>().project(ByteBuffer.wrap(data));
+
+        Assertions.assertEquals(new ChdItemOrderedProjection(order.getReference(), order.getItem().getId(),
+                order.getItem().getKind()), projection);
+    }
+
+    @Test
+    void deserializeDropsValuePrefilteredWithoutDecodingItInFull() throws Exception {
+        final ChdItemOrdered order = createOrder();
+        final byte[] data = new SerializerFactory().getGenericRecordSerializer(ChdItemOrdered.class).toBinary(order);
+        final RecordPrefilter prefilter = new RecordPrefilter(new SimpleMeterRegistry(), true, List.of(), 10);
+        final ChdItemOrderedDeserializer<ChdItemOrdered> deserializerUnderTest =
+                new ChdItemOrderedDeserializer<>(new FileSchemaStore(null, Duration.ZERO), prefilter);
+
+        Assertions.assertEquals(order, deserializerUnderTest.deserialize("chd-item-ordered", new RecordHeaders(), data));
+        prefilter.markProcessed(order.getItem().getId());
+        final RecordHeaders headers = new RecordHeaders();
+
+        Assertions.assertNull(deserializerUnderTest.deserialize("chd-item-ordered", headers, ByteBuffer.wrap(data)));
+        Assertions.assertNotNull(headers.lastHeader(ChdItemOrderedDeserializer.PREFILTERED_HEADER));
+        Assertions.assertNull(headers.lastHeader(ChdItemOrderedDeserializer.RAW_VALUE_HEADER));
+    }
 }
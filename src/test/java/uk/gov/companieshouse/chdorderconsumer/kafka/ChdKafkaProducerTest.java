@@ -3,8 +3,10 @@ package uk.gov.companieshouse.chdorderconsumer.kafka;
 import org.apache.kafka.clients.producer.KafkaProducer;
 import org.apache.kafka.clients.producer.ProducerRecord;
 import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.clients.producer.RoundRobinPartitioner;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import uk.gov.companieshouse.kafka.message.Message;
@@ -16,6 +18,7 @@ import uk.gov.companieshouse.kafka.producer.factory.KafkaProducerFactory;
 import java.util.Properties;
 import java.util.concurrent.Future;
 
+import static org.junit.Assert.assertEquals;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.BDDMockito.given;
 import static org.mockito.Mockito.times;
@@ -101,6 +104,43 @@ public class ChdKafkaProducerTest {
         verify(recordMetadataFuture, times(1)).get();
     }
 
+    @Test
+    public void testChdProducerConfigIsIdempotentBatchedAndCompressed() {
+        ChdProducerConfig config = new ChdProducerConfig();
+        config.setAcks(Acks.WAIT_FOR_ALL);
+        config.setBrokerAddresses(new String[]{TEST_BROKER});
+        config.setRetries(TEST_RETRIES);
+        config.setIdempotent(true);
+        config.setLingerMilliseconds(20);
+        config.setBatchSizeBytes(65536);
+        config.setCompressionType("zstd");
+
+        new ChdKafkaProducer(config, mockProducerFactory);
+
+        ArgumentCaptor<Properties> props = ArgumentCaptor.forClass(Properties.class);
+        verify(mockProducerFactory).getProducer(props.capture());
+        assertEquals(true, props.getValue().get("enable.idempotence"));
+        assertEquals(20, props.getValue().get("linger.ms"));
+        assertEquals(65536, props.getValue().get("batch.size"));
+        assertEquals("zstd", props.getValue().get("compression.type"));
+        assertEquals(null, props.getValue().get("partitioner.class"));
+    }
+
+    @Test
+    public void testChdProducerConfigRoundRobinPartitioner() {
+        ChdProducerConfig config = new ChdProducerConfig();
+        config.setAcks(Acks.WAIT_FOR_ALL);
+        config.setBrokerAddresses(new String[]{TEST_BROKER});
+        config.setRoundRobinPartitioner(true);
+
+        new ChdKafkaProducer(config, mockProducerFactory);
+
+        ArgumentCaptor<Properties> props = ArgumentCaptor.forClass(Properties.class);
+        verify(mockProducerFactory).getProducer(props.capture());
+        assertEquals(RoundRobinPartitioner.class.getName(), props.getValue().get("partitioner.class"));
+        assertEquals(null, props.getValue().get("partition.assignment.strategy"));
+    }
+
     @Test
     public void testCloseRoundRobinAcksNoResponse() throws Exception {
         createTestProducer(true, Acks.NO_RESPONSE);
@@ -0,0 +1,184 @@
+package uk.gov.companieshouse.chdorderconsumer.kafka;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static uk.gov.companieshouse.chdorderconsumer.util.TestUtils.createOrder;
+
+import java.time.Duration;
+import java.util.Map;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.common.TopicPartition;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.kafka.config.KafkaListenerEndpointRegistry;
+import org.springframework.kafka.listener.KafkaBackoffException;
+import org.springframework.kafka.listener.MessageListenerContainer;
+import org.springframework.kafka.support.KafkaHeaders;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.support.MessageBuilder;
+import uk.gov.companieshouse.orders.items.ChdItemOrdered;
+
+@ExtendWith(MockitoExtension.class)
+class DelayedRetrySchedulerTest {
+
+    private static final String CHD_ITEM_ORDERED_TOPIC_RETRY = "chd-item-ordered-retry";
+    private static final String LISTENER_ID = "chd-order-consumer-chd-item-ordered-retry";
+    private static final int LEDGER_CAPACITY = 3;
+    private static final TopicPartition PARTITION = new TopicPartition(CHD_ITEM_ORDERED_TOPIC_RETRY, 0);
+    private static final TopicPartition OTHER_PARTITION = new TopicPartition(CHD_ITEM_ORDERED_TOPIC_RETRY, 1);
+    private static final RetryHeaders RETRY_HEADERS = new RetryHeaders(2, 1L, "chd-item-ordered");
+
+    @Mock
+    private KafkaListenerEndpointRegistry registry;
+
+    @Mock
+    private MessageListenerContainer container;
+
+    @Mock
+    private Consumer<?, ?> consumer;
+
+    private DelayedRetryScheduler schedulerUnderTest;
+
+    @AfterEach
+    void tearDown() {
+        schedulerUnderTest.stop();
+        schedulerUnderTest.destroy();
+    }
+
+    @Test
+    @DisplayName("backoffMillis() doubles the backoff for each failed attempt up to the maximum")
+    void backoffDoublesUpToMaximum() {
+        schedulerUnderTest = createScheduler(Duration.ofMillis(100));
+        assertThat(schedulerUnderTest.backoffMillis(1), is(100L));
+        assertThat(schedulerUnderTest.backoffMillis(2), is(200L));
+        assertThat(schedulerUnderTest.backoffMillis(3), is(400L));
+        assertThat(schedulerUnderTest.backoffMillis(50), is(1000L));
+    }
+
+    @Test
+    @DisplayName("backOff() pauses only the partition of the message and hands its record back to the container")
+    void pausesOnlyPartitionOfMessageBackedOff() {
+        // Given
+        schedulerUnderTest = createScheduler(Duration.ofMinutes(1));
+        givenContainerAssigned();
+
+        // When
+        final KafkaBackoffException exception = assertThrows(KafkaBackoffException.class,
+                () -> schedulerUnderTest.backOff(createMessage(0, 10L), LISTENER_ID, RETRY_HEADERS, 1));
+
+        // Then
+        assertThat(exception.getTopicPartition(), is(PARTITION));
+        verify(container, atLeastOnce()).pausePartition(PARTITION);
+        verify(container, never()).pausePartition(OTHER_PARTITION);
+        verify(container, never()).pause();
+        assertThat(schedulerUnderTest.getBackedOffCount(), is(1));
+    }
+
+    @Test
+    @DisplayName("resume() restores the retry state of a message backed off once it is received again")
+    void restoresRetryStateOfMessageReceivedAgain() {
+        // Given
+        schedulerUnderTest = createScheduler(Duration.ofMinutes(1));
+        givenContainerAssigned();
+        assertThrows(KafkaBackoffException.class,
+                () -> schedulerUnderTest.backOff(createMessage(0, 10L), LISTENER_ID, RETRY_HEADERS, 1));
+
+        // When
+        final Message<ChdItemOrdered> resumed = schedulerUnderTest.resume(createMessage(0, 10L));
+
+        // Then
+        assertThat(RetryHeaders.from(resumed.getHeaders()), is(RETRY_HEADERS));
+        assertThat(RetryHeaders.getTopicAttempt(resumed.getHeaders()), is(1));
+        assertThat(schedulerUnderTest.getBackedOffCount(), is(0));
+    }
+
+    @Test
+    @DisplayName("resume() leaves messages that were not backed off as they are")
+    void leavesOtherMessagesAsTheyAre() {
+        // Given
+        schedulerUnderTest = createScheduler(Duration.ofMinutes(1));
+        givenContainerAssigned();
+        assertThrows(KafkaBackoffException.class,
+                () -> schedulerUnderTest.backOff(createMessage(0, 10L), LISTENER_ID, RETRY_HEADERS, 1));
+        final Message<ChdItemOrdered> message = createMessage(1, 10L);
+
+        // When
+        final Message<ChdItemOrdered> resumed = schedulerUnderTest.resume(message);
+
+        // Then
+        assertThat(resumed, is(sameInstance(message)));
+        assertThat(schedulerUnderTest.getBackedOffCount(), is(1));
+    }
+
+    @Test
+    @DisplayName("backOff() returns false without pausing when the ledger is full")
+    void doesNotBackOffWhenLedgerFull() {
+        // Given
+        schedulerUnderTest = createScheduler(Duration.ofMinutes(1));
+        givenContainerAssigned();
+        for (long offset = 0; offset < LEDGER_CAPACITY; offset++) {
+            final Message<ChdItemOrdered> message = createMessage(0, offset);
+            assertThrows(KafkaBackoffException.class,
+                    () -> schedulerUnderTest.backOff(message, LISTENER_ID, RETRY_HEADERS, 1));
+        }
+
+        // When
+        final boolean backedOff = schedulerUnderTest.backOff(createMessage(1, 0L), LISTENER_ID, RETRY_HEADERS, 1);
+
+        // Then
+        assertThat(backedOff, is(false));
+        verify(container, never()).pausePartition(OTHER_PARTITION);
+        assertThat(schedulerUnderTest.getBackedOffCount(), is(LEDGER_CAPACITY));
+    }
+
+    @Test
+    @DisplayName("backOff() returns false without pausing once stopped")
+    void doesNotBackOffOnceStopped() {
+        // Given
+        schedulerUnderTest = createScheduler(Duration.ofMinutes(1));
+        schedulerUnderTest.stop();
+
+        // When
+        final boolean backedOff = schedulerUnderTest.backOff(createMessage(0, 10L), LISTENER_ID, RETRY_HEADERS, 1);
+
+        // Then
+        assertThat(backedOff, is(false));
+        verify(container, never()).pausePartition(any());
+    }
+
+    private void givenContainerAssigned() {
+        when(registry.getListenerContainer(LISTENER_ID)).thenReturn(container);
+        lenient().when(container.getContainerFor(CHD_ITEM_ORDERED_TOPIC_RETRY, 0)).thenReturn(container);
+    }
+
+    private DelayedRetryScheduler createScheduler(Duration initialBackoff) {
+        final DelayedRetryScheduler scheduler = new DelayedRetryScheduler(registry, initialBackoff,
+                initialBackoff.multipliedBy(10), 0.0, 1, new SimpleMeterRegistry(), LEDGER_CAPACITY,
+                Duration.ofMinutes(15));
+        scheduler.start();
+        return scheduler;
+    }
+
+    private Message<ChdItemOrdered> createMessage(int partition, long offset) {
+        return MessageBuilder.withPayload(createOrder())
+                .copyHeaders(Map.of(KafkaHeaders.RECEIVED_TOPIC, CHD_ITEM_ORDERED_TOPIC_RETRY,
+                        KafkaHeaders.RECEIVED_PARTITION, partition,
+                        KafkaHeaders.OFFSET, offset,
+                        KafkaHeaders.CONSUMER, consumer))
+                .build();
+    }
+}
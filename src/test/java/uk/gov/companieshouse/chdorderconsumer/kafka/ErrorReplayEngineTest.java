@@ -0,0 +1,141 @@
+package uk.gov.companieshouse.chdorderconsumer.kafka;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static uk.gov.companieshouse.chdorderconsumer.util.TestUtils.createOrder;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.kafka.config.KafkaListenerEndpointRegistry;
+import org.springframework.kafka.core.ConsumerFactory;
+import org.springframework.kafka.listener.ContainerProperties;
+import org.springframework.kafka.listener.MessageListenerContainer;
+import org.springframework.kafka.support.KafkaHeaders;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.support.MessageBuilder;
+import uk.gov.companieshouse.orders.items.ChdItemOrdered;
+
+@ExtendWith(MockitoExtension.class)
+class ErrorReplayEngineTest {
+
+    private static final String CHD_ITEM_ORDERED_TOPIC_ERROR = "chd-item-ordered-error";
+    private static final TopicPartition PARTITION_0 = new TopicPartition(CHD_ITEM_ORDERED_TOPIC_ERROR, 0);
+    private static final TopicPartition PARTITION_1 = new TopicPartition(CHD_ITEM_ORDERED_TOPIC_ERROR, 1);
+
+    @Mock
+    private KafkaListenerEndpointRegistry registry;
+
+    @Mock
+    private ConsumerFactory<String, ChdItemOrdered> consumerFactory;
+
+    @Mock
+    private Consumer<String, ChdItemOrdered> consumer;
+
+    @Mock
+    private MessageListenerContainer container;
+
+    private ErrorReplayEngine engineUnderTest;
+
+    @BeforeEach
+    void setUp() {
+        when(consumerFactory.createConsumer(anyString(), anyString())).thenReturn(consumer);
+        when(consumer.partitionsFor(CHD_ITEM_ORDERED_TOPIC_ERROR, Duration.ofSeconds(10))).thenReturn(List.of(
+                new PartitionInfo(CHD_ITEM_ORDERED_TOPIC_ERROR, 0, null, null, null),
+                new PartitionInfo(CHD_ITEM_ORDERED_TOPIC_ERROR, 1, null, null, null)));
+        when(consumer.endOffsets(Set.of(PARTITION_0, PARTITION_1), Duration.ofSeconds(10)))
+                .thenReturn(Map.of(PARTITION_0, 12L, PARTITION_1, 5L));
+        when(consumer.committed(Set.of(PARTITION_0, PARTITION_1), Duration.ofSeconds(10)))
+                .thenReturn(Map.of(PARTITION_0, new OffsetAndMetadata(10L), PARTITION_1, new OffsetAndMetadata(5L)));
+        when(registry.getListenerContainers()).thenReturn(List.of(container));
+        when(container.getAssignedPartitions()).thenReturn(List.of(PARTITION_0, PARTITION_1));
+        when(container.getContainerProperties()).thenReturn(new ContainerProperties(CHD_ITEM_ORDERED_TOPIC_ERROR));
+
+        engineUnderTest = new ErrorReplayEngine(registry,
+                new RepublishBackpressure(registry, 100, Duration.ofSeconds(1)), consumerFactory, new SimpleMeterRegistry(), true, 0,
+                Duration.ofMinutes(1));
+        engineUnderTest.start();
+    }
+
+    @AfterEach
+    void tearDown() {
+        engineUnderTest.stop();
+    }
+
+    @Test
+    @DisplayName("accept() replays each partition up to its end offset when error mode started")
+    void replaysUpToSnapshot() {
+        assertThat(engineUnderTest.getRemaining(), is(2L));
+        assertThat(engineUnderTest.accept(createMessage(0, 10L)), is(true));
+        verify(container, never()).pausePartition(PARTITION_0);
+        assertThat(engineUnderTest.accept(createMessage(0, 11L)), is(true));
+
+        verify(container).pausePartition(PARTITION_0);
+        assertThat(engineUnderTest.getRemaining(), is(0L));
+        assertThat(engineUnderTest.accept(createMessage(0, 12L)), is(false));
+    }
+
+    @Test
+    @DisplayName("accept() pauses the error listener once every partition has been replayed")
+    void pausesErrorListenerWhenComplete() {
+        engineUnderTest.accept(createMessage(0, 10L));
+        verify(container, never()).pause();
+        engineUnderTest.accept(createMessage(0, 11L));
+
+        verify(container).pause();
+        assertThat(engineUnderTest.isComplete(), is(true));
+    }
+
+    @Test
+    @DisplayName("skip() completes a partition whose last records were filtered out before the listener")
+    void completesPartitionOfSkippedRecords() {
+        engineUnderTest.accept(createMessage(0, 10L));
+        engineUnderTest.skip(new ConsumerRecord<>(CHD_ITEM_ORDERED_TOPIC_ERROR, 0, 11L, "key", null));
+
+        verify(container).pause();
+        assertThat(engineUnderTest.getRemaining(), is(0L));
+    }
+
+    @Test
+    @DisplayName("accept() and skip() reject the records past the snapshot fetched in the same poll as the last replayed")
+    void rejectsRecordsPastSnapshotInSamePoll() {
+        final List<Boolean> poll = List.of(
+                engineUnderTest.accept(createMessage(0, 10L)),
+                engineUnderTest.accept(createMessage(0, 11L)),
+                engineUnderTest.accept(createMessage(0, 12L)),
+                engineUnderTest.skip(new ConsumerRecord<>(CHD_ITEM_ORDERED_TOPIC_ERROR, 0, 13L, "key", null)),
+                engineUnderTest.accept(createMessage(0, 14L)));
+
+        assertThat(poll, contains(true, true, false, false, false));
+        assertThat(engineUnderTest.getRemaining(), is(0L));
+        verify(container).pausePartition(PARTITION_0);
+    }
+
+    private static Message<ChdItemOrdered> createMessage(int partition, long offset) {
+        return MessageBuilder.withPayload(createOrder())
+                .copyHeaders(Map.of(KafkaHeaders.RECEIVED_TOPIC, CHD_ITEM_ORDERED_TOPIC_ERROR,
+                        KafkaHeaders.RECEIVED_PARTITION, partition,
+                        KafkaHeaders.OFFSET, offset))
+                .build();
+    }
+}
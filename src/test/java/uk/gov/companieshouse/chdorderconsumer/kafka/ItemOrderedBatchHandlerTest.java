@@ -0,0 +1,172 @@
+package uk.gov.companieshouse.chdorderconsumer.kafka;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static uk.gov.companieshouse.chdorderconsumer.util.TestUtils.createOrder;
+
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.hamcrest.MatcherAssert;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.kafka.support.KafkaHeaders;
+import org.springframework.kafka.support.serializer.SerializationUtils;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHeaders;
+import uk.gov.companieshouse.chdorderconsumer.service.ItemOrderedProcessorService;
+import uk.gov.companieshouse.orders.items.ChdItemOrdered;
+
+@ExtendWith(MockitoExtension.class)
+class ItemOrderedBatchHandlerTest {
+    private static final String CHD_ITEM_ORDERED_TOPIC = "chd-item-ordered";
+    private static final String CHD_ITEM_ORDERED_KEY = "chd-item-ordered";
+    private static final String CHD_ITEM_ORDERED_TOPIC_ERROR = "chd-item-ordered-error";
+
+    @InjectMocks
+    private ItemOrderedBatchHandler batchHandler;
+    @Mock
+    private ItemOrderedProcessorService processor;
+    @Mock
+    private ItemOrderedBatchProcessor batchProcessor;
+    @Mock
+    private ListenerReplayService replayService;
+    @Mock
+    private ErrorReplayEngine errorReplayEngine;
+    @Mock
+    private TransactionalRepublisher transactionalRepublisher;
+    @Mock
+    private PoisonPillRecoverer poisonPillRecoverer;
+    @Mock
+    private Consumer<Message<ChdItemOrdered>> handler;
+    @Captor
+    ArgumentCaptor<List<Message<ChdItemOrdered>>> batchArgument;
+
+    @Test
+    void messageConvertedFromRecordDoesNotCarryRawValueHeader() {
+        // Given
+        final ConsumerRecord<String, ChdItemOrdered> consumed =
+                new ConsumerRecord<>(CHD_ITEM_ORDERED_TOPIC, 0, 10L, CHD_ITEM_ORDERED_KEY, createOrder());
+        consumed.headers().add(ChdItemOrderedDeserializer.RAW_VALUE_HEADER, new byte[] {1, 2, 3});
+
+        // When
+        final Message<ChdItemOrdered> message = ItemOrderedBatchHandler.toMessage(consumed);
+
+        // Then the value is reached through the record only when republished
+        Assertions.assertFalse(message.getHeaders().containsKey(ChdItemOrderedDeserializer.RAW_VALUE_HEADER));
+        MatcherAssert.assertThat(message.getHeaders().get(KafkaHeaders.RAW_DATA), is(sameInstance(consumed)));
+    }
+
+    @Test
+    void errorReplayOnlyCommitsTheOffsetsReplayedWhenThePollSpansTheSnapshot() {
+        // Given a poll of partition 0 whose replay ends at offset 12, and of partition 1 whose replay is unfinished
+        final ConsumerRecord<String, ChdItemOrdered> poisonPillPastSnapshot =
+                new ConsumerRecord<>(CHD_ITEM_ORDERED_TOPIC_ERROR, 0, 13L, CHD_ITEM_ORDERED_KEY, null);
+        poisonPillPastSnapshot.headers().add(SerializationUtils.VALUE_DESERIALIZER_EXCEPTION_HEADER, new byte[4]);
+        final List<ConsumerRecord<String, ChdItemOrdered>> consumerRecords = List.of(
+                new ConsumerRecord<>(CHD_ITEM_ORDERED_TOPIC_ERROR, 0, 10L, CHD_ITEM_ORDERED_KEY, createOrder()),
+                new ConsumerRecord<>(CHD_ITEM_ORDERED_TOPIC_ERROR, 0, 11L, CHD_ITEM_ORDERED_KEY, createOrder()),
+                new ConsumerRecord<>(CHD_ITEM_ORDERED_TOPIC_ERROR, 0, 12L, CHD_ITEM_ORDERED_KEY, createOrder()),
+                poisonPillPastSnapshot,
+                new ConsumerRecord<>(CHD_ITEM_ORDERED_TOPIC_ERROR, 1, 4L, CHD_ITEM_ORDERED_KEY, createOrder()));
+        when(errorReplayEngine.accept(any())).thenAnswer(invocation -> {
+            final MessageHeaders headers = invocation.<Message<?>>getArgument(0).getHeaders();
+            return (Integer) headers.get(KafkaHeaders.RECEIVED_PARTITION) != 0
+                    || (Long) headers.get(KafkaHeaders.OFFSET) < 12L;
+        });
+        when(errorReplayEngine.skip(poisonPillPastSnapshot)).thenReturn(false);
+        when(replayService.onMessage(any())).thenReturn(true);
+        final org.apache.kafka.clients.consumer.Consumer<?, ?> consumer =
+                mock(org.apache.kafka.clients.consumer.Consumer.class);
+
+        // When
+        batchHandler.handleErrorReplay(consumerRecords, consumer, handler);
+
+        // Then
+        verify(poisonPillRecoverer, times(0)).recover(any());
+        verify(batchProcessor).process(batchArgument.capture(), any());
+        Assertions.assertEquals(3, batchArgument.getValue().size());
+        verify(consumer).commitSync(Map.of(
+                new TopicPartition(CHD_ITEM_ORDERED_TOPIC_ERROR, 0), new OffsetAndMetadata(12L),
+                new TopicPartition(CHD_ITEM_ORDERED_TOPIC_ERROR, 1), new OffsetAndMetadata(5L)));
+    }
+
+    @Test
+    void handleHandsPoisonPillsToTheRecoverer() {
+        // Given
+        final ConsumerRecord<String, ChdItemOrdered> poisonPill =
+                new ConsumerRecord<>(CHD_ITEM_ORDERED_TOPIC, 0, 10L, CHD_ITEM_ORDERED_KEY, null);
+        poisonPill.headers().add(SerializationUtils.VALUE_DESERIALIZER_EXCEPTION_HEADER, new byte[4]);
+        final List<ConsumerRecord<String, ChdItemOrdered>> consumerRecords = List.of(poisonPill,
+                new ConsumerRecord<>(CHD_ITEM_ORDERED_TOPIC, 0, 11L, CHD_ITEM_ORDERED_KEY, createOrder()));
+        when(replayService.onMessage(any())).thenReturn(true);
+
+        // When
+        batchHandler.handle(consumerRecords, null, handler);
+
+        // Then
+        verify(poisonPillRecoverer).recover(poisonPill);
+        verify(batchProcessor).process(batchArgument.capture(), any());
+        Assertions.assertEquals(1, batchArgument.getValue().size());
+        Assertions.assertEquals(11L, batchArgument.getValue().get(0).getHeaders().get("kafka_offset"));
+    }
+
+    @Test
+    void handleHandsEveryRecordOfThePollToTheBatchProcessor() {
+        // Given
+        final List<ConsumerRecord<String, ChdItemOrdered>> consumerRecords = List.of(
+                new ConsumerRecord<>(CHD_ITEM_ORDERED_TOPIC, 0, 10L, CHD_ITEM_ORDERED_KEY, createOrder()),
+                new ConsumerRecord<>(CHD_ITEM_ORDERED_TOPIC, 1, 11L, CHD_ITEM_ORDERED_KEY, createOrder()));
+        when(replayService.onMessage(any())).thenReturn(true);
+
+        // When
+        batchHandler.handle(consumerRecords, null, handler);
+
+        // Then
+        verify(batchProcessor).process(batchArgument.capture(), any());
+        final List<Message<ChdItemOrdered>> messages = batchArgument.getValue();
+        Assertions.assertEquals(2, messages.size());
+        Assertions.assertEquals(CHD_ITEM_ORDERED_TOPIC,
+                messages.get(0).getHeaders().get("kafka_receivedTopic"));
+        Assertions.assertEquals(11L, messages.get(1).getHeaders().get("kafka_offset"));
+        verify(processor).prefetchFilingHistories(List.of(consumerRecords.get(0).value(),
+                consumerRecords.get(1).value()));
+    }
+
+    @Test
+    void handleProcessesThePollInATransactionInTransactionalMode() {
+        // Given
+        final List<ConsumerRecord<String, ChdItemOrdered>> consumerRecords = List.of(
+                new ConsumerRecord<>(CHD_ITEM_ORDERED_TOPIC, 0, 10L, CHD_ITEM_ORDERED_KEY, createOrder()));
+        final org.apache.kafka.clients.consumer.Consumer<?, ?> consumer =
+                mock(org.apache.kafka.clients.consumer.Consumer.class);
+        when(replayService.onMessage(any())).thenReturn(true);
+        when(transactionalRepublisher.isEnabled()).thenReturn(true);
+
+        // When
+        batchHandler.handle(consumerRecords, consumer, handler);
+
+        // Then the poll is processed by the transaction only
+        final ArgumentCaptor<Runnable> processing = ArgumentCaptor.forClass(Runnable.class);
+        verify(transactionalRepublisher).processInTransaction(eq(consumerRecords), eq(consumer),
+                processing.capture());
+        verify(batchProcessor, times(0)).process(any(), any());
+        processing.getValue().run();
+        verify(batchProcessor).process(any(), any());
+    }
+}
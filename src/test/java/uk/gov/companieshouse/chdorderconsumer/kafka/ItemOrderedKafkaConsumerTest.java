@@ -3,23 +3,33 @@ package uk.gov.companieshouse.chdorderconsumer.kafka;
 import static org.hamcrest.Matchers.is;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
 import static org.mockito.Mockito.when;
-import static uk.gov.companieshouse.chdorderconsumer.util.TestConstants.ORDER_REFERENCE;
+import static uk.gov.companieshouse.chdorderconsumer.util.TestConstants.MISSING_IMAGE_DELIVERY_ITEM_ID;
 import static uk.gov.companieshouse.chdorderconsumer.util.TestUtils.createOrder;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
 import org.apache.avro.io.EncoderFactory;
 import org.apache.avro.io.JsonEncoder;
 import org.apache.avro.specific.SpecificDatumWriter;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.TopicPartition;
 import org.hamcrest.MatcherAssert;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
@@ -30,16 +40,14 @@ import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.Spy;
 import org.mockito.junit.jupiter.MockitoExtension;
-import org.springframework.kafka.config.KafkaListenerEndpointRegistry;
+import org.springframework.kafka.listener.KafkaBackoffException;
+import org.springframework.kafka.support.Acknowledgment;
+import org.springframework.kafka.support.KafkaHeaders;
 import org.springframework.messaging.MessageHeaders;
 import uk.gov.companieshouse.chdorderconsumer.exception.DuplicateErrorException;
 import uk.gov.companieshouse.chdorderconsumer.exception.RetryableErrorException;
 import uk.gov.companieshouse.chdorderconsumer.exception.ServiceException;
 import uk.gov.companieshouse.chdorderconsumer.service.ItemOrderedProcessorService;
-import uk.gov.companieshouse.kafka.exceptions.SerializationException;
-import uk.gov.companieshouse.kafka.message.Message;
-import uk.gov.companieshouse.kafka.serialization.AvroSerializer;
-import uk.gov.companieshouse.kafka.serialization.SerializerFactory;
 import uk.gov.companieshouse.orders.items.ChdItemOrdered;
 
 @ExtendWith(MockitoExtension.class)
@@ -48,97 +56,49 @@ class ItemOrderedKafkaConsumerTest {
     private static final String CHD_ITEM_ORDERED_KEY = "chd-item-ordered";
     private static final String CHD_ITEM_ORDERED_TOPIC_RETRY = "chd-item-ordered-retry";
     private static final String CHD_ITEM_ORDERED_TOPIC_ERROR = "chd-item-ordered-error";
+    private static final String CHD_ITEM_ORDERED_TOPIC_RETRY_30S = "chd-item-ordered-retry-30s";
+    private static final String CHD_ITEM_ORDERED_TOPIC_RETRY_5M = "chd-item-ordered-retry-5m";
+    private static final String RETRY_LISTENER_ID = "chd-order-consumer-chd-item-ordered-retry";
     private static final String PROCESSING_ERROR_MESSAGE = "Order processing failed.";
+    private static final int MAX_RETRY_ATTEMPTS = 3;
+    private static final RetryHeaders RETRY_HEADERS = new RetryHeaders(1, 1L, CHD_ITEM_ORDERED_TOPIC);
 
     @Spy
     @InjectMocks
     private ItemOrderedKafkaConsumer kafkaConsumer;
     @Mock
-    private ItemOrderedKafkaProducer kafkaProducer;
+    private org.springframework.messaging.Message<ChdItemOrdered> message;
     @Mock
-    private SerializerFactory serializerFactory;
+    private ItemOrderedProcessorService processor;
     @Mock
-    private AvroSerializer serializer;
+    private ParallelRecordProcessor parallelProcessor;
     @Mock
-    private org.springframework.messaging.Message<ChdItemOrdered> message;
+    private ItemOrderedBatchHandler batchHandler;
     @Mock
-    private ItemOrderedProcessorService processor;
-    @Captor
-    ArgumentCaptor<String> orderReferenceArgument;
+    private ItemOrderedRepublisher republisher;
+    @Mock
+    private DelayedRetryScheduler retryScheduler;
+    @Mock
+    private RetryTiers retryTiers;
+    @Mock
+    private ErrorReplayEngine errorReplayEngine;
+    @Mock
+    private ListenerReplayService replayService;
+    @Mock
+    private RecordPrefilter prefilter;
+    @Mock
+    private Acknowledgment acknowledgment;
     @Captor
     ArgumentCaptor<String> currentTopicArgument;
     @Captor
     ArgumentCaptor<String> nextTopicArgument;
-
-    @Test
-    void createRetryMessageBuildsMessageSuccessfully() {
-        // Given
-        final ItemOrderedKafkaConsumer consumerUnderTest =
-                new ItemOrderedKafkaConsumer(new SerializerFactory(),
-                        new ItemOrderedKafkaProducer(),
-                        new KafkaListenerEndpointRegistry(), processor);
-        final ChdItemOrdered originalOrder = createOrder();
-
-        // When
-        final Message retryMessage =
-                consumerUnderTest.createRetryMessage(originalOrder, ORDER_REFERENCE, CHD_ITEM_ORDERED_TOPIC);
-
-        // Then
-        final byte[] retryMessageRawValue = retryMessage.getValue();
-        final ChdItemOrderedDeserializer deserializer = new ChdItemOrderedDeserializer();
-        final ChdItemOrdered deserializedOrderFromRetryMessage =
-                (ChdItemOrdered) deserializer.deserialize(CHD_ITEM_ORDERED_TOPIC, retryMessageRawValue);
-        MatcherAssert.assertThat(deserializedOrderFromRetryMessage, is(originalOrder));
-    }
-
-    @Test
-    void republishMessageToRetryTopicRunsSuccessfully()
-            throws ExecutionException, InterruptedException, SerializationException {
-        // Given & When
-        when(serializerFactory.getGenericRecordSerializer(ChdItemOrdered.class)).thenReturn(serializer);
-        when(serializer.toBinary(any())).thenReturn(new byte[4]);
-        kafkaConsumer.republishMessageToTopic(createOrder(),
-                                              ORDER_REFERENCE,
-                                              CHD_ITEM_ORDERED_TOPIC,
-                                              CHD_ITEM_ORDERED_TOPIC_RETRY);
-        // Then
-        verify(kafkaProducer, times(1)).sendMessage(any());
-    }
-
-    @Test
-    void republishMessageToRetryTopicThrowsSerializationException()
-            throws ExecutionException, InterruptedException, SerializationException {
-        // Given & When
-        when(serializerFactory.getGenericRecordSerializer(ChdItemOrdered.class)).thenReturn(serializer);
-        when(serializer.toBinary(any())).thenThrow(SerializationException.class);
-        kafkaConsumer.republishMessageToTopic(createOrder(),
-                                              ORDER_REFERENCE,
-                                              CHD_ITEM_ORDERED_TOPIC,
-                                              CHD_ITEM_ORDERED_TOPIC_RETRY);
-        // Then
-        verify(kafkaProducer, times(1)).sendMessage(any());
-    }
-
-    @Test
-    void republishMessageToErrorTopicRunsSuccessfully()
-            throws ExecutionException, InterruptedException, SerializationException {
-        // Given & When
-        when(serializerFactory.getGenericRecordSerializer(ChdItemOrdered.class)).thenReturn(serializer);
-        when(serializer.toBinary(any())).thenReturn(new byte[4]);
-        kafkaConsumer.republishMessageToTopic(createOrder(),
-                                              ORDER_REFERENCE,
-                                              CHD_ITEM_ORDERED_TOPIC_RETRY,
-                                              CHD_ITEM_ORDERED_TOPIC_ERROR);
-        // Then
-        verify(kafkaProducer, times(1)).sendMessage(any());
-    }
+    @Captor
+    ArgumentCaptor<RetryHeaders> retryHeadersArgument;
 
     @Test
     void republishMessageSuccessfullyCalledForFirstMainMessageOnRetryableErrorException()
-            throws SerializationException, IOException {
+            throws IOException {
         // Given & When
-        when(serializerFactory.getGenericRecordSerializer(ChdItemOrdered.class)).thenReturn(serializer);
-        when(serializer.toBinary(any())).thenReturn(new byte[4]);
         doThrow(new RetryableErrorException(PROCESSING_ERROR_MESSAGE)).when(kafkaConsumer).logMessageReceived(any(), any());
 
         org.springframework.messaging.Message<ChdItemOrdered> testMessage = createTestMessage(CHD_ITEM_ORDERED_TOPIC);
@@ -160,29 +120,177 @@ class ItemOrderedKafkaConsumerTest {
         kafkaConsumer.handleMessage(testMessage);
 
         // Then
-        verify(kafkaConsumer, times(1)).republishMessageToTopic(any(ChdItemOrdered.class), orderReferenceArgument.capture(),
-                currentTopicArgument.capture(), nextTopicArgument.capture());
-        Assertions.assertEquals(ORDER_REFERENCE, orderReferenceArgument.getValue());
+        verify(republisher, times(1)).republish(eq(testMessage),
+                currentTopicArgument.capture(), nextTopicArgument.capture(), any(RetryHeaders.class));
         Assertions.assertEquals(CHD_ITEM_ORDERED_TOPIC, currentTopicArgument.getValue());
         Assertions.assertEquals(CHD_ITEM_ORDERED_TOPIC_RETRY, nextTopicArgument.getValue());
     }
 
     @Test
     void republishMessageNotCalledForFirstRetryMessageOnRetryableErrorException() {
-        // Given & When
-        doThrow(new RetryableErrorException(PROCESSING_ERROR_MESSAGE)).doNothing().when(kafkaConsumer).logMessageReceived(any(), any());
-        kafkaConsumer.handleMessage(createTestMessage(CHD_ITEM_ORDERED_TOPIC_RETRY));
+        // Given
+        when(replayService.onMessage(any())).thenReturn(true);
+        when(retryScheduler.resume(any())).thenAnswer(invocation -> invocation.getArgument(0));
+        when(retryScheduler.backOff(any(), anyString(), any(), anyInt())).thenThrow(createBackoffException());
+        doThrow(new RetryableErrorException(PROCESSING_ERROR_MESSAGE)).when(kafkaConsumer).logMessageReceived(any(), any());
+
+        // When
+        Assertions.assertThrows(KafkaBackoffException.class, () -> kafkaConsumer.processChdItemOrderedRetry(
+                createTestMessage(CHD_ITEM_ORDERED_TOPIC_RETRY, Map.of(KafkaHeaders.ACKNOWLEDGMENT, acknowledgment))));
+
         // Then
-        verify(kafkaConsumer, times(0)).republishMessageToTopic(any(ChdItemOrdered.class), anyString(), anyString(), anyString());
+        verify(republisher, times(0)).republish(any(), anyString(), anyString(), any());
     }
 
     @Test
     void republishMessageNotCalledForFirstErrorMessageOnRetryableErrorException() {
-        // Given & When
+        // Given
+        doThrow(new RetryableErrorException(PROCESSING_ERROR_MESSAGE)).doNothing().when(kafkaConsumer).logMessageReceived(any(), any());
+        final org.springframework.messaging.Message<ChdItemOrdered> testMessage =
+                createTestMessage(CHD_ITEM_ORDERED_TOPIC_ERROR, Map.of(KafkaHeaders.ACKNOWLEDGMENT, acknowledgment));
+
+        // When
+        kafkaConsumer.handleMessage(testMessage);
+
+        // Then the error message is retried straight away rather than backed off or republished
+        verify(kafkaConsumer, times(2)).logMessageReceived(any(), any());
+        verify(retryScheduler, times(0)).backOff(any(), anyString(), any(), anyInt());
+        verify(republisher, times(0)).republish(any(), anyString(), anyString(), any(RetryHeaders.class));
+        verify(acknowledgment).acknowledge();
+    }
+
+    @Test
+    void republishMessageCalledForErrorMessageAfterMaximumAttemptsOnRetryableErrorException() {
+        // Given
+        doThrow(new RetryableErrorException(PROCESSING_ERROR_MESSAGE)).when(kafkaConsumer).logMessageReceived(any(), any());
+        final org.springframework.messaging.Message<ChdItemOrdered> testMessage =
+                createTestMessage(CHD_ITEM_ORDERED_TOPIC_ERROR, Map.of(KafkaHeaders.ACKNOWLEDGMENT, acknowledgment));
+
+        // When
+        kafkaConsumer.handleMessage(testMessage);
+
+        // Then
+        verify(kafkaConsumer, times(MAX_RETRY_ATTEMPTS)).logMessageReceived(any(), any());
+        verify(republisher, times(1)).republish(any(),
+                currentTopicArgument.capture(), nextTopicArgument.capture(), retryHeadersArgument.capture());
+        Assertions.assertEquals(CHD_ITEM_ORDERED_TOPIC_ERROR, currentTopicArgument.getValue());
+        Assertions.assertEquals(CHD_ITEM_ORDERED_TOPIC_RETRY, nextTopicArgument.getValue());
+        Assertions.assertEquals(MAX_RETRY_ATTEMPTS, retryHeadersArgument.getValue().attempt());
+        verify(acknowledgment, times(1)).acknowledge();
+    }
+
+    @Test
+    void retryableErrorExceptionOnRetryMessageIsBackedOffForDelayedRetry() {
+        // Given
+        when(replayService.onMessage(any())).thenReturn(true);
+        when(retryScheduler.resume(any())).thenAnswer(invocation -> invocation.getArgument(0));
+        when(retryScheduler.backOff(any(), anyString(), any(), anyInt())).thenThrow(createBackoffException());
+        doThrow(new RetryableErrorException(PROCESSING_ERROR_MESSAGE)).when(kafkaConsumer).logMessageReceived(any(), any());
+
+        // When
+        Assertions.assertThrows(KafkaBackoffException.class, () -> kafkaConsumer.processChdItemOrderedRetry(
+                createTestMessage(CHD_ITEM_ORDERED_TOPIC_RETRY, Map.of(KafkaHeaders.ACKNOWLEDGMENT, acknowledgment))));
+
+        // Then the record is handed back to the container, and not acknowledged until received again
+        verify(retryScheduler).backOff(any(), eq(RETRY_LISTENER_ID), any(RetryHeaders.class), eq(1));
+        verifyNoInteractions(acknowledgment);
+    }
+
+    @Test
+    void retryMessageOfAnotherPartitionIsProcessedWhileOneIsBackedOff() {
+        // Given
+        when(replayService.onMessage(any())).thenReturn(true);
+        when(retryScheduler.resume(any())).thenAnswer(invocation -> invocation.getArgument(0));
+        when(retryScheduler.backOff(any(), anyString(), any(), anyInt())).thenThrow(createBackoffException());
         doThrow(new RetryableErrorException(PROCESSING_ERROR_MESSAGE)).doNothing().when(kafkaConsumer).logMessageReceived(any(), any());
-        kafkaConsumer.handleMessage(createTestMessage(CHD_ITEM_ORDERED_TOPIC_ERROR));
+        Assertions.assertThrows(KafkaBackoffException.class, () -> kafkaConsumer.processChdItemOrderedRetry(
+                createTestMessage(CHD_ITEM_ORDERED_TOPIC_RETRY)));
+
+        // When
+        kafkaConsumer.processChdItemOrderedRetry(createTestMessage(CHD_ITEM_ORDERED_TOPIC_RETRY,
+                Map.of(KafkaHeaders.RECEIVED_PARTITION, 1, KafkaHeaders.ACKNOWLEDGMENT, acknowledgment)));
+
+        // Then
+        verify(processor, times(1)).processItemOrdered(any());
+        verify(acknowledgment).acknowledge();
+        verify(retryScheduler, times(1)).backOff(any(), anyString(), any(), anyInt());
+    }
+
+    @Test
+    void retryMessageThatCannotBeBackedOffIsRepublishedAndAcknowledged() {
+        // Given
+        when(replayService.onMessage(any())).thenReturn(true);
+        when(retryScheduler.resume(any())).thenAnswer(invocation -> invocation.getArgument(0));
+        doThrow(new RetryableErrorException(PROCESSING_ERROR_MESSAGE)).when(kafkaConsumer).logMessageReceived(any(), any());
+
+        // When
+        kafkaConsumer.processChdItemOrderedRetry(createTestMessage(CHD_ITEM_ORDERED_TOPIC_RETRY,
+                Map.of(KafkaHeaders.ACKNOWLEDGMENT, acknowledgment)));
+
+        // Then
+        verify(retryScheduler).backOff(any(), eq(RETRY_LISTENER_ID), any(RetryHeaders.class), eq(1));
+        verify(republisher, times(1)).republish(any(), eq(CHD_ITEM_ORDERED_TOPIC_RETRY),
+                eq(CHD_ITEM_ORDERED_TOPIC_ERROR), any(RetryHeaders.class));
+        verify(acknowledgment).acknowledge();
+    }
+
+    @Test
+    void retryableErrorExceptionOnRetryMessageHandledOffTheListenerThreadIsRepublishedStraightAway() {
+        // Given
+        doThrow(new RetryableErrorException(PROCESSING_ERROR_MESSAGE)).when(kafkaConsumer).logMessageReceived(any(), any());
+
+        // When
+        kafkaConsumer.handleMessage(createTestMessage(CHD_ITEM_ORDERED_TOPIC_RETRY));
+
+        // Then the container has moved past the record of a worker or batch message, so it cannot be backed off
+        verify(retryScheduler, times(0)).backOff(any(), anyString(), any(), anyInt());
+        verify(republisher, times(1)).republish(any(), eq(CHD_ITEM_ORDERED_TOPIC_RETRY),
+                eq(CHD_ITEM_ORDERED_TOPIC_ERROR), any(RetryHeaders.class));
+    }
+
+    @Test
+    void retryableErrorExceptionIsRepublishedToNextRetryTierWhenTiersConfigured() {
+        // Given
+        when(retryTiers.isEnabled()).thenReturn(true);
+        when(retryTiers.nextTopic(CHD_ITEM_ORDERED_TOPIC_RETRY_30S, CHD_ITEM_ORDERED_TOPIC_ERROR))
+                .thenReturn(CHD_ITEM_ORDERED_TOPIC_RETRY_5M);
+        doThrow(new RetryableErrorException(PROCESSING_ERROR_MESSAGE)).when(kafkaConsumer).logMessageReceived(any(), any());
+
+        // When
+        kafkaConsumer.handleMessage(createTestMessage(CHD_ITEM_ORDERED_TOPIC_RETRY_30S));
+
+        // Then
+        verify(republisher, times(1)).republish(any(),
+                currentTopicArgument.capture(), nextTopicArgument.capture(), any(RetryHeaders.class));
+        Assertions.assertEquals(CHD_ITEM_ORDERED_TOPIC_RETRY_30S, currentTopicArgument.getValue());
+        Assertions.assertEquals(CHD_ITEM_ORDERED_TOPIC_RETRY_5M, nextTopicArgument.getValue());
+        verify(retryScheduler, times(0)).backOff(any(), anyString(), any(), anyInt());
+    }
+
+    @Test
+    void republishMessageCalledForRetryMessageAfterMaximumAttemptsOnItsTopic() {
+        // Given
+        when(replayService.onMessage(any())).thenReturn(true);
+        doThrow(new RetryableErrorException(PROCESSING_ERROR_MESSAGE)).when(kafkaConsumer).logMessageReceived(any(), any());
+        final org.springframework.messaging.Message<ChdItemOrdered> received =
+                createTestMessage(CHD_ITEM_ORDERED_TOPIC_RETRY);
+        // the retry state the scheduler recorded when the message was last backed off
+        when(retryScheduler.resume(received)).thenReturn(createTestMessage(CHD_ITEM_ORDERED_TOPIC_RETRY, Map.of(
+                RetryHeaders.RETRY_ATTEMPT, 3,
+                RetryHeaders.ORIGIN_TOPIC, CHD_ITEM_ORDERED_TOPIC,
+                RetryHeaders.TOPIC_ATTEMPT, 2)));
+
+        // When
+        kafkaConsumer.processChdItemOrderedRetry(received);
+
         // Then
-        verify(kafkaConsumer, times(0)).republishMessageToTopic(any(ChdItemOrdered.class), anyString(), anyString(), anyString());
+        final ArgumentCaptor<RetryHeaders> retryHeadersArgument = ArgumentCaptor.forClass(RetryHeaders.class);
+        verify(retryScheduler, times(0)).backOff(any(), anyString(), any(), anyInt());
+        verify(republisher, times(1)).republish(any(),
+                anyString(), nextTopicArgument.capture(), retryHeadersArgument.capture());
+        Assertions.assertEquals(CHD_ITEM_ORDERED_TOPIC_ERROR, nextTopicArgument.getValue());
+        Assertions.assertEquals(4, retryHeadersArgument.getValue().attempt());
+        Assertions.assertEquals(CHD_ITEM_ORDERED_TOPIC, retryHeadersArgument.getValue().originTopic());
     }
 
     @Test
@@ -191,7 +299,7 @@ class ItemOrderedKafkaConsumerTest {
         doThrow(new ServiceException("exception")).when(kafkaConsumer).logMessageReceived(any(), any());
         kafkaConsumer.handleMessage(createTestMessage(CHD_ITEM_ORDERED_TOPIC));
         // Then
-        verify(kafkaConsumer, times(0)).republishMessageToTopic(any(), anyString(), anyString(), anyString());
+        verify(republisher, times(0)).republish(any(), anyString(), anyString(), any());
     }
 
     @Test
@@ -201,7 +309,25 @@ class ItemOrderedKafkaConsumerTest {
         doThrow(new DuplicateErrorException(errMsg)).doNothing().when(kafkaConsumer).logMessageReceived(any(), any());
         kafkaConsumer.handleMessage(createTestMessage(CHD_ITEM_ORDERED_TOPIC));
         // Then kafka is not called
-        verify(kafkaConsumer, times(0)).republishMessageToTopic(any(), anyString(), anyString(), anyString());
+        verify(republisher, times(0)).republish(any(), anyString(), anyString(), any());
+        verify(prefilter).markProcessed(MISSING_IMAGE_DELIVERY_ITEM_ID);
+    }
+
+    @Test
+    void handleMessageRemembersItemProcessedForPrefilter() {
+        // Given & When
+        kafkaConsumer.handleMessage(createTestMessage(CHD_ITEM_ORDERED_TOPIC));
+        // Then
+        verify(prefilter).markProcessed(MISSING_IMAGE_DELIVERY_ITEM_ID);
+    }
+
+    @Test
+    void handleMessageAcknowledgesMessageProcessed() {
+        // Given & When
+        kafkaConsumer.handleMessage(createTestMessage(CHD_ITEM_ORDERED_TOPIC,
+                Map.of(KafkaHeaders.ACKNOWLEDGMENT, acknowledgment)));
+        // Then
+        verify(acknowledgment).acknowledge();
     }
 
     @Test
@@ -237,7 +363,130 @@ class ItemOrderedKafkaConsumerTest {
         verify(kafkaConsumer, times(1)).processChdItemOrderedError(any());
     }
 
+    @Test
+    void errorListenerOnlyProcessesMessagesAcceptedForReplay() {
+        // Given
+        final Acknowledgment pastSnapshotAcknowledgment = mock(Acknowledgment.class);
+        final org.springframework.messaging.Message<ChdItemOrdered> replayed = createTestMessage(
+                CHD_ITEM_ORDERED_TOPIC_ERROR, Map.of(KafkaHeaders.ACKNOWLEDGMENT, acknowledgment));
+        final org.springframework.messaging.Message<ChdItemOrdered> pastSnapshot = createTestMessage(
+                CHD_ITEM_ORDERED_TOPIC_ERROR, Map.of(KafkaHeaders.ACKNOWLEDGMENT, pastSnapshotAcknowledgment));
+        when(errorReplayEngine.accept(replayed)).thenReturn(true);
+        when(errorReplayEngine.accept(pastSnapshot)).thenReturn(false);
+        when(replayService.onMessage(any())).thenReturn(true);
+
+        // When
+        kafkaConsumer.processChdItemOrderedError(replayed);
+        kafkaConsumer.processChdItemOrderedError(pastSnapshot);
+
+        // Then
+        verify(kafkaConsumer, times(1)).handleMessage(replayed);
+        verify(kafkaConsumer, times(0)).handleMessage(pastSnapshot);
+        verify(acknowledgment).acknowledge();
+        verifyNoInteractions(pastSnapshotAcknowledgment);
+    }
+
+    @Test
+    void recordDispatchedToWorkerHasItsFilingHistoryPrefetchedWhenPrefetchingAsynchronously() {
+        // Given
+        final org.springframework.messaging.Message<ChdItemOrdered> message =
+                createTestMessage(CHD_ITEM_ORDERED_TOPIC);
+        when(replayService.onMessage(message)).thenReturn(true);
+        when(parallelProcessor.isEnabled()).thenReturn(true);
+        when(processor.prefetchesFilingHistoriesAsynchronously()).thenReturn(true);
+
+        // When
+        kafkaConsumer.dispatchMessage(message);
+
+        // Then
+        verify(processor).prefetchFilingHistories(List.of(message.getPayload()));
+        verify(parallelProcessor).dispatch(eq(message), any());
+    }
+
+    @Test
+    void batchListenerHandsThePollToTheBatchHandler() {
+        // Given
+        final List<ConsumerRecord<String, ChdItemOrdered>> consumerRecords = List.of(
+                new ConsumerRecord<>(CHD_ITEM_ORDERED_TOPIC, 0, 10L, CHD_ITEM_ORDERED_KEY, createOrder()));
+        final org.apache.kafka.clients.consumer.Consumer<?, ?> consumer =
+                mock(org.apache.kafka.clients.consumer.Consumer.class);
+
+        // When
+        kafkaConsumer.processChdItemOrderedBatch(consumerRecords, consumer);
+
+        // Then
+        verify(batchHandler).handle(eq(consumerRecords), eq(consumer), any());
+        verify(batchHandler, times(0)).handleErrorReplay(any(), any(), any());
+    }
+
+    @Test
+    void errorBatchListenerHandsThePollToTheBatchHandlerForReplay() {
+        // Given
+        final List<ConsumerRecord<String, ChdItemOrdered>> consumerRecords = List.of(
+                new ConsumerRecord<>(CHD_ITEM_ORDERED_TOPIC_ERROR, 0, 10L, CHD_ITEM_ORDERED_KEY, createOrder()));
+        final org.apache.kafka.clients.consumer.Consumer<?, ?> consumer =
+                mock(org.apache.kafka.clients.consumer.Consumer.class);
+
+        // When
+        kafkaConsumer.processChdItemOrderedErrorBatch(consumerRecords, consumer);
+
+        // Then
+        verify(batchHandler).handleErrorReplay(eq(consumerRecords), eq(consumer), any());
+        verify(batchHandler, times(0)).handle(any(), any(), any());
+    }
+
+    @Test
+    void batchMessagesFailingConcurrentlyAreEachRepublishedWithTheirOwnRetryState() {
+        // Given
+        doThrow(new RetryableErrorException(PROCESSING_ERROR_MESSAGE)).when(kafkaConsumer).logMessageReceived(any(), any());
+        final ItemOrderedBatchProcessor processorUnderTest = new ItemOrderedBatchProcessor(4, OrderingKey.KEY);
+        final List<org.springframework.messaging.Message<ChdItemOrdered>> messages = IntStream.range(0, 50)
+                .mapToObj(index -> createTestMessage(CHD_ITEM_ORDERED_TOPIC,
+                        Map.of(KafkaHeaders.RECEIVED_KEY, "key-" + index)))
+                .toList();
+
+        // When
+        processorUnderTest.process(messages, kafkaConsumer::handleMessage);
+        processorUnderTest.destroy();
+
+        // Then
+        final ArgumentCaptor<RetryHeaders> retryHeadersArgument = ArgumentCaptor.forClass(RetryHeaders.class);
+        verify(republisher, times(50)).republish(any(), eq(CHD_ITEM_ORDERED_TOPIC),
+                eq(CHD_ITEM_ORDERED_TOPIC_RETRY), retryHeadersArgument.capture());
+        retryHeadersArgument.getAllValues().forEach(retryHeaders ->
+                Assertions.assertEquals(1, retryHeaders.attempt()));
+    }
+
+    @Test
+    void batchProcessorHandlesEveryMessage() {
+        // Given
+        final ItemOrderedBatchProcessor processorUnderTest = new ItemOrderedBatchProcessor(2, OrderingKey.REFERENCE);
+        final List<org.springframework.messaging.Message<ChdItemOrdered>> messages = List.of(
+                createTestMessage(CHD_ITEM_ORDERED_TOPIC), createTestMessage(CHD_ITEM_ORDERED_TOPIC),
+                createTestMessage(CHD_ITEM_ORDERED_TOPIC));
+        final List<org.springframework.messaging.Message<ChdItemOrdered>> handled =
+                Collections.synchronizedList(new ArrayList<>());
+        final Consumer<org.springframework.messaging.Message<ChdItemOrdered>> handler = handled::add;
+
+        // When
+        processorUnderTest.process(messages, handler);
+        processorUnderTest.destroy();
+
+        // Then
+        Assertions.assertEquals(3, handled.size());
+    }
+
+    private static KafkaBackoffException createBackoffException() {
+        return new KafkaBackoffException("Backing off", new TopicPartition(CHD_ITEM_ORDERED_TOPIC_RETRY, 0),
+                RETRY_LISTENER_ID, Long.MAX_VALUE);
+    }
+
     private static org.springframework.messaging.Message<ChdItemOrdered> createTestMessage(String receivedTopic) {
+        return createTestMessage(receivedTopic, Collections.emptyMap());
+    }
+
+    private static org.springframework.messaging.Message<ChdItemOrdered> createTestMessage(String receivedTopic,
+            Map<String, Object> additionalHeaders) {
         return new org.springframework.messaging.Message<>() {
             @Override
             public ChdItemOrdered getPayload() {
@@ -251,6 +500,7 @@ class ItemOrderedKafkaConsumerTest {
                 headerItems.put("kafka_offset", 0);
                 headerItems.put("kafka_receivedMessageKey", CHD_ITEM_ORDERED_KEY);
                 headerItems.put("kafka_receivedPartitionId", 0);
+                headerItems.putAll(additionalHeaders);
                 return new MessageHeaders(headerItems);
             }
         };
@@ -0,0 +1,52 @@
+package uk.gov.companieshouse.chdorderconsumer.kafka;
+
+import static org.mockito.Mockito.verify;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import uk.gov.companieshouse.kafka.producer.ProducerConfig;
+
+@ExtendWith(MockitoExtension.class)
+class ItemOrderedKafkaProducerTest {
+
+    @Mock
+    private ChdKafkaProducer chKafkaProducer;
+
+    @Mock
+    private ProducerConfig producerConfig;
+
+    /**
+     * Extends {@link ItemOrderedKafkaProducer} to stub out the creation of the producer.
+     */
+    private class TestItemOrderedKafkaProducer extends ItemOrderedKafkaProducer {
+
+        @Override
+        protected ProducerConfig createProducerConfig() {
+            return producerConfig;
+        }
+
+        @Override
+        protected ChdKafkaProducer createChKafkaProducer(final ProducerConfig config) {
+            return chKafkaProducer;
+        }
+    }
+
+    @Test
+    @DisplayName("destroy() closes the producer, so that the messages lingering in its batches are sent")
+    void destroyClosesProducer() {
+
+        // Given
+        final ItemOrderedKafkaProducer producerUnderTest = new TestItemOrderedKafkaProducer();
+        producerUnderTest.afterPropertiesSet();
+
+        // When
+        producerUnderTest.destroy();
+
+        // Then
+        verify(chKafkaProducer).close();
+
+    }
+}
@@ -0,0 +1,202 @@
+package uk.gov.companieshouse.chdorderconsumer.kafka;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+import static uk.gov.companieshouse.chdorderconsumer.util.TestConstants.ORDER_REFERENCE;
+import static uk.gov.companieshouse.chdorderconsumer.util.TestUtils.createOrder;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.errors.TimeoutException;
+import org.hamcrest.MatcherAssert;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.kafka.support.KafkaHeaders;
+import org.springframework.messaging.support.MessageBuilder;
+import uk.gov.companieshouse.kafka.exceptions.SerializationException;
+import uk.gov.companieshouse.kafka.message.Message;
+import uk.gov.companieshouse.kafka.serialization.AvroSerializer;
+import uk.gov.companieshouse.kafka.serialization.SerializerFactory;
+import uk.gov.companieshouse.orders.items.ChdItemOrdered;
+
+@ExtendWith(MockitoExtension.class)
+class ItemOrderedRepublisherTest {
+    private static final String CHD_ITEM_ORDERED_TOPIC = "chd-item-ordered";
+    private static final String CHD_ITEM_ORDERED_KEY = "chd-item-ordered";
+    private static final String CHD_ITEM_ORDERED_TOPIC_RETRY = "chd-item-ordered-retry";
+    private static final String CHD_ITEM_ORDERED_TOPIC_ERROR = "chd-item-ordered-error";
+    private static final RetryHeaders RETRY_HEADERS = new RetryHeaders(1, 1L, CHD_ITEM_ORDERED_TOPIC);
+
+    @InjectMocks
+    private ItemOrderedRepublisher republisher;
+    @Mock
+    private SerializerFactory serializerFactory;
+    @Mock
+    private AvroSerializer serializer;
+    @Mock
+    private ItemOrderedKafkaProducer kafkaProducer;
+    @Mock
+    private RepublishBackpressure republishBackpressure;
+    @Mock
+    private TransactionalRepublisher transactionalRepublisher;
+    @Mock
+    private RepublishSpool republishSpool;
+
+    @Test
+    void createRetryMessageBuildsMessageSuccessfully() {
+        // Given
+        final ItemOrderedRepublisher republisherUnderTest = new ItemOrderedRepublisher(new SerializerFactory(),
+                kafkaProducer, republishBackpressure, transactionalRepublisher, republishSpool);
+        final ChdItemOrdered originalOrder = createOrder();
+
+        // When
+        final Message retryMessage =
+                republisherUnderTest.createRetryMessage(originalOrder, ORDER_REFERENCE, CHD_ITEM_ORDERED_TOPIC,
+                        RETRY_HEADERS);
+
+        // Then
+        final byte[] retryMessageRawValue = retryMessage.getValue();
+        final ChdItemOrderedDeserializer deserializer = new ChdItemOrderedDeserializer();
+        final ChdItemOrdered deserializedOrderFromRetryMessage =
+                (ChdItemOrdered) deserializer.deserialize(CHD_ITEM_ORDERED_TOPIC, retryMessageRawValue);
+        MatcherAssert.assertThat(deserializedOrderFromRetryMessage, is(originalOrder));
+        MatcherAssert.assertThat(retryMessage.getKey(), is(ORDER_REFERENCE));
+    }
+
+    @Test
+    void createRetryMessageForwardsRawValueAndHeadersOfRecordConsumed() {
+        // Given
+        final byte[] rawValue = new byte[] {1, 2, 3};
+        final byte[] traceId = "trace".getBytes(StandardCharsets.UTF_8);
+        final ConsumerRecord<String, ChdItemOrdered> consumed =
+                new ConsumerRecord<>(CHD_ITEM_ORDERED_TOPIC, 0, 10L, CHD_ITEM_ORDERED_KEY, createOrder());
+        consumed.headers().add(ChdItemOrderedDeserializer.RAW_VALUE_HEADER, rawValue);
+        consumed.headers().add("trace_id", traceId);
+        consumed.headers().add(RetryHeaders.RETRY_ATTEMPT, "7".getBytes(StandardCharsets.UTF_8));
+        final org.springframework.messaging.Message<ChdItemOrdered> received = ItemOrderedBatchHandler.toMessage(consumed);
+
+        // When
+        final RepublishMessage retryMessage = (RepublishMessage)
+                republisher.createRetryMessage(received, CHD_ITEM_ORDERED_TOPIC_RETRY, RETRY_HEADERS);
+
+        // Then the value is neither decoded nor encoded again
+        MatcherAssert.assertThat(retryMessage.getValue(), is(sameInstance(rawValue)));
+        MatcherAssert.assertThat(retryMessage.getKey(), is(ORDER_REFERENCE));
+        MatcherAssert.assertThat(retryMessage.getHeaders().get("trace_id"), is(traceId));
+        MatcherAssert.assertThat(new String(retryMessage.getHeaders().get(RetryHeaders.RETRY_ATTEMPT),
+                StandardCharsets.UTF_8), is("1"));
+        Assertions.assertFalse(retryMessage.getHeaders().containsKey(ChdItemOrderedDeserializer.RAW_VALUE_HEADER));
+        Assertions.assertFalse(retryMessage.getHeaders().containsKey("kafka_receivedTopic"));
+        verifyNoInteractions(serializerFactory);
+    }
+
+    @Test
+    void republishMessageToRetryTopicRunsSuccessfully()
+            throws ExecutionException, InterruptedException, SerializationException {
+        // Given & When
+        when(serializerFactory.getGenericRecordSerializer(ChdItemOrdered.class)).thenReturn(serializer);
+        when(serializer.toBinary(any())).thenReturn(new byte[4]);
+        when(kafkaProducer.sendMessageAsync(any())).thenReturn(CompletableFuture.completedFuture(null));
+        republisher.republish(createOrder(),
+                              ORDER_REFERENCE,
+                              CHD_ITEM_ORDERED_TOPIC,
+                              CHD_ITEM_ORDERED_TOPIC_RETRY,
+                              RETRY_HEADERS);
+        // Then
+        verify(kafkaProducer, times(1)).sendMessageAsync(any());
+        verify(republishBackpressure, times(1)).acquire();
+        verify(republishBackpressure, times(1)).release();
+    }
+
+    @Test
+    void republishMessageToRetryTopicThrowsSerializationException()
+            throws ExecutionException, InterruptedException, SerializationException {
+        // Given & When
+        when(serializerFactory.getGenericRecordSerializer(ChdItemOrdered.class)).thenReturn(serializer);
+        when(serializer.toBinary(any())).thenThrow(SerializationException.class);
+        when(kafkaProducer.sendMessageAsync(any())).thenReturn(CompletableFuture.completedFuture(null));
+        republisher.republish(createOrder(),
+                              ORDER_REFERENCE,
+                              CHD_ITEM_ORDERED_TOPIC,
+                              CHD_ITEM_ORDERED_TOPIC_RETRY,
+                              RETRY_HEADERS);
+        // Then
+        verify(kafkaProducer, times(1)).sendMessageAsync(any());
+        verify(republishBackpressure, times(1)).acquire();
+        verify(republishBackpressure, times(1)).release();
+    }
+
+    @Test
+    void republishMessageToErrorTopicRunsSuccessfully()
+            throws ExecutionException, InterruptedException, SerializationException {
+        // Given & When
+        when(serializerFactory.getGenericRecordSerializer(ChdItemOrdered.class)).thenReturn(serializer);
+        when(serializer.toBinary(any())).thenReturn(new byte[4]);
+        when(kafkaProducer.sendMessageAsync(any())).thenReturn(CompletableFuture.completedFuture(null));
+        republisher.republish(createOrder(),
+                              ORDER_REFERENCE,
+                              CHD_ITEM_ORDERED_TOPIC_RETRY,
+                              CHD_ITEM_ORDERED_TOPIC_ERROR,
+                              RETRY_HEADERS);
+        // Then
+        verify(kafkaProducer, times(1)).sendMessageAsync(any());
+        verify(republishBackpressure, times(1)).acquire();
+        verify(republishBackpressure, times(1)).release();
+    }
+
+    @Test
+    void republishMessageReleasesBackpressureAndSpoolsMessageWhenSendFails()
+            throws InterruptedException, SerializationException {
+        // Given
+        final CompletableFuture<RecordMetadata> send = new CompletableFuture<>();
+        when(serializerFactory.getGenericRecordSerializer(ChdItemOrdered.class)).thenReturn(serializer);
+        when(serializer.toBinary(any())).thenReturn(new byte[4]);
+        when(kafkaProducer.sendMessageAsync(any())).thenReturn(send);
+
+        // When
+        republisher.republish(createOrder(),
+                              ORDER_REFERENCE,
+                              CHD_ITEM_ORDERED_TOPIC,
+                              CHD_ITEM_ORDERED_TOPIC_RETRY,
+                              RETRY_HEADERS);
+
+        // Then the listener thread does not wait for the send to complete
+        verify(republishBackpressure, times(1)).acquire();
+        verify(republishBackpressure, times(0)).release();
+        send.completeExceptionally(new TimeoutException("Expiring record"));
+        verify(republishBackpressure, times(1)).release();
+        verify(republishSpool, times(1)).append(any());
+    }
+
+    @Test
+    void republishMessageAddsMessageToTransactionOfItsPoll() throws SerializationException {
+        // Given
+        when(serializerFactory.getGenericRecordSerializer(ChdItemOrdered.class)).thenReturn(serializer);
+        when(serializer.toBinary(any())).thenReturn(new byte[4]);
+        final org.springframework.messaging.Message<ChdItemOrdered> testMessage = MessageBuilder
+                .withPayload(createOrder())
+                .setHeader(KafkaHeaders.RECEIVED_TOPIC, CHD_ITEM_ORDERED_TOPIC)
+                .build();
+        when(transactionalRepublisher.collect(eq(testMessage), any())).thenReturn(true);
+
+        // When
+        republisher.republish(testMessage, CHD_ITEM_ORDERED_TOPIC, CHD_ITEM_ORDERED_TOPIC_RETRY, RETRY_HEADERS);
+
+        // Then
+        verify(kafkaProducer, times(0)).sendMessageAsync(any());
+        verifyNoInteractions(republishBackpressure);
+    }
+}
@@ -0,0 +1,88 @@
+package uk.gov.companieshouse.chdorderconsumer.kafka;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+class KeyOrderedExecutorTest {
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    @AfterEach
+    void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    @DisplayName("submit() runs tasks sharing a key in submission order")
+    void runsTasksWithSameKeyInOrder() throws Exception {
+        // Given
+        final KeyOrderedExecutor executorUnderTest = new KeyOrderedExecutor(executor, 100);
+        final List<Integer> completed = Collections.synchronizedList(new ArrayList<>());
+        final List<CompletableFuture<Void>> futures = new ArrayList<>();
+
+        // When
+        for (int i = 0; i < 20; i++) {
+            final int task = i;
+            futures.add(executorUnderTest.submit("ORD-1", () -> completed.add(task)));
+        }
+        CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).get(5, TimeUnit.SECONDS);
+
+        // Then
+        assertThat(completed, contains(0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18, 19));
+    }
+
+    @Test
+    @DisplayName("submit() runs tasks with different keys concurrently")
+    void runsTasksWithDifferentKeysConcurrently() throws Exception {
+        // Given
+        final KeyOrderedExecutor executorUnderTest = new KeyOrderedExecutor(executor, 100);
+        final CountDownLatch bothStarted = new CountDownLatch(2);
+        final List<Boolean> sawOtherTaskRunning = Collections.synchronizedList(new ArrayList<>());
+        final Runnable task = () -> {
+            bothStarted.countDown();
+            try {
+                sawOtherTaskRunning.add(bothStarted.await(2, TimeUnit.SECONDS));
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        };
+
+        // When
+        final CompletableFuture<Void> first = executorUnderTest.submit("ORD-1", task);
+        final CompletableFuture<Void> second = executorUnderTest.submit("ORD-2", task);
+        CompletableFuture.allOf(first, second).get(5, TimeUnit.SECONDS);
+
+        // Then
+        assertThat(sawOtherTaskRunning, contains(true, true));
+    }
+
+    @Test
+    @DisplayName("submit() keeps running tasks for a key after one of them fails")
+    void continuesAfterFailedTask() throws Exception {
+        // Given
+        final KeyOrderedExecutor executorUnderTest = new KeyOrderedExecutor(executor, 100);
+        final List<String> completed = Collections.synchronizedList(new ArrayList<>());
+
+        // When
+        executorUnderTest.submit("ORD-1", () -> {
+            throw new IllegalStateException("failed");
+        });
+        executorUnderTest.submit("ORD-1", () -> completed.add("second")).get(5, TimeUnit.SECONDS);
+
+        // Then
+        assertThat(completed, contains("second"));
+    }
+}
@@ -0,0 +1,95 @@
+package uk.gov.companieshouse.chdorderconsumer.kafka;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.time.Duration;
+import java.util.List;
+
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.common.PartitionInfo;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.kafka.config.KafkaListenerEndpointRegistry;
+import org.springframework.kafka.core.ConsumerFactory;
+import org.springframework.kafka.listener.ConcurrentMessageListenerContainer;
+import org.springframework.kafka.listener.ContainerProperties;
+import uk.gov.companieshouse.orders.items.ChdItemOrdered;
+
+@ExtendWith(MockitoExtension.class)
+class ListenerConcurrencyControllerTest {
+
+    private static final int CONSUMERS_PER_CORE = 64;
+    private static final int MAX_CONCURRENCY = 3;
+
+    @Mock
+    private KafkaListenerEndpointRegistry registry;
+
+    @Mock
+    private ConsumerFactory<String, ChdItemOrdered> consumerFactory;
+
+    @Mock
+    private Consumer<String, ChdItemOrdered> metadataConsumer;
+
+    @Mock
+    private ConcurrentMessageListenerContainer<String, ChdItemOrdered> container;
+
+    @Test
+    @DisplayName("calculateConcurrency() runs one consumer per partition")
+    void runsOneConsumerPerPartition() {
+        final ListenerConcurrencyController controllerUnderTest = createController();
+        assertThat(controllerUnderTest.calculateConcurrency(2), is(2));
+    }
+
+    @Test
+    @DisplayName("calculateConcurrency() caps the consumers at the configured maximum")
+    void capsConsumersAtMaximum() {
+        final ListenerConcurrencyController controllerUnderTest = createController();
+        assertThat(controllerUnderTest.calculateConcurrency(12), is(MAX_CONCURRENCY));
+    }
+
+    @Test
+    @DisplayName("calculateConcurrency() runs at least one consumer when no partitions are found")
+    void runsAtLeastOneConsumer() {
+        final ListenerConcurrencyController controllerUnderTest = createController();
+        assertThat(controllerUnderTest.calculateConcurrency(0), is(1));
+    }
+
+    @Test
+    @DisplayName("evaluate() reads partition counts through one metadata consumer, closed on stop")
+    void reusesMetadataConsumer() {
+        final ListenerConcurrencyController controllerUnderTest = createController();
+        when(registry.getListenerContainers()).thenReturn(List.of(container));
+        when(container.getContainerProperties()).thenReturn(new ContainerProperties("chd-item-ordered"));
+        when(container.getListenerId()).thenReturn("chd-item-ordered-listener");
+        when(container.getConcurrency()).thenReturn(2);
+        when(consumerFactory.createConsumer(anyString(), isNull())).thenReturn(metadataConsumer);
+        when(metadataConsumer.partitionsFor(anyString(), any(Duration.class))).thenReturn(List.of(
+                new PartitionInfo("chd-item-ordered", 0, null, null, null),
+                new PartitionInfo("chd-item-ordered", 1, null, null, null)));
+
+        controllerUnderTest.start();
+        controllerUnderTest.evaluate(true);
+        controllerUnderTest.stop();
+
+        verify(consumerFactory, times(1)).createConsumer(anyString(), isNull());
+        verify(metadataConsumer, times(2)).partitionsFor(anyString(), any(Duration.class));
+        verify(metadataConsumer).close();
+        assertThat(controllerUnderTest.getDecisions().get("chd-item-ordered-listener").partitions(), is(2));
+    }
+
+    private ListenerConcurrencyController createController() {
+        return new ListenerConcurrencyController(registry, consumerFactory, CONSUMERS_PER_CORE, MAX_CONCURRENCY,
+                Duration.ofMinutes(5));
+    }
+}
@@ -0,0 +1,125 @@
+package uk.gov.companieshouse.chdorderconsumer.kafka;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+import static uk.gov.companieshouse.chdorderconsumer.util.TestUtils.createOrder;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.kafka.core.ConsumerFactory;
+import org.springframework.kafka.listener.ConsumerSeekAware.ConsumerSeekCallback;
+import org.springframework.kafka.support.KafkaHeaders;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.support.MessageBuilder;
+import uk.gov.companieshouse.chdorderconsumer.kafka.ListenerReplayService.OffsetRange;
+import uk.gov.companieshouse.chdorderconsumer.kafka.ListenerReplayService.ReplayGroup;
+import uk.gov.companieshouse.orders.items.ChdItemOrdered;
+
+@ExtendWith(MockitoExtension.class)
+class ListenerReplayServiceTest {
+
+    private static final String CHD_ITEM_ORDERED_TOPIC = "chd-item-ordered";
+    private static final TopicPartition PARTITION_0 = new TopicPartition(CHD_ITEM_ORDERED_TOPIC, 0);
+
+    @Mock
+    private ConsumerFactory<String, ChdItemOrdered> consumerFactory;
+
+    @Mock
+    private Consumer<String, ChdItemOrdered> consumer;
+
+    @Mock
+    private ConsumerSeekCallback seekCallback;
+
+    @Mock
+    private ConsumerSeekCallback consumerThreadSeekCallback;
+
+    private ListenerReplayService serviceUnderTest;
+
+    @BeforeEach
+    void setUp() {
+        when(consumerFactory.createConsumer(anyString(), anyString())).thenReturn(consumer);
+        when(consumer.committed(Set.of(PARTITION_0), Duration.ofSeconds(10)))
+                .thenReturn(Map.of(PARTITION_0, new OffsetAndMetadata(50L)));
+
+        serviceUnderTest = new ListenerReplayService(consumerFactory, 0, Duration.ofMinutes(1));
+        serviceUnderTest.registerSeekCallback(seekCallback);
+        serviceUnderTest.partitionsAssigned(List.of(PARTITION_0));
+    }
+
+    @AfterEach
+    void tearDown() {
+        serviceUnderTest.destroy();
+    }
+
+    @Test
+    @DisplayName("replayOffsets() seeks with the callback registered by the consumer thread the partition is assigned to")
+    void seeksWithCallbackOfConsumerThread() throws InterruptedException {
+        final Thread consumerThread = new Thread(() -> {
+            serviceUnderTest.registerSeekCallback(consumerThreadSeekCallback);
+            serviceUnderTest.partitionsAssigned(List.of(PARTITION_0));
+        });
+        consumerThread.start();
+        consumerThread.join();
+
+        serviceUnderTest.replayOffsets(ReplayGroup.MAIN, Map.of(0, new OffsetRange(10L, 11L)), null);
+
+        verify(consumerThreadSeekCallback).seek(CHD_ITEM_ORDERED_TOPIC, 0, 10L);
+        verifyNoInteractions(seekCallback);
+    }
+
+    @Test
+    @DisplayName("replayOffsets() reprocesses the range then resumes from the committed offset")
+    void replaysOffsetRangeThenResumes() {
+        serviceUnderTest.replayOffsets(ReplayGroup.MAIN, Map.of(0, new OffsetRange(10L, 11L)), null);
+        verify(seekCallback).seek(CHD_ITEM_ORDERED_TOPIC, 0, 10L);
+
+        assertThat(serviceUnderTest.onMessage(createMessage(10L)), is(true));
+        assertThat(serviceUnderTest.onMessage(createMessage(11L)), is(true));
+        verify(seekCallback).seek(CHD_ITEM_ORDERED_TOPIC, 0, 50L);
+
+        // Fetched before the seek back took effect
+        assertThat(serviceUnderTest.onMessage(createMessage(12L)), is(false));
+        assertThat(serviceUnderTest.onMessage(createMessage(50L)), is(true));
+        assertThat(serviceUnderTest.getStatus().replayed(), is(2L));
+        assertThat(serviceUnderTest.getStatus().partitionsRemaining(), is(0));
+    }
+
+    @Test
+    @DisplayName("replayFromTimestamp() reprocesses every record up to the committed offset")
+    void replaysFromTimestamp() {
+        serviceUnderTest.replayFromTimestamp(ReplayGroup.MAIN, 1000L, null);
+        verify(seekCallback).seekToTimestamp(CHD_ITEM_ORDERED_TOPIC, 0, 1000L);
+
+        assertThat(serviceUnderTest.onMessage(createMessage(48L)), is(true));
+        assertThat(serviceUnderTest.getStatus().partitionsRemaining(), is(1));
+        assertThat(serviceUnderTest.onMessage(createMessage(49L)), is(true));
+
+        assertThat(serviceUnderTest.getStatus().replayed(), is(2L));
+        assertThat(serviceUnderTest.getStatus().partitionsRemaining(), is(0));
+    }
+
+    private static Message<ChdItemOrdered> createMessage(long offset) {
+        return MessageBuilder.withPayload(createOrder())
+                .copyHeaders(Map.of(KafkaHeaders.RECEIVED_TOPIC, CHD_ITEM_ORDERED_TOPIC,
+                        KafkaHeaders.RECEIVED_PARTITION, 0,
+                        KafkaHeaders.OFFSET, offset))
+                .build();
+    }
+}
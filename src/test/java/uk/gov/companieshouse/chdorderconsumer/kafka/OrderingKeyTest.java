@@ -0,0 +1,39 @@
+package uk.gov.companieshouse.chdorderconsumer.kafka;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static uk.gov.companieshouse.chdorderconsumer.util.TestConstants.ORDER_REFERENCE;
+import static uk.gov.companieshouse.chdorderconsumer.util.TestUtils.createOrder;
+
+import java.util.Map;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.kafka.support.KafkaHeaders;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.support.MessageBuilder;
+import uk.gov.companieshouse.orders.items.ChdItemOrdered;
+
+class OrderingKeyTest {
+
+    private static final String RECORD_KEY = "chd-item-ordered-key";
+
+    @Test
+    @DisplayName("KEY orders messages of the main topic by their record key")
+    void ordersMainTopicMessagesByKey() {
+        assertThat(OrderingKey.KEY.resolve(createMessage("chd-item-ordered")), is(RECORD_KEY));
+    }
+
+    @Test
+    @DisplayName("KEY orders messages of the retry topics by their order reference")
+    void ordersRetryTopicMessagesByReference() {
+        assertThat(OrderingKey.KEY.resolve(createMessage("chd-item-ordered-retry")), is(ORDER_REFERENCE));
+        assertThat(OrderingKey.KEY.resolve(createMessage("chd-item-ordered-retry-30s")), is(ORDER_REFERENCE));
+    }
+
+    private static Message<ChdItemOrdered> createMessage(String receivedTopic) {
+        return MessageBuilder.withPayload(createOrder())
+                .copyHeaders(Map.of(KafkaHeaders.RECEIVED_TOPIC, receivedTopic, KafkaHeaders.RECEIVED_KEY, RECORD_KEY))
+                .build();
+    }
+}
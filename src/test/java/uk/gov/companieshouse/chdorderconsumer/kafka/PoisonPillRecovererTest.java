@@ -0,0 +1,153 @@
+package uk.gov.companieshouse.chdorderconsumer.kafka;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.TimeoutException;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.apache.kafka.common.record.TimestampType;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.kafka.listener.KafkaBackoffException;
+import org.springframework.kafka.listener.ListenerExecutionFailedException;
+import org.springframework.kafka.support.serializer.SerializationUtils;
+
+import uk.gov.companieshouse.chdorderconsumer.exception.TransactionFailedException;
+import uk.gov.companieshouse.kafka.message.Message;
+import uk.gov.companieshouse.orders.items.ChdItemOrdered;
+
+@ExtendWith(MockitoExtension.class)
+class PoisonPillRecovererTest {
+
+    private static final byte[] POISON_PILL = new byte[1024 * 1024];
+
+    static {
+        // never ending variable-length integers
+        Arrays.fill(POISON_PILL, (byte) 0xff);
+    }
+
+    @Mock
+    private ItemOrderedKafkaProducer kafkaProducer;
+
+    @Mock
+    private RepublishSpool republishSpool;
+
+    @InjectMocks
+    private PoisonPillRecoverer recovererUnderTest;
+
+    private final PoisonPillDeserializer<ChdItemOrdered> deserializer =
+            new PoisonPillDeserializer<>(new ChdItemOrderedDeserializer<>());
+
+    @Test
+    @DisplayName("A poison pill is republished to the error topic as it was, with a bounded reason")
+    void republishesPoisonPillToErrorTopic() {
+        final ConsumerRecord<String, ChdItemOrdered> poisonPill = consume("chd-item-ordered");
+        when(kafkaProducer.sendMessageAsync(any())).thenReturn(CompletableFuture.completedFuture(null));
+
+        assertThat(PoisonPillRecoverer.isPoisonPill(poisonPill), is(true));
+        recovererUnderTest.recover(poisonPill);
+
+        final ArgumentCaptor<Message> sent = ArgumentCaptor.forClass(Message.class);
+        verify(kafkaProducer).sendMessageAsync(sent.capture());
+        final RepublishMessage message = (RepublishMessage) sent.getValue();
+        assertThat(message.getTopic(), is("chd-item-ordered-error"));
+        assertThat(message.getKey(), is("key"));
+        assertThat(message.getValue(), is(POISON_PILL));
+        assertThat(message.getHeaders().get("trace"), is("abc".getBytes(StandardCharsets.UTF_8)));
+        assertThat(message.getHeaders().containsKey(SerializationUtils.VALUE_DESERIALIZER_EXCEPTION_HEADER),
+                is(false));
+        final String reason = new String(message.getHeaders().get(PoisonPillRecoverer.DESERIALIZATION_ERROR_HEADER),
+                StandardCharsets.UTF_8);
+        assertThat(reason, containsString("[1048576 bytes: ffff"));
+        assertThat(reason.length() < 1024, is(true));
+    }
+
+    @Test
+    @DisplayName("A poison pill consumed from the error topic is not republished")
+    void skipsPoisonPillOnErrorTopic() {
+        recovererUnderTest.recover(consume("chd-item-ordered-error"));
+
+        verifyNoInteractions(kafkaProducer);
+    }
+
+    @Test
+    @DisplayName("A poison pill that cannot be republished is spooled")
+    void spoolsPoisonPillThatCannotBeRepublished() {
+        when(kafkaProducer.sendMessageAsync(any()))
+                .thenReturn(CompletableFuture.failedFuture(new IllegalStateException("broker unavailable")));
+
+        recovererUnderTest.recover(consume("chd-item-ordered"));
+
+        verify(republishSpool).append(any());
+    }
+
+    @Test
+    @DisplayName("A retry tier record not yet due is handed back to the container rather than recovered")
+    void rethrowsBackoffOfRecordNotYetDue() {
+        final ConsumerRecord<String, ChdItemOrdered> notYetDue =
+                new ConsumerRecord<>("chd-item-ordered-retry-30s", 0, 5L, "key", null);
+        final KafkaBackoffException backoff = new KafkaBackoffException("Partition 0 not ready for consumption",
+                new TopicPartition("chd-item-ordered-retry-30s", 0), "listener", 0L);
+
+        final KafkaBackoffException thrown = assertThrows(KafkaBackoffException.class, () ->
+                recovererUnderTest.accept(notYetDue, new ListenerExecutionFailedException("failed", backoff)));
+
+        assertThat(thrown, is(sameInstance(backoff)));
+        verifyNoInteractions(kafkaProducer, republishSpool);
+    }
+
+    @Test
+    @DisplayName("A record of a poll whose transaction failed is republished to the error topic as consumed")
+    void republishesRecordOfFailedTransactionToErrorTopic() {
+        final byte[] value = "value".getBytes(StandardCharsets.UTF_8);
+        final RecordHeaders headers = new RecordHeaders();
+        headers.add("trace", "abc".getBytes(StandardCharsets.UTF_8));
+        headers.add(ChdItemOrderedDeserializer.RAW_VALUE_HEADER, value);
+        final ConsumerRecord<String, ChdItemOrdered> consumerRecord = new ConsumerRecord<>("chd-item-ordered", 0,
+                5L, 0L, TimestampType.CREATE_TIME, 3, value.length, "key", new ChdItemOrdered(), headers,
+                Optional.empty());
+        when(kafkaProducer.sendMessageAsync(any())).thenReturn(CompletableFuture.completedFuture(null));
+
+        recovererUnderTest.accept(consumerRecord, new ListenerExecutionFailedException("failed",
+                new TransactionFailedException("Transaction republishing poll failed", new TimeoutException())));
+
+        final ArgumentCaptor<Message> sent = ArgumentCaptor.forClass(Message.class);
+        verify(kafkaProducer).sendMessageAsync(sent.capture());
+        final RepublishMessage message = (RepublishMessage) sent.getValue();
+        assertThat(message.getTopic(), is("chd-item-ordered-error"));
+        assertThat(message.getKey(), is("key"));
+        assertThat(message.getValue(), is(value));
+        assertThat(message.getHeaders().get("trace"), is("abc".getBytes(StandardCharsets.UTF_8)));
+        assertThat(message.getHeaders().containsKey(ChdItemOrderedDeserializer.RAW_VALUE_HEADER), is(false));
+    }
+
+    private ConsumerRecord<String, ChdItemOrdered> consume(String topic) {
+        final RecordHeaders headers = new RecordHeaders();
+        headers.add("trace", "abc".getBytes(StandardCharsets.UTF_8));
+        final ChdItemOrdered value = deserializer.deserialize(topic, headers, ByteBuffer.wrap(POISON_PILL));
+        assertThat(value, is(nullValue()));
+        return new ConsumerRecord<>(topic, 0, 5L, 0L, TimestampType.CREATE_TIME, 3, POISON_PILL.length, "key",
+                value, headers, Optional.empty());
+    }
+}
@@ -0,0 +1,60 @@
+package uk.gov.companieshouse.chdorderconsumer.kafka;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import java.util.List;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+class RecordPrefilterTest {
+
+    private static final String ORDER_REFERENCE = "ORD-111111-111111";
+    private static final String MISSING_IMAGE_DELIVERY = "item#missing-image-delivery";
+    private static final String CERTIFIED_COPY = "item#certified-copy";
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    @Test
+    @DisplayName("accept() drops items already processed")
+    void dropsItemsAlreadyProcessed() {
+        final RecordPrefilter prefilterUnderTest = new RecordPrefilter(meterRegistry, true, List.of(), 10);
+
+        assertThat(prefilterUnderTest.accept(projection("MID-1", MISSING_IMAGE_DELIVERY)), is(true));
+        prefilterUnderTest.markProcessed("MID-1");
+
+        assertThat(prefilterUnderTest.accept(projection("MID-1", MISSING_IMAGE_DELIVERY)), is(false));
+        assertThat(prefilterUnderTest.accept(projection("MID-2", MISSING_IMAGE_DELIVERY)), is(true));
+        assertThat(meterRegistry.counter(RecordPrefilter.DROPPED_METRIC, "reason", "processed").count(), is(1.0));
+    }
+
+    @Test
+    @DisplayName("accept() only accepts the item kinds configured, when any are")
+    void dropsItemKindsNotConfigured() {
+        final RecordPrefilter prefilterUnderTest =
+                new RecordPrefilter(meterRegistry, true, List.of(MISSING_IMAGE_DELIVERY), 10);
+
+        assertThat(prefilterUnderTest.accept(projection("MID-1", MISSING_IMAGE_DELIVERY)), is(true));
+        assertThat(prefilterUnderTest.accept(projection("CCD-1", CERTIFIED_COPY)), is(false));
+        assertThat(meterRegistry.counter(RecordPrefilter.DROPPED_METRIC, "reason", "item-kind").count(), is(1.0));
+    }
+
+    @Test
+    @DisplayName("markProcessed() only remembers the most recent items processed")
+    void remembersMostRecentItemsProcessed() {
+        final RecordPrefilter prefilterUnderTest = new RecordPrefilter(meterRegistry, true, List.of(), 2);
+
+        prefilterUnderTest.markProcessed("MID-1");
+        prefilterUnderTest.markProcessed("MID-2");
+        prefilterUnderTest.markProcessed("MID-3");
+
+        assertThat(prefilterUnderTest.accept(projection("MID-1", MISSING_IMAGE_DELIVERY)), is(true));
+        assertThat(prefilterUnderTest.accept(projection("MID-3", MISSING_IMAGE_DELIVERY)), is(false));
+    }
+
+    private static ChdItemOrderedProjection projection(String itemId, String itemKind) {
+        return new ChdItemOrderedProjection(ORDER_REFERENCE, itemId, itemKind);
+    }
+}
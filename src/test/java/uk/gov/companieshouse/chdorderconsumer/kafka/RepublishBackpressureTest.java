@@ -0,0 +1,103 @@
+package uk.gov.companieshouse.chdorderconsumer.kafka;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.time.Duration;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.kafka.config.KafkaListenerEndpointRegistry;
+import org.springframework.kafka.listener.MessageListenerContainer;
+
+@ExtendWith(MockitoExtension.class)
+class RepublishBackpressureTest {
+
+    @Mock
+    private KafkaListenerEndpointRegistry registry;
+
+    @Mock
+    private MessageListenerContainer container;
+
+    private RepublishBackpressure backpressureUnderTest;
+
+    @BeforeEach
+    void setUp() {
+        backpressureUnderTest = new RepublishBackpressure(registry, 2, Duration.ofSeconds(1));
+    }
+
+    @Test
+    @DisplayName("acquire() pauses the listeners when the limit is reached, and release() resumes them")
+    void pausesAndResumesListenersAtLimit() throws Exception {
+        when(registry.getListenerContainers()).thenReturn(List.of(container));
+        when(container.isRunning()).thenReturn(true);
+        backpressureUnderTest.acquire();
+        backpressureUnderTest.acquire();
+        verify(container, never()).pause();
+
+        final Thread blocked = new Thread(() -> {
+            try {
+                backpressureUnderTest.acquire();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        blocked.start();
+        verify(container, timeout(1000)).pause();
+
+        backpressureUnderTest.release();
+        backpressureUnderTest.release();
+        blocked.join(1000);
+
+        verify(container).resume();
+        assertThat(backpressureUnderTest.getInFlight(), is(1));
+    }
+
+    @Test
+    @DisplayName("release() leaves paused a listener held paused by another component since the limit was reached")
+    void leavesListenerHeldPausedByAnotherComponentPaused() throws Exception {
+        when(registry.getListenerContainers()).thenReturn(List.of(container));
+        when(container.isRunning()).thenReturn(true);
+        backpressureUnderTest.acquire();
+        backpressureUnderTest.acquire();
+
+        final Thread blocked = new Thread(() -> {
+            try {
+                backpressureUnderTest.acquire();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        blocked.start();
+        verify(container, timeout(1000)).pause();
+        backpressureUnderTest.holdPaused(container);
+
+        backpressureUnderTest.release();
+        backpressureUnderTest.release();
+        blocked.join(1000);
+
+        verify(container, never()).resume();
+    }
+
+    @Test
+    @DisplayName("stop() waits for the sends in flight to complete")
+    void stopDrainsSendsInFlight() throws Exception {
+        backpressureUnderTest.start();
+        backpressureUnderTest.acquire();
+        new Thread(backpressureUnderTest::release).start();
+
+        backpressureUnderTest.stop();
+
+        assertThat(backpressureUnderTest.getInFlight(), is(0));
+        assertThat(backpressureUnderTest.isRunning(), is(false));
+    }
+}
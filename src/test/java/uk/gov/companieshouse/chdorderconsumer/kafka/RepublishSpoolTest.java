@@ -0,0 +1,193 @@
+package uk.gov.companieshouse.chdorderconsumer.kafka;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import uk.gov.companieshouse.kafka.message.Message;
+
+@ExtendWith(MockitoExtension.class)
+class RepublishSpoolTest {
+
+    private static final String TOPIC = "chd-item-ordered-retry";
+
+    @Mock
+    private ItemOrderedKafkaProducer kafkaProducer;
+
+    @TempDir
+    private Path spoolDirectory;
+
+    private final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    private RepublishSpool spoolUnderTest;
+
+    @AfterEach
+    void tearDown() {
+        spoolUnderTest.stop();
+    }
+
+    @Test
+    @DisplayName("drain() republishes the messages spooled as they were, in order")
+    void drainRepublishesMessagesSpooled() throws Exception {
+        spoolUnderTest = openSpool(4096);
+        spoolUnderTest.append(message("ORD-1")).join();
+        spoolUnderTest.append(message("ORD-2")).join();
+        assertThat(meterRegistry.get("chd.republish.spool.depth").gauge().value(), is(2.0));
+
+        spoolUnderTest.drain();
+
+        final ArgumentCaptor<Message> sent = ArgumentCaptor.forClass(Message.class);
+        verify(kafkaProducer, times(2)).sendMessage(sent.capture());
+        final List<Message> messages = sent.getAllValues();
+        assertThat(messages.get(0).getKey(), is("ORD-1"));
+        assertThat(messages.get(1).getKey(), is("ORD-2"));
+        assertThat(messages.get(0).getTopic(), is(TOPIC));
+        assertThat(messages.get(0).getTimestamp(), is(123L));
+        assertThat(new String(messages.get(0).getValue()), is("value-ORD-1"));
+        assertThat(new String(((RepublishMessage) messages.get(0)).getHeaders().get("retry_attempt")), is("1"));
+        assertThat(spoolUnderTest.getDepth(), is(0));
+    }
+
+    @Test
+    @DisplayName("drain() keeps the messages spooled while Kafka is unavailable")
+    void drainKeepsMessagesWhileKafkaUnavailable() throws Exception {
+        spoolUnderTest = openSpool(4096);
+        spoolUnderTest.append(message("ORD-1")).join();
+        doThrow(new ExecutionException(new RuntimeException("broker unavailable")))
+                .when(kafkaProducer).sendMessage(any());
+
+        spoolUnderTest.drain();
+
+        verify(kafkaProducer, times(1)).sendMessage(any());
+        assertThat(spoolUnderTest.getDepth(), is(1));
+    }
+
+    @Test
+    @DisplayName("start() recovers the messages spooled before a restart")
+    void startRecoversMessagesSpooled() throws Exception {
+        spoolUnderTest = openSpool(4096);
+        spoolUnderTest.append(message("ORD-1")).join();
+        spoolUnderTest.stop();
+
+        spoolUnderTest = openSpool(4096);
+        assertThat(spoolUnderTest.getDepth(), is(1));
+        spoolUnderTest.drain();
+
+        final ArgumentCaptor<Message> sent = ArgumentCaptor.forClass(Message.class);
+        verify(kafkaProducer).sendMessage(sent.capture());
+        assertThat(sent.getValue().getKey(), is("ORD-1"));
+    }
+
+    @Test
+    @DisplayName("append() rejects a message once the spool is full")
+    void appendRejectsMessageWhenFull() {
+        spoolUnderTest = openSpool(150);
+
+        assertThat(spoolUnderTest.append(message("ORD-1")).join(), is(true));
+        assertThat(spoolUnderTest.append(message("ORD-2")).join(), is(false));
+        assertThat(spoolUnderTest.getDepth(), is(1));
+    }
+
+    @Test
+    @DisplayName("append() compacts the spool when a message does not fit after the messages drained")
+    void appendCompactsSpoolWhenFull() throws Exception {
+        spoolUnderTest = openSpool(200);
+        spoolUnderTest.append(message("ORD-1")).join();
+        spoolUnderTest.append(message("ORD-2")).join();
+        doNothing().doThrow(new ExecutionException(new RuntimeException("broker unavailable"))).doNothing()
+                .when(kafkaProducer).sendMessage(any());
+        spoolUnderTest.drain();
+
+        assertThat(spoolUnderTest.append(message("ORD-3")).join(), is(true));
+        assertThat(spoolUnderTest.getDepth(), is(2));
+        spoolUnderTest.drain();
+
+        final ArgumentCaptor<Message> sent = ArgumentCaptor.forClass(Message.class);
+        verify(kafkaProducer, times(4)).sendMessage(sent.capture());
+        assertThat(sent.getAllValues().stream().map(Message::getKey).toList(),
+                contains("ORD-1", "ORD-2", "ORD-2", "ORD-3"));
+        assertThat(spoolUnderTest.getDepth(), is(0));
+    }
+
+    @Test
+    @DisplayName("drain() moves a message that keeps failing to the back of the spool")
+    void drainMovesStuckMessageToBack() throws Exception {
+        spoolUnderTest = openSpool(4096);
+        spoolUnderTest.append(message("ORD-1")).join();
+        spoolUnderTest.append(message("ORD-2")).join();
+        doAnswer(invocation -> {
+            if ("ORD-1".equals(invocation.<Message>getArgument(0).getKey())) {
+                throw new ExecutionException(new RuntimeException("record rejected"));
+            }
+            return null;
+        }).when(kafkaProducer).sendMessage(any());
+
+        for (int drain = 0; drain < RepublishSpool.MAX_HEAD_ATTEMPTS; drain++) {
+            spoolUnderTest.drain();
+        }
+
+        final ArgumentCaptor<Message> sent = ArgumentCaptor.forClass(Message.class);
+        verify(kafkaProducer, times(RepublishSpool.MAX_HEAD_ATTEMPTS + 2)).sendMessage(sent.capture());
+        assertThat(sent.getAllValues().stream().filter(message -> "ORD-2".equals(message.getKey())).count(), is(1L));
+        assertThat(spoolUnderTest.getDepth(), is(1));
+    }
+
+    @Test
+    @DisplayName("start() requires a path when the spool is enabled")
+    void startRequiresPath() {
+        spoolUnderTest = new RepublishSpool(kafkaProducer, meterRegistry, true, "", 4096, Duration.ofHours(1));
+
+        assertThrows(IllegalStateException.class, spoolUnderTest::start);
+    }
+
+    @Test
+    @DisplayName("append() does not spool a message when the spool is disabled")
+    void appendDoesNotSpoolWhenDisabled() {
+        spoolUnderTest = new RepublishSpool(kafkaProducer, meterRegistry, false, "", 4096, Duration.ofHours(1));
+        spoolUnderTest.start();
+
+        assertThat(spoolUnderTest.append(message("ORD-1")).join(), is(false));
+        assertThat(spoolUnderTest.getDepth(), is(0));
+    }
+
+    private RepublishSpool openSpool(int capacity) {
+        final RepublishSpool spool = new RepublishSpool(kafkaProducer, meterRegistry, true,
+                spoolDirectory.resolve("republish.spool").toString(), capacity, Duration.ofHours(1));
+        spool.start();
+        return spool;
+    }
+
+    private static Message message(String orderReference) {
+        final RepublishMessage message = new RepublishMessage();
+        message.setTopic(TOPIC);
+        message.setKey(orderReference);
+        message.setTimestamp(123L);
+        message.setValue(("value-" + orderReference).getBytes());
+        message.addHeaders(Map.of("retry_attempt", "1".getBytes()));
+        return message;
+    }
+}
@@ -0,0 +1,65 @@
+package uk.gov.companieshouse.chdorderconsumer.kafka;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static uk.gov.companieshouse.chdorderconsumer.util.TestUtils.createOrder;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.support.MessageBuilder;
+import uk.gov.companieshouse.orders.items.ChdItemOrdered;
+
+class RetryHeadersTest {
+
+    private static final String CHD_ITEM_ORDERED_TOPIC = "chd-item-ordered";
+    private static final String CHD_ITEM_ORDERED_TOPIC_RETRY = "chd-item-ordered-retry";
+
+    @Test
+    @DisplayName("RetryHeaders defaults to no failures for a message without retry headers")
+    void defaultsToNoFailures() {
+        final RetryHeaders retryHeaders = RetryHeaders.from(new MessageHeaders(Map.of()));
+        assertThat(retryHeaders.attempt(), is(0));
+        assertThat(retryHeaders.originTopic(), is(nullValue()));
+    }
+
+    @Test
+    @DisplayName("RetryHeaders read back from published headers keep the first failure")
+    void roundTripsThroughKafkaHeaders() {
+        // Given
+        final RetryHeaders firstFailure = RetryHeaders.from(new MessageHeaders(Map.of()))
+                .recordFailure(CHD_ITEM_ORDERED_TOPIC);
+
+        // When
+        final Map<String, Object> received = new HashMap<>(firstFailure.toKafkaHeaders());
+        final RetryHeaders secondFailure = RetryHeaders.from(new MessageHeaders(received))
+                .recordFailure(CHD_ITEM_ORDERED_TOPIC_RETRY);
+
+        // Then
+        assertThat(firstFailure.firstFailureTime(), is(greaterThan(0L)));
+        assertThat(secondFailure.attempt(), is(2));
+        assertThat(secondFailure.firstFailureTime(), is(firstFailure.firstFailureTime()));
+        assertThat(secondFailure.originTopic(), is(CHD_ITEM_ORDERED_TOPIC));
+    }
+
+    @Test
+    @DisplayName("applyTo() carries the retry state on the copy of a message retried in-process")
+    void appliesRetryStateToCopy() {
+        // Given
+        final Message<ChdItemOrdered> message = MessageBuilder.withPayload(createOrder()).build();
+        final RetryHeaders retryHeaders = new RetryHeaders(3, 1L, CHD_ITEM_ORDERED_TOPIC);
+
+        // When
+        final Message<ChdItemOrdered> copy = retryHeaders.applyTo(message, 2);
+
+        // Then
+        assertThat(RetryHeaders.from(copy.getHeaders()), is(retryHeaders));
+        assertThat(RetryHeaders.getTopicAttempt(copy.getHeaders()), is(2));
+    }
+}
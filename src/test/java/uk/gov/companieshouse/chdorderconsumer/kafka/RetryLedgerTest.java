@@ -0,0 +1,87 @@
+package uk.gov.companieshouse.chdorderconsumer.kafka;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+import java.time.Duration;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+class RetryLedgerTest {
+
+    private final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    @Test
+    @DisplayName("add() refuses entries beyond capacity and counts them as refused")
+    void refusesEntriesBeyondCapacity() {
+        final RetryLedger<String, Integer> ledgerUnderTest = new RetryLedger<>(meterRegistry, 2, Duration.ofMinutes(1));
+
+        assertThat(ledgerUnderTest.add("first", 1), is(true));
+        assertThat(ledgerUnderTest.add("second", 2), is(true));
+        assertThat(ledgerUnderTest.add("third", 3), is(false));
+
+        assertThat(ledgerUnderTest.size(), is(2));
+        assertThat(meterRegistry.get(RetryLedger.SIZE_METRIC).gauge().value(), is(2.0));
+        assertThat(meterRegistry.get(RetryLedger.REFUSALS_METRIC).counter().count(), is(1.0));
+        assertThat(meterRegistry.find(RetryLedger.EVICTIONS_METRIC).tag("reason", "capacity").counter(),
+                is(nullValue()));
+    }
+
+    @Test
+    @DisplayName("claim() claims an entry once only and counts the hit")
+    void claimsEntryOnce() {
+        final RetryLedger<String, Integer> ledgerUnderTest = new RetryLedger<>(meterRegistry, 2, Duration.ofMinutes(1));
+        ledgerUnderTest.add("first", 1);
+
+        assertThat(ledgerUnderTest.claim("first"), is(1));
+        assertThat(ledgerUnderTest.claim("first"), is(nullValue()));
+
+        assertThat(ledgerUnderTest.size(), is(0));
+        assertThat(meterRegistry.get(RetryLedger.HITS_METRIC).counter().count(), is(1.0));
+    }
+
+    @Test
+    @DisplayName("remove() removes an entry without counting a hit")
+    void removesEntryWithoutHit() {
+        final RetryLedger<String, Integer> ledgerUnderTest = new RetryLedger<>(meterRegistry, 2, Duration.ofMinutes(1));
+        ledgerUnderTest.add("first", 1);
+
+        assertThat(ledgerUnderTest.remove("first"), is(true));
+        assertThat(ledgerUnderTest.claim("first"), is(nullValue()));
+
+        assertThat(ledgerUnderTest.size(), is(0));
+        assertThat(meterRegistry.get(RetryLedger.HITS_METRIC).counter().count(), is(0.0));
+    }
+
+    @Test
+    @DisplayName("add() replaces the entry held under the same key")
+    void replacesEntryUnderSameKey() {
+        final RetryLedger<String, Integer> ledgerUnderTest = new RetryLedger<>(meterRegistry, 2, Duration.ofMinutes(1));
+        ledgerUnderTest.add("first", 1);
+
+        assertThat(ledgerUnderTest.add("first", 2), is(true));
+
+        assertThat(ledgerUnderTest.size(), is(1));
+        assertThat(ledgerUnderTest.claim("first"), is(2));
+    }
+
+    @Test
+    @DisplayName("evictExpired() evicts entries held for longer than the time to live")
+    void evictsExpiredEntries() throws InterruptedException {
+        final RetryLedger<String, Integer> ledgerUnderTest = new RetryLedger<>(meterRegistry, 2, Duration.ofMillis(1));
+        ledgerUnderTest.add("first", 1);
+        Thread.sleep(10);
+
+        assertThat(ledgerUnderTest.evictExpired(), contains("first"));
+        assertThat(ledgerUnderTest.evictExpired(), is(empty()));
+        assertThat(ledgerUnderTest.remove("first"), is(false));
+        assertThat(meterRegistry.get(RetryLedger.EVICTIONS_METRIC).tag("reason", "expired").counter().count(),
+                is(1.0));
+    }
+}
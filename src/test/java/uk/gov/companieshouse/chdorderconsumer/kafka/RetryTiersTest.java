@@ -0,0 +1,47 @@
+package uk.gov.companieshouse.chdorderconsumer.kafka;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.arrayContaining;
+import static org.hamcrest.Matchers.is;
+
+import java.time.Duration;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+class RetryTiersTest {
+
+    private static final String CHD_ITEM_ORDERED_TOPIC = "chd-item-ordered";
+    private static final String CHD_ITEM_ORDERED_TOPIC_ERROR = "chd-item-ordered-error";
+
+    private final RetryTiers tiersUnderTest = new RetryTiers("30s, 5m,1h");
+
+    @Test
+    @DisplayName("RetryTiers names a topic after each tier, lowest delay first")
+    void namesTopicPerTier() {
+        assertThat(tiersUnderTest.isEnabled(), is(true));
+        assertThat(tiersUnderTest.getTopics(), arrayContaining("chd-item-ordered-retry-30s",
+                "chd-item-ordered-retry-5m", "chd-item-ordered-retry-1h"));
+        assertThat(tiersUnderTest.getDelay("chd-item-ordered-retry-5m"), is(Duration.ofMinutes(5)));
+        assertThat(tiersUnderTest.getDelay(CHD_ITEM_ORDERED_TOPIC), is(Duration.ZERO));
+    }
+
+    @Test
+    @DisplayName("nextTopic() moves a message up the ladder and on to the error topic, where the ladder ends")
+    void routesUpTheLadder() {
+        assertThat(tiersUnderTest.nextTopic(CHD_ITEM_ORDERED_TOPIC, CHD_ITEM_ORDERED_TOPIC_ERROR),
+                is("chd-item-ordered-retry-30s"));
+        assertThat(tiersUnderTest.nextTopic("chd-item-ordered-retry-30s", CHD_ITEM_ORDERED_TOPIC_ERROR),
+                is("chd-item-ordered-retry-5m"));
+        assertThat(tiersUnderTest.nextTopic("chd-item-ordered-retry-1h", CHD_ITEM_ORDERED_TOPIC_ERROR),
+                is(CHD_ITEM_ORDERED_TOPIC_ERROR));
+        assertThat(tiersUnderTest.nextTopic(CHD_ITEM_ORDERED_TOPIC_ERROR, CHD_ITEM_ORDERED_TOPIC_ERROR),
+                is(CHD_ITEM_ORDERED_TOPIC_ERROR));
+    }
+
+    @Test
+    @DisplayName("RetryTiers is disabled when no tiers are configured")
+    void disabledWithoutTiers() {
+        assertThat(new RetryTiers("").isEnabled(), is(false));
+    }
+}
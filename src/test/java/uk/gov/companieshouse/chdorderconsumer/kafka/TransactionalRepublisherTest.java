@@ -0,0 +1,130 @@
+package uk.gov.companieshouse.chdorderconsumer.kafka;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static uk.gov.companieshouse.chdorderconsumer.util.TestUtils.createOrder;
+
+import java.util.List;
+import java.util.Map;
+
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerGroupMetadata;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.ProducerFencedException;
+import org.apache.kafka.common.errors.TimeoutException;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.kafka.support.KafkaHeaders;
+import org.springframework.messaging.support.MessageBuilder;
+
+import uk.gov.companieshouse.chdorderconsumer.exception.TransactionFailedException;
+import uk.gov.companieshouse.kafka.message.Message;
+import uk.gov.companieshouse.orders.items.ChdItemOrdered;
+
+@ExtendWith(MockitoExtension.class)
+class TransactionalRepublisherTest {
+
+    private static final String TOPIC = "chd-item-ordered";
+
+    @Mock
+    private ItemOrderedKafkaProducer kafkaProducer;
+
+    @Mock
+    private ChdKafkaProducer transactionalProducer;
+
+    @Mock
+    private Consumer<?, ?> consumer;
+
+    @Mock
+    private ConsumerGroupMetadata groupMetadata;
+
+    private TransactionalRepublisher republisherUnderTest;
+
+    @BeforeEach
+    void setUp() {
+        republisherUnderTest = new TransactionalRepublisher(kafkaProducer, true, "test-", true);
+    }
+
+    @Test
+    @DisplayName("processInTransaction() publishes the messages republished with the offsets of the poll")
+    void publishesMessagesCollectedWithOffsetsOfPoll() {
+        when(kafkaProducer.createTransactionalProducer(anyString())).thenReturn(transactionalProducer);
+        when(consumer.groupMetadata()).thenReturn(groupMetadata);
+        final Message retryMessage = new Message();
+
+        republisherUnderTest.processInTransaction(
+                List.of(record(0, 10L), record(0, 12L), record(1, 3L)), consumer,
+                () -> assertThat(republisherUnderTest.collect(message(0), retryMessage), is(true)));
+
+        verify(transactionalProducer).sendInTransaction(List.of(retryMessage),
+                Map.of(new TopicPartition(TOPIC, 0), new OffsetAndMetadata(13L),
+                        new TopicPartition(TOPIC, 1), new OffsetAndMetadata(4L)),
+                groupMetadata);
+        assertThat(republisherUnderTest.isInTransaction(message(0)), is(false));
+        assertThat(republisherUnderTest.collect(message(0), retryMessage), is(false));
+    }
+
+    @Test
+    @DisplayName("processInTransaction() replaces the producer of the thread once it has been fenced")
+    void replacesFencedProducer() {
+        when(kafkaProducer.createTransactionalProducer(anyString())).thenReturn(transactionalProducer);
+        when(consumer.groupMetadata()).thenReturn(groupMetadata);
+        doThrow(new ProducerFencedException("fenced")).when(transactionalProducer)
+                .sendInTransaction(List.of(), Map.of(new TopicPartition(TOPIC, 0), new OffsetAndMetadata(11L)),
+                        groupMetadata);
+
+        final TransactionFailedException failure = assertThrows(TransactionFailedException.class,
+                () -> republisherUnderTest.processInTransaction(List.of(record(0, 10L)), consumer, () -> { }));
+        assertThat(failure.getCause() instanceof ProducerFencedException, is(true));
+        verify(transactionalProducer).close();
+
+        assertThrows(TransactionFailedException.class, () -> republisherUnderTest.processInTransaction(
+                List.of(record(0, 10L)), consumer, () -> { }));
+        verify(kafkaProducer, times(2)).createTransactionalProducer(anyString());
+    }
+
+    @Test
+    @DisplayName("processInTransaction() reports a transaction that could not be committed")
+    void reportsFailedTransaction() {
+        when(kafkaProducer.createTransactionalProducer(anyString())).thenReturn(transactionalProducer);
+        when(consumer.groupMetadata()).thenReturn(groupMetadata);
+        doThrow(new TimeoutException("commit timed out")).when(transactionalProducer)
+                .sendInTransaction(List.of(), Map.of(new TopicPartition(TOPIC, 0), new OffsetAndMetadata(11L)),
+                        groupMetadata);
+
+        assertThrows(TransactionFailedException.class, () -> republisherUnderTest.processInTransaction(
+                List.of(record(0, 10L)), consumer, () -> { }));
+        verify(transactionalProducer, never()).close();
+    }
+
+    @Test
+    @DisplayName("Transactional mode cannot be enabled without the batch listeners")
+    void rejectsTransactionalModeWithoutBatchListener() {
+        assertThrows(IllegalStateException.class,
+                () -> new TransactionalRepublisher(kafkaProducer, true, "test-", false));
+    }
+
+    private static ConsumerRecord<String, ChdItemOrdered> record(int partition, long offset) {
+        return new ConsumerRecord<>(TOPIC, partition, offset, "key", createOrder());
+    }
+
+    private static org.springframework.messaging.Message<ChdItemOrdered> message(int partition) {
+        return MessageBuilder.withPayload(createOrder())
+                .setHeader(KafkaHeaders.RECEIVED_TOPIC, TOPIC)
+                .setHeader(KafkaHeaders.RECEIVED_PARTITION, partition)
+                .build();
+    }
+}
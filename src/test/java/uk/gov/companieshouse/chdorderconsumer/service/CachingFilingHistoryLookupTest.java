@@ -0,0 +1,309 @@
+package uk.gov.companieshouse.chdorderconsumer.service;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+@ExtendWith(MockitoExtension.class)
+class CachingFilingHistoryLookupTest {
+
+    private static final String TRANSACTION_ID = "MDEzNzQ1OTcyOGFkaXF6a2N4";
+    private static final String OTHER_TRANSACTION_ID = "MzAwOTM2MDg5OWFkaXF6a2N4";
+    private static final FilingHistoryDetails DETAILS = new FilingHistoryDetails("112233445", "001122334");
+
+    @Mock
+    private MongoService mongoService;
+
+    @Mock
+    private FilingHistoryFileCache fileCache;
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    @Test
+    @DisplayName("Filing history details are looked up once and then served from the cache")
+    void servesDetailsFromCache() {
+        final CachingFilingHistoryLookup lookupUnderTest = createLookup(10, Duration.ofHours(1));
+        when(mongoService.getFilingHistoryDetails(TRANSACTION_ID)).thenReturn(Optional.of(DETAILS));
+
+        assertThat(lookupUnderTest.getFilingHistoryDetails(TRANSACTION_ID), is(Optional.of(DETAILS)));
+        assertThat(lookupUnderTest.getFilingHistoryDetails(TRANSACTION_ID), is(Optional.of(DETAILS)));
+
+        verify(mongoService, times(1)).getFilingHistoryDetails(TRANSACTION_ID);
+        assertThat(meterRegistry.get(CachingFilingHistoryLookup.HITS_METRIC).functionCounter().count(), is(1.0));
+        assertThat(meterRegistry.get(CachingFilingHistoryLookup.MISSES_METRIC).functionCounter().count(), is(1.0));
+        assertThat(meterRegistry.get(CachingFilingHistoryLookup.LOAD_METRIC).functionTimer().count(), is(1.0));
+    }
+
+    @Test
+    @DisplayName("Filing histories not found are cached too")
+    void cachesNotFound() {
+        final CachingFilingHistoryLookup lookupUnderTest = createLookup(10, Duration.ofHours(1));
+        when(mongoService.getFilingHistoryDetails(TRANSACTION_ID)).thenReturn(Optional.empty());
+
+        assertThat(lookupUnderTest.getFilingHistoryDetails(TRANSACTION_ID), is(Optional.empty()));
+        assertThat(lookupUnderTest.getFilingHistoryDetails(TRANSACTION_ID), is(Optional.empty()));
+
+        verify(mongoService, times(1)).getFilingHistoryDetails(TRANSACTION_ID);
+    }
+
+    @Test
+    @DisplayName("Filing histories not found expire after the negative TTL, while details found are still cached")
+    void expiresNotFoundAfterNegativeTtl() {
+        final CachingFilingHistoryLookup lookupUnderTest = new CachingFilingHistoryLookup(mongoService, fileCache,
+                meterRegistry, 10, Duration.ofHours(1), Duration.ZERO, false);
+        when(mongoService.getFilingHistoryDetails(TRANSACTION_ID)).thenReturn(Optional.of(DETAILS));
+        when(mongoService.getFilingHistoryDetails(OTHER_TRANSACTION_ID)).thenReturn(Optional.empty());
+
+        for (int lookup = 0; lookup < 2; lookup++) {
+            lookupUnderTest.getFilingHistoryDetails(TRANSACTION_ID);
+            lookupUnderTest.getFilingHistoryDetails(OTHER_TRANSACTION_ID);
+        }
+
+        verify(mongoService, times(1)).getFilingHistoryDetails(TRANSACTION_ID);
+        verify(mongoService, times(2)).getFilingHistoryDetails(OTHER_TRANSACTION_ID);
+    }
+
+    @Test
+    @DisplayName("An item without a filing history id has no filing history, and is neither looked up nor cached")
+    void returnsEmptyForNullFilingHistoryId() {
+        final CachingFilingHistoryLookup lookupUnderTest = createLookup(10, Duration.ofHours(1));
+
+        assertThat(lookupUnderTest.getFilingHistoryDetails(null), is(Optional.empty()));
+        lookupUnderTest.prefetch(Arrays.asList(null, null));
+
+        verifyNoInteractions(mongoService, fileCache);
+        assertThat(meterRegistry.get(CachingFilingHistoryLookup.SIZE_METRIC).gauge().value(), is(0.0));
+    }
+
+    @Test
+    @DisplayName("Expired filing history details are looked up again")
+    void looksUpExpiredDetailsAgain() {
+        final CachingFilingHistoryLookup lookupUnderTest = createLookup(10, Duration.ZERO);
+        when(mongoService.getFilingHistoryDetails(TRANSACTION_ID)).thenReturn(Optional.of(DETAILS));
+
+        lookupUnderTest.getFilingHistoryDetails(TRANSACTION_ID);
+        lookupUnderTest.getFilingHistoryDetails(TRANSACTION_ID);
+
+        verify(mongoService, times(2)).getFilingHistoryDetails(TRANSACTION_ID);
+    }
+
+    @Test
+    @DisplayName("Failed lookups are not cached")
+    void doesNotCacheFailures() {
+        final CachingFilingHistoryLookup lookupUnderTest = createLookup(10, Duration.ofHours(1));
+        when(mongoService.getFilingHistoryDetails(TRANSACTION_ID))
+                .thenThrow(new IllegalStateException("timed out"))
+                .thenReturn(Optional.of(DETAILS));
+
+        assertThrows(IllegalStateException.class, () -> lookupUnderTest.getFilingHistoryDetails(TRANSACTION_ID));
+        assertThat(lookupUnderTest.getFilingHistoryDetails(TRANSACTION_ID), is(Optional.of(DETAILS)));
+    }
+
+    @Test
+    @DisplayName("Filing histories are evicted once the cache is over its maximum size")
+    void evictsOverMaximumSize() {
+        final CachingFilingHistoryLookup lookupUnderTest = createLookup(1, Duration.ofHours(1));
+        when(mongoService.getFilingHistoryDetails(TRANSACTION_ID)).thenReturn(Optional.of(DETAILS));
+        when(mongoService.getFilingHistoryDetails(OTHER_TRANSACTION_ID)).thenReturn(Optional.of(DETAILS));
+
+        lookupUnderTest.getFilingHistoryDetails(TRANSACTION_ID);
+        lookupUnderTest.getFilingHistoryDetails(OTHER_TRANSACTION_ID);
+        lookupUnderTest.cleanUp();
+
+        assertThat(meterRegistry.get(CachingFilingHistoryLookup.SIZE_METRIC).gauge().value(), is(1.0));
+        assertThat(meterRegistry.counter(CachingFilingHistoryLookup.EVICTIONS_METRIC, "reason", "capacity").count(),
+                is(1.0));
+    }
+
+    @Test
+    @DisplayName("Concurrent lookups of a filing history not cached share a single query")
+    void sharesConcurrentLookups() throws Exception {
+        final CachingFilingHistoryLookup lookupUnderTest = createLookup(10, Duration.ofHours(1));
+        final CountDownLatch loading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        when(mongoService.getFilingHistoryDetails(TRANSACTION_ID)).thenAnswer(invocation -> {
+            loading.countDown();
+            release.await(10, TimeUnit.SECONDS);
+            return Optional.of(DETAILS);
+        });
+
+        final CompletableFuture<Optional<FilingHistoryDetails>> first =
+                CompletableFuture.supplyAsync(() -> lookupUnderTest.getFilingHistoryDetails(TRANSACTION_ID));
+        assertThat(loading.await(10, TimeUnit.SECONDS), is(true));
+        final CompletableFuture<Optional<FilingHistoryDetails>> second =
+                CompletableFuture.supplyAsync(() -> lookupUnderTest.getFilingHistoryDetails(TRANSACTION_ID));
+        release.countDown();
+
+        assertThat(first.get(10, TimeUnit.SECONDS), is(Optional.of(DETAILS)));
+        assertThat(second.get(10, TimeUnit.SECONDS), is(Optional.of(DETAILS)));
+        verify(mongoService, times(1)).getFilingHistoryDetails(TRANSACTION_ID);
+    }
+
+    @Test
+    @DisplayName("Filing history details kept in the file cache are not looked up in Mongo")
+    void servesDetailsFromFileCache() {
+        final CachingFilingHistoryLookup lookupUnderTest = createLookup(10, Duration.ofHours(1));
+        when(fileCache.get(TRANSACTION_ID)).thenReturn(Optional.of(DETAILS));
+
+        assertThat(lookupUnderTest.getFilingHistoryDetails(TRANSACTION_ID), is(Optional.of(DETAILS)));
+
+        verifyNoInteractions(mongoService);
+    }
+
+    @Test
+    @DisplayName("Filing history details found in Mongo are kept in the file cache")
+    void keepsDetailsFoundInFileCache() {
+        final CachingFilingHistoryLookup lookupUnderTest = createLookup(10, Duration.ofHours(1));
+        when(mongoService.getFilingHistoryDetails(TRANSACTION_ID)).thenReturn(Optional.of(DETAILS));
+
+        lookupUnderTest.getFilingHistoryDetails(TRANSACTION_ID);
+
+        verify(fileCache).put(TRANSACTION_ID, DETAILS);
+    }
+
+    @Test
+    @DisplayName("Filing histories prefetched are looked up in a single query and then served from the cache")
+    void prefetchesInSingleQuery() {
+        final CachingFilingHistoryLookup lookupUnderTest = createLookup(10, Duration.ofHours(1));
+        when(mongoService.getAllFilingHistoryDetails(List.of(TRANSACTION_ID, OTHER_TRANSACTION_ID)))
+                .thenReturn(Map.of(TRANSACTION_ID, DETAILS));
+
+        lookupUnderTest.prefetch(List.of(TRANSACTION_ID, OTHER_TRANSACTION_ID, TRANSACTION_ID));
+
+        assertThat(lookupUnderTest.getFilingHistoryDetails(TRANSACTION_ID), is(Optional.of(DETAILS)));
+        assertThat(lookupUnderTest.getFilingHistoryDetails(OTHER_TRANSACTION_ID), is(Optional.empty()));
+        verify(mongoService, never()).getFilingHistoryDetails(anyString());
+        verify(fileCache).put(TRANSACTION_ID, DETAILS);
+        assertThat(meterRegistry.get(CachingFilingHistoryLookup.MISSES_METRIC).functionCounter().count(), is(2.0));
+    }
+
+    @Test
+    @DisplayName("Filing histories already cached or kept in the file cache are not prefetched from Mongo")
+    void prefetchesOnlyFilingHistoriesNotCached() {
+        final CachingFilingHistoryLookup lookupUnderTest = createLookup(10, Duration.ofHours(1));
+        when(mongoService.getFilingHistoryDetails(TRANSACTION_ID)).thenReturn(Optional.of(DETAILS));
+        when(fileCache.get(OTHER_TRANSACTION_ID)).thenReturn(Optional.of(DETAILS));
+        lookupUnderTest.getFilingHistoryDetails(TRANSACTION_ID);
+
+        lookupUnderTest.prefetch(List.of(TRANSACTION_ID, OTHER_TRANSACTION_ID));
+
+        verify(mongoService, never()).getAllFilingHistoryDetails(any());
+    }
+
+    @Test
+    @DisplayName("Filing histories that fail to prefetch are looked up on their own")
+    void looksUpFilingHistoriesThatFailToPrefetch() {
+        final CachingFilingHistoryLookup lookupUnderTest = createLookup(10, Duration.ofHours(1));
+        when(mongoService.getAllFilingHistoryDetails(List.of(TRANSACTION_ID)))
+                .thenThrow(new IllegalStateException("timed out"));
+        when(mongoService.getFilingHistoryDetails(TRANSACTION_ID)).thenReturn(Optional.of(DETAILS));
+
+        lookupUnderTest.prefetch(List.of(TRANSACTION_ID));
+
+        assertThat(lookupUnderTest.getFilingHistoryDetails(TRANSACTION_ID), is(Optional.of(DETAILS)));
+    }
+
+    @Test
+    @DisplayName("Lookups waiting for a prefetch that fails look the filing history up on their own")
+    void waitingLookupsLookUpFilingHistoriesThatFailToPrefetch() throws Exception {
+        final CachingFilingHistoryLookup lookupUnderTest = createLookup(10, Duration.ofHours(1));
+        final CountDownLatch prefetching = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        when(mongoService.getAllFilingHistoryDetails(List.of(TRANSACTION_ID))).thenAnswer(invocation -> {
+            prefetching.countDown();
+            release.await(10, TimeUnit.SECONDS);
+            throw new IllegalStateException("timed out");
+        });
+        when(mongoService.getFilingHistoryDetails(TRANSACTION_ID)).thenReturn(Optional.of(DETAILS));
+
+        final CompletableFuture<Void> prefetch =
+                CompletableFuture.runAsync(() -> lookupUnderTest.prefetch(List.of(TRANSACTION_ID)));
+        assertThat(prefetching.await(10, TimeUnit.SECONDS), is(true));
+        final CompletableFuture<Optional<FilingHistoryDetails>> lookup =
+                CompletableFuture.supplyAsync(() -> lookupUnderTest.getFilingHistoryDetails(TRANSACTION_ID));
+        release.countDown();
+
+        prefetch.get(10, TimeUnit.SECONDS);
+        assertThat(lookup.get(10, TimeUnit.SECONDS), is(Optional.of(DETAILS)));
+        verify(mongoService, times(1)).getFilingHistoryDetails(TRANSACTION_ID);
+    }
+
+    @Test
+    @DisplayName("Filing histories prefetched asynchronously are served once the query completes")
+    void prefetchesAsynchronously() throws Exception {
+        final CachingFilingHistoryLookup lookupUnderTest = createAsyncLookup();
+        final CompletableFuture<Map<String, FilingHistoryDetails>> query = new CompletableFuture<>();
+        when(mongoService.getAllFilingHistoryDetailsAsync(List.of(TRANSACTION_ID))).thenReturn(query);
+
+        lookupUnderTest.prefetch(List.of(TRANSACTION_ID));
+        final CompletableFuture<Optional<FilingHistoryDetails>> lookup =
+                CompletableFuture.supplyAsync(() -> lookupUnderTest.getFilingHistoryDetails(TRANSACTION_ID));
+        query.complete(Map.of(TRANSACTION_ID, DETAILS));
+
+        assertThat(lookup.get(10, TimeUnit.SECONDS), is(Optional.of(DETAILS)));
+        verify(mongoService, never()).getFilingHistoryDetails(anyString());
+        verify(fileCache).put(TRANSACTION_ID, DETAILS);
+    }
+
+    @Test
+    @DisplayName("Filing histories prefetched asynchronously are kept off the thread completing the query")
+    void completesAsynchronousPrefetchOffQueryThread() throws Exception {
+        final CachingFilingHistoryLookup lookupUnderTest = createAsyncLookup();
+        final CompletableFuture<Map<String, FilingHistoryDetails>> query = new CompletableFuture<>();
+        final CompletableFuture<Thread> keptOn = new CompletableFuture<>();
+        when(mongoService.getAllFilingHistoryDetailsAsync(List.of(TRANSACTION_ID))).thenReturn(query);
+        doAnswer(invocation -> keptOn.complete(Thread.currentThread())).when(fileCache).put(TRANSACTION_ID, DETAILS);
+
+        lookupUnderTest.prefetch(List.of(TRANSACTION_ID));
+        query.complete(Map.of(TRANSACTION_ID, DETAILS));
+
+        assertThat(keptOn.get(10, TimeUnit.SECONDS) == Thread.currentThread(), is(false));
+        assertThat(lookupUnderTest.getFilingHistoryDetails(TRANSACTION_ID), is(Optional.of(DETAILS)));
+    }
+
+    @Test
+    @DisplayName("Filing histories that fail to prefetch asynchronously are looked up on their own")
+    void looksUpFilingHistoriesThatFailToPrefetchAsynchronously() {
+        final CachingFilingHistoryLookup lookupUnderTest = createAsyncLookup();
+        when(mongoService.getAllFilingHistoryDetailsAsync(List.of(TRANSACTION_ID)))
+                .thenReturn(CompletableFuture.failedFuture(new IllegalStateException("timed out")));
+        when(mongoService.getFilingHistoryDetails(TRANSACTION_ID)).thenReturn(Optional.of(DETAILS));
+
+        lookupUnderTest.prefetch(List.of(TRANSACTION_ID));
+
+        assertThat(lookupUnderTest.getFilingHistoryDetails(TRANSACTION_ID), is(Optional.of(DETAILS)));
+    }
+
+    private CachingFilingHistoryLookup createLookup(int maxSize, Duration ttl) {
+        return new CachingFilingHistoryLookup(mongoService, fileCache, meterRegistry, maxSize, ttl, ttl, false);
+    }
+
+    private CachingFilingHistoryLookup createAsyncLookup() {
+        return new CachingFilingHistoryLookup(mongoService, fileCache, meterRegistry, 10, Duration.ofHours(1),
+                Duration.ofHours(1), true);
+    }
+}
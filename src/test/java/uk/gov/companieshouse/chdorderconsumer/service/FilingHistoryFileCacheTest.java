@@ -0,0 +1,129 @@
+package uk.gov.companieshouse.chdorderconsumer.service;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class FilingHistoryFileCacheTest {
+
+    private static final String TRANSACTION_ID = "MDEzNzQ1OTcyOGFkaXF6a2N4";
+    private static final String OTHER_TRANSACTION_ID = "MzAwOTM2MDg5OWFkaXF6a2N4";
+    private static final FilingHistoryDetails DETAILS = new FilingHistoryDetails("112233445", "001122334");
+
+    @TempDir
+    private Path directory;
+
+    @Test
+    @DisplayName("Filing history details kept are read back after a restart")
+    void keepsDetailsAcrossRestart() {
+        final FilingHistoryFileCache cache = createCache(1024, Duration.ofDays(1));
+        cache.start();
+        cache.put(TRANSACTION_ID, DETAILS);
+        cache.put(OTHER_TRANSACTION_ID, new FilingHistoryDetails(null, "001122335"));
+        cache.stop();
+
+        final FilingHistoryFileCache restarted = createCache(1024, Duration.ofDays(1));
+        restarted.start();
+
+        assertThat(restarted.get(TRANSACTION_ID), is(Optional.of(DETAILS)));
+        assertThat(restarted.get(OTHER_TRANSACTION_ID), is(Optional.of(new FilingHistoryDetails(null, "001122335"))));
+        assertThat(restarted.get("unknown"), is(Optional.empty()));
+        restarted.stop();
+    }
+
+    @Test
+    @DisplayName("Filing history details are replaced when kept again")
+    void replacesDetails() {
+        final FilingHistoryFileCache cache = createCache(1024, Duration.ofDays(1));
+        cache.start();
+        cache.put(TRANSACTION_ID, new FilingHistoryDetails(null, null));
+        cache.put(TRANSACTION_ID, DETAILS);
+
+        assertThat(cache.get(TRANSACTION_ID), is(Optional.of(DETAILS)));
+        cache.stop();
+    }
+
+    @Test
+    @DisplayName("Expired filing history details are not read back")
+    void missesExpiredDetails() {
+        final FilingHistoryFileCache cache = createCache(1024, Duration.ofMillis(-1));
+        cache.start();
+        cache.put(TRANSACTION_ID, DETAILS);
+
+        assertThat(cache.get(TRANSACTION_ID), is(Optional.empty()));
+        cache.stop();
+    }
+
+    @Test
+    @DisplayName("A file written with another number of slots is cleared on start")
+    void clearsFileOfAnotherLayout() {
+        final FilingHistoryFileCache cache = createCache(1024, Duration.ofDays(1));
+        cache.start();
+        cache.put(TRANSACTION_ID, DETAILS);
+        cache.stop();
+
+        final FilingHistoryFileCache resized = createCache(2048, Duration.ofDays(1));
+        resized.start();
+
+        assertThat(resized.get(TRANSACTION_ID), is(Optional.empty()));
+        resized.stop();
+    }
+
+    @Test
+    @DisplayName("Nothing is kept when the file cache is disabled")
+    void keepsNothingWhenDisabled() {
+        final FilingHistoryFileCache cache = new FilingHistoryFileCache(new SimpleMeterRegistry(), false,
+                directory.resolve("filing-history.cache").toString(), 1024, Duration.ofDays(1));
+        cache.start();
+        cache.put(TRANSACTION_ID, DETAILS);
+
+        assertThat(cache.get(TRANSACTION_ID), is(Optional.empty()));
+        assertThat(cache.isRunning(), is(false));
+    }
+
+    @Test
+    @DisplayName("start() requires a path when the file cache is enabled")
+    void startRequiresPath() {
+        final FilingHistoryFileCache cache = new FilingHistoryFileCache(new SimpleMeterRegistry(), true, "", 1024,
+                Duration.ofDays(1));
+
+        assertThrows(IllegalStateException.class, cache::start);
+    }
+
+    @Test
+    @DisplayName("Filing histories kept concurrently are all read back")
+    void keepsDetailsConcurrently() throws InterruptedException {
+        final FilingHistoryFileCache cache = createCache(4096, Duration.ofDays(1));
+        cache.start();
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        for (int thread = 0; thread < 4; thread++) {
+            final int first = thread * 100;
+            executor.execute(() -> IntStream.range(first, first + 100)
+                    .forEach(id -> cache.put("transaction-" + id, DETAILS)));
+        }
+        executor.shutdown();
+        assertThat(executor.awaitTermination(10, TimeUnit.SECONDS), is(true));
+
+        assertThat(IntStream.range(0, 400).filter(id -> cache.get("transaction-" + id).isPresent()).count(),
+                is(400L));
+        cache.stop();
+    }
+
+    private FilingHistoryFileCache createCache(int slots, Duration ttl) {
+        return new FilingHistoryFileCache(new SimpleMeterRegistry(), true,
+                directory.resolve("filing-history.cache").toString(), slots, ttl);
+    }
+}
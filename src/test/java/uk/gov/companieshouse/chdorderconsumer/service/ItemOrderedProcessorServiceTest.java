@@ -5,6 +5,8 @@ import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.core.Is.is;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
 import static org.mockito.Mockito.when;
 import static org.springframework.http.HttpStatus.BAD_REQUEST;
 import static org.springframework.http.HttpStatus.INTERNAL_SERVER_ERROR;
@@ -13,7 +15,9 @@ import static org.springframework.http.HttpStatus.UNAUTHORIZED;
 import static org.springframework.http.HttpStatus.CONFLICT;
 
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
@@ -45,7 +49,7 @@ class ItemOrderedProcessorServiceTest {
     private CHDOrderService chdOrderService;
 
     @Mock
-    private MongoService mockMongoService;
+    private CachingFilingHistoryLookup mockFilingHistoryLookup;
 
     @InjectMocks
     private ItemOrderedProcessorService processorUnderTest;
@@ -106,7 +110,8 @@ class ItemOrderedProcessorServiceTest {
 
     @Test
     void mapChdItemOrderedToMissingImageDeliveryRequestApiCorrectly() {
-        when(mockMongoService.getEntityId(CHD_ITEM_ORDERED.getItem().getItemOptions().get("filingHistoryId"))).thenReturn(ENTITY_ID);
+        when(mockFilingHistoryLookup.getFilingHistoryDetails(CHD_ITEM_ORDERED.getItem().getItemOptions().get("filingHistoryId")))
+                .thenReturn(Optional.of(new FilingHistoryDetails(ENTITY_ID, BARCODE)));
 
         MissingImageDeliveryRequestApi missingImageDeliveryRequestApi
                 = processorUnderTest.mapChdItemOrderedToMissingImageDeliveryRequestApi(CHD_ITEM_ORDERED);
@@ -128,8 +133,8 @@ class ItemOrderedProcessorServiceTest {
 
     @Test
     void mapChdItemOrderedNoBarcodeToMissingImageDeliveryRequestApiCorrectly() {
-        when(mockMongoService.getEntityId(CHD_ITEM_ORDERED_NO_BARCODE.getItem().getItemOptions().get("filingHistoryId"))).thenReturn(null);
-        when(mockMongoService.getBarcode(CHD_ITEM_ORDERED_NO_BARCODE.getItem().getItemOptions().get("filingHistoryId"))).thenReturn(BARCODE);
+        when(mockFilingHistoryLookup.getFilingHistoryDetails(CHD_ITEM_ORDERED_NO_BARCODE.getItem().getItemOptions().get("filingHistoryId")))
+                .thenReturn(Optional.of(new FilingHistoryDetails(null, BARCODE)));
 
         MissingImageDeliveryRequestApi missingImageDeliveryRequestApi
             = processorUnderTest.mapChdItemOrderedToMissingImageDeliveryRequestApi(CHD_ITEM_ORDERED_NO_BARCODE);
@@ -149,8 +154,34 @@ class ItemOrderedProcessorServiceTest {
         assertThat(missingImageDeliveryRequestApi.getEmailAddress(), is(CHD_ITEM_ORDERED_NO_BARCODE.getOrderedBy().getEmail()));
     }
 
+    @Test
+    void mapChdItemOrderedWithFilingHistoryNotFoundThrowsServiceException() {
+        when(mockFilingHistoryLookup.getFilingHistoryDetails(CHD_ITEM_ORDERED.getItem().getItemOptions().get("filingHistoryId")))
+                .thenReturn(Optional.empty());
+
+        assertThatExceptionOfType(ServiceException.class).isThrownBy(() ->
+                processorUnderTest.processItemOrdered(CHD_ITEM_ORDERED))
+                .withMessageContaining("fsdf2342sdf234242");
+        verifyNoInteractions(chdOrderService);
+    }
+
+    @Test
+    void prefetchFilingHistoriesLooksUpFilingHistoriesOfEveryOrder() {
+        processorUnderTest.prefetchFilingHistories(List.of(CHD_ITEM_ORDERED, CHD_ITEM_ORDERED_NO_BARCODE));
+
+        verify(mockFilingHistoryLookup).prefetch(List.of("fsdf2342sdf234242", "fsdf2342sdf234242"));
+    }
+
+    @Test
+    void prefetchesFilingHistoriesAsynchronouslyWhenTheLookupDoes() {
+        when(mockFilingHistoryLookup.isAsyncPrefetch()).thenReturn(true);
+
+        assertThat(processorUnderTest.prefetchesFilingHistoriesAsynchronously(), is(true));
+    }
+
     @Test
     void propagatesRetryableExceptionIfApiErrorResponseExceptionIsInternalServerError() throws ApiErrorResponseException {
+        givenFilingHistoryFound();
         when(chdOrderService.createCHDOrder(anyString(), any(MissingImageDeliveryRequestApi.class)))
                 .thenThrow(buildApiErrorResponseException(INTERNAL_SERVER_ERROR));
 
@@ -161,6 +192,7 @@ class ItemOrderedProcessorServiceTest {
 
     @Test
     void propagatesServiceExceptionIfApiErrorResponseExceptionIsBadRequest() throws ApiErrorResponseException {
+        givenFilingHistoryFound();
         when(chdOrderService.createCHDOrder(anyString(), any(MissingImageDeliveryRequestApi.class)))
                 .thenThrow(buildApiErrorResponseException(BAD_REQUEST));
 
@@ -171,6 +203,7 @@ class ItemOrderedProcessorServiceTest {
 
     @Test
     void propagatesServiceExceptionIfApiErrorResponseExceptionIsUnauthorised() throws ApiErrorResponseException {
+        givenFilingHistoryFound();
         when(chdOrderService.createCHDOrder(anyString(), any(MissingImageDeliveryRequestApi.class)))
                 .thenThrow(buildApiErrorResponseException(UNAUTHORIZED));
 
@@ -181,6 +214,7 @@ class ItemOrderedProcessorServiceTest {
 
     @Test
     void propagatesServiceExceptionIfApiErrorResponseExceptionIsConflicted() throws ApiErrorResponseException {
+        givenFilingHistoryFound();
         when(chdOrderService.createCHDOrder(anyString(), any(MissingImageDeliveryRequestApi.class)))
                 .thenThrow(buildApiErrorResponseException(CONFLICT));
 
@@ -191,6 +225,7 @@ class ItemOrderedProcessorServiceTest {
 
     @Test
     void propagatesRetryableExceptionIfApiResponseIsRequestTimeOut() throws ApiErrorResponseException {
+        givenFilingHistoryFound();
         ApiResponse<MissingImageDeliveryRequestApi> apiResponse =
                 new ApiResponse<>(REQUEST_TIMEOUT.value(), new HttpHeaders(),
                         new MissingImageDeliveryRequestApi());
@@ -205,6 +240,7 @@ class ItemOrderedProcessorServiceTest {
 
     @Test
     void propagatesServiceExceptionIfApiResponseIsBadRequest() throws ApiErrorResponseException {
+        givenFilingHistoryFound();
         ApiResponse<MissingImageDeliveryRequestApi> apiResponse =
                 new ApiResponse<>(BAD_REQUEST.value(), new HttpHeaders(),
                         new MissingImageDeliveryRequestApi());
@@ -219,6 +255,7 @@ class ItemOrderedProcessorServiceTest {
 
     @Test
     void propagatesServiceExceptionIfApiResponseIsUnauthorised() throws ApiErrorResponseException {
+        givenFilingHistoryFound();
         ApiResponse<MissingImageDeliveryRequestApi> apiResponse =
                 new ApiResponse<>(UNAUTHORIZED.value(), new HttpHeaders(),
                         new MissingImageDeliveryRequestApi());
@@ -231,6 +268,11 @@ class ItemOrderedProcessorServiceTest {
                 .withMessageContaining("401");
     }
 
+    private void givenFilingHistoryFound() {
+        when(mockFilingHistoryLookup.getFilingHistoryDetails(CHD_ITEM_ORDERED.getItem().getItemOptions().get("filingHistoryId")))
+                .thenReturn(Optional.of(new FilingHistoryDetails(ENTITY_ID, BARCODE)));
+    }
+
     private ApiErrorResponseException buildApiErrorResponseException(HttpStatus httpStatus) {
         return new ApiErrorResponseException(
                 new HttpResponseException.Builder(httpStatus.value(), "Message", new HttpHeaders()));
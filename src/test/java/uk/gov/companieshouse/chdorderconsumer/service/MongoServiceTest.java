@@ -2,35 +2,40 @@ package uk.gov.companieshouse.chdorderconsumer.service;
 
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
-import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import com.mongodb.client.FindIterable;
 import com.mongodb.client.MongoClient;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
+import com.mongodb.reactivestreams.client.FindPublisher;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 import org.bson.Document;
 import org.bson.conversions.Bson;
 import org.junit.Rule;
 import org.junit.contrib.java.lang.system.EnvironmentVariables;
 import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
-import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
-import uk.gov.companieshouse.environment.EnvironmentReader;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import org.springframework.beans.factory.ObjectProvider;
 
 @ExtendWith(MockitoExtension.class)
 public class MongoServiceTest {
 
-    @InjectMocks
     private MongoService mongoService;
 
-    @Mock
-    private EnvironmentReader environmentReader;
-
     @Mock
     private MongoClient mockMongoClient;
 
@@ -43,60 +48,148 @@ public class MongoServiceTest {
     @Mock
     private FindIterable<Document> findIterableMocked;
 
+    @Mock
+    private com.mongodb.reactivestreams.client.MongoClient mockReactiveMongoClient;
+
+    @Mock
+    private ObjectProvider<com.mongodb.reactivestreams.client.MongoClient> reactiveMongoClientProvider;
+
+    @Mock
+    private com.mongodb.reactivestreams.client.MongoDatabase mockReactiveMongoDatabase;
+
+    @Mock
+    private com.mongodb.reactivestreams.client.MongoCollection<Document> mockReactiveMongoCollection;
+
+    @Mock
+    private FindPublisher<Document> findPublisherMocked;
+
+    @Mock
+    private Subscription subscriptionMocked;
+
     @Rule
     public EnvironmentVariables environmentVariables = new EnvironmentVariables();
-    private static final String MONGO_DATABASE_NAME = "MONGO_DATABASE_NAME";
-    private static final String MONGO_COLLECTION = "MONGO_COLLECTION";
     private static final String ID = "_id";
     private static final String TRANSACTION_ID = "MDEzNzQ1OTcyOGFkaXF6a2N4";
     private static final String COMPANY_FILING_HISTORY = "company_filing_history";
     private static final String ENTITY_ID = "_entity_id";
-    private static final String ENTITY_ID_FIELD = "ENTITY_ID_FIELD";
     private static final String ENTITY_ID_VALUE = "112233445";
     private static final String BARCODE = "barcode";
     private static final String BARCODE_VALUE = "001122334";
 
+    @BeforeEach
+    void setUp() {
+        when(mockMongoClient.getDatabase(COMPANY_FILING_HISTORY)).thenReturn(mockMongoDatabase);
+        when(mockMongoDatabase.getCollection(COMPANY_FILING_HISTORY)).thenReturn(mockMongoCollection);
+        when(reactiveMongoClientProvider.getIfAvailable()).thenReturn(mockReactiveMongoClient);
+        when(mockReactiveMongoClient.getDatabase(COMPANY_FILING_HISTORY)).thenReturn(mockReactiveMongoDatabase);
+        when(mockReactiveMongoDatabase.getCollection(COMPANY_FILING_HISTORY)).thenReturn(mockReactiveMongoCollection);
+        mongoService = new MongoService(mockMongoClient, reactiveMongoClientProvider, COMPANY_FILING_HISTORY,
+            COMPANY_FILING_HISTORY, ENTITY_ID);
+    }
+
+    @Test
+    @DisplayName("Missing mongo config fails when the service is created rather than on the first lookup")
+    void missingConfigFailsFast() {
+        IllegalStateException exception = Assertions.assertThrows(IllegalStateException.class,
+            () -> new MongoService(mockMongoClient, reactiveMongoClientProvider, COMPANY_FILING_HISTORY,
+                COMPANY_FILING_HISTORY, " "));
+        Assertions.assertEquals("Required config item ENTITY_ID_FIELD missing", exception.getMessage());
+    }
+
+    @Test
+    @DisplayName("Mongo collection is resolved once for every lookup")
+    void collectionResolvedOnce() {
+        when(mockMongoCollection.find(any(Bson.class))).thenReturn(findIterableMocked);
+        when(findIterableMocked.projection(any(Bson.class))).thenReturn(findIterableMocked);
+        when(findIterableMocked.first()).thenReturn(new Document(BARCODE, BARCODE_VALUE));
+        mongoService.getFilingHistoryDetails(TRANSACTION_ID);
+        mongoService.getFilingHistoryDetails(TRANSACTION_ID);
+        verify(mockMongoClient, times(1)).getDatabase(anyString());
+        verify(mockMongoDatabase, times(1)).getCollection(anyString());
+    }
+
     @Test
-    @DisplayName("Entity id returned successfully from mongo collection")
-    void entityIdReturnedSuccessfully() {
+    @DisplayName("Entity id and barcode returned together from a single query of mongo collection")
+    void filingHistoryDetailsReturnedSuccessfully() {
         Document document = new Document();
         document.append(ID, TRANSACTION_ID);
         document.append(ENTITY_ID, ENTITY_ID_VALUE);
+        document.append(BARCODE, BARCODE_VALUE);
 
-        doReturn(COMPANY_FILING_HISTORY).when(environmentReader)
-            .getMandatoryString(MONGO_DATABASE_NAME);
-        doReturn(COMPANY_FILING_HISTORY).when(environmentReader)
-            .getMandatoryString(MONGO_COLLECTION);
-        doReturn(ENTITY_ID).when(environmentReader)
-            .getMandatoryString(ENTITY_ID_FIELD);
 
-        when(mockMongoClient.getDatabase(anyString())).thenReturn(mockMongoDatabase);
-        when(mockMongoDatabase.getCollection(anyString())).thenReturn(mockMongoCollection);
         when(mockMongoCollection.find(any(Bson.class))).thenReturn(findIterableMocked);
         when(findIterableMocked.projection(any(Bson.class))).thenReturn(findIterableMocked);
         when(findIterableMocked.first()).thenReturn(document);
-        String entityId = mongoService.getEntityId(TRANSACTION_ID);
-        Assertions.assertEquals(ENTITY_ID_VALUE, entityId);
+        Optional<FilingHistoryDetails> details = mongoService.getFilingHistoryDetails(TRANSACTION_ID);
+        Assertions.assertEquals(Optional.of(new FilingHistoryDetails(ENTITY_ID_VALUE, BARCODE_VALUE)), details);
+        verify(mockMongoCollection, times(1)).find(any(Bson.class));
     }
 
     @Test
-    @DisplayName("Barcode returned successfully from mongo collection")
-    void BarcodeReturnedSuccessfully() {
+    @DisplayName("No filing history details returned when the filing history is not in mongo collection")
+    void filingHistoryDetailsEmptyWhenNotFound() {
+
+        when(mockMongoCollection.find(any(Bson.class))).thenReturn(findIterableMocked);
+        when(findIterableMocked.projection(any(Bson.class))).thenReturn(findIterableMocked);
+        when(findIterableMocked.first()).thenReturn(null);
+        Assertions.assertEquals(Optional.empty(), mongoService.getFilingHistoryDetails(TRANSACTION_ID));
+    }
+
+    @Test
+    @DisplayName("Entity ids and barcodes of a number of filing histories returned from a single query")
+    void allFilingHistoryDetailsReturnedSuccessfully() {
         Document document = new Document();
         document.append(ID, TRANSACTION_ID);
+        document.append(ENTITY_ID, ENTITY_ID_VALUE);
         document.append(BARCODE, BARCODE_VALUE);
 
-        doReturn(COMPANY_FILING_HISTORY).when(environmentReader)
-            .getMandatoryString(MONGO_DATABASE_NAME);
-        doReturn(COMPANY_FILING_HISTORY).when(environmentReader)
-            .getMandatoryString(MONGO_COLLECTION);
 
-        when(mockMongoClient.getDatabase(anyString())).thenReturn(mockMongoDatabase);
-        when(mockMongoDatabase.getCollection(anyString())).thenReturn(mockMongoCollection);
         when(mockMongoCollection.find(any(Bson.class))).thenReturn(findIterableMocked);
         when(findIterableMocked.projection(any(Bson.class))).thenReturn(findIterableMocked);
-        when(findIterableMocked.first()).thenReturn(document);
-        String barcode = mongoService.getBarcode(TRANSACTION_ID);
-        Assertions.assertEquals(BARCODE_VALUE, barcode);
+        when(findIterableMocked.into(any())).thenAnswer(invocation -> {
+            List<Document> documents = invocation.getArgument(0);
+            documents.add(document);
+            return documents;
+        });
+        Map<String, FilingHistoryDetails> details =
+            mongoService.getAllFilingHistoryDetails(List.of(TRANSACTION_ID, "unknown"));
+        Assertions.assertEquals(Map.of(TRANSACTION_ID, new FilingHistoryDetails(ENTITY_ID_VALUE, BARCODE_VALUE)),
+            details);
+        verify(mockMongoCollection, times(1)).find(any(Bson.class));
+    }
+
+    @Test
+    @DisplayName("Filing history details of many ids looked up asynchronously once the query completes")
+    void allFilingHistoryDetailsReturnedAsynchronously() throws Exception {
+        Document document = new Document();
+        document.append(ID, TRANSACTION_ID);
+        document.append(ENTITY_ID, ENTITY_ID_VALUE);
+        document.append(BARCODE, BARCODE_VALUE);
+
+        when(mockReactiveMongoCollection.find(any(Bson.class))).thenReturn(findPublisherMocked);
+        when(findPublisherMocked.projection(any(Bson.class))).thenReturn(findPublisherMocked);
+        doAnswer(invocation -> {
+            Subscriber<Document> subscriber = invocation.getArgument(0);
+            subscriber.onSubscribe(subscriptionMocked);
+            subscriber.onNext(document);
+            subscriber.onComplete();
+            return null;
+        }).when(findPublisherMocked).subscribe(any());
+        CompletableFuture<Map<String, FilingHistoryDetails>> details =
+            mongoService.getAllFilingHistoryDetailsAsync(List.of(TRANSACTION_ID, "unknown"));
+        Assertions.assertEquals(Map.of(TRANSACTION_ID, new FilingHistoryDetails(ENTITY_ID_VALUE, BARCODE_VALUE)),
+            details.get());
+        verify(subscriptionMocked).request(Long.MAX_VALUE);
+    }
+
+    @Test
+    @DisplayName("Filing histories are not looked up asynchronously without the reactive streams client")
+    void allFilingHistoryDetailsAsyncRequiresReactiveClient() {
+        when(reactiveMongoClientProvider.getIfAvailable()).thenReturn(null);
+        MongoService serviceWithoutReactiveClient = new MongoService(mockMongoClient, reactiveMongoClientProvider,
+            COMPANY_FILING_HISTORY, COMPANY_FILING_HISTORY, ENTITY_ID);
+
+        Assertions.assertThrows(IllegalStateException.class,
+            () -> serviceWithoutReactiveClient.getAllFilingHistoryDetailsAsync(List.of(TRANSACTION_ID)));
     }
 }